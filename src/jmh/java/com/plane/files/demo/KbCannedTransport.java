@@ -0,0 +1,46 @@
+package com.plane.files.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Answers without a network: a lookup finds nothing and a create returns a
+ * new sys_id, so the code under measurement runs but the instance does not.
+ */
+class KbCannedTransport implements KbTransport {
+
+    private static final byte[] NOT_FOUND = "{\"result\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    private final AtomicLong created = new AtomicLong();
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+        if ("GET".equals(request.getMethod())) {
+            return CompletableFuture.completedFuture(response(HttpStatus.SC_OK, "OK", NOT_FOUND));
+        }
+
+        String sysId = String.format("%032x", created.incrementAndGet());
+        return CompletableFuture.completedFuture(response(HttpStatus.SC_CREATED, "Created",
+                ("{\"result\":{\"sys_id\":\"" + sysId + "\"}}").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    long getCreated() {
+        return created.get();
+    }
+
+    static HttpResponse response(int status, String reason, byte[] body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Writes a folder of synthetic Confluence exports: the space index.html,
+ * page-N.html with a breadcrumb trail, the header, metadata and footer the
+ * import strips, body text with links to other pages and images under
+ * attachments/N/, and the attachment files themselves. The same seed writes
+ * the same corpus.
+ */
+final class KbCorpusGenerator {
+
+    static final String INDEX = "index.html";
+
+    static final String DASHBOARD = "Dashboard";
+
+    static final String SPACE = KbKnowledgeBase.DEFAULT_KB;
+
+    /**
+     * Categories per breadcrumb level, pages of the same level share them.
+     */
+    static final int CATEGORY_FANOUT = 8;
+
+    static final int ATTACHMENT_BYTES = 2048;
+
+    private static final String[] WORDS = { "employee", "benefit", "leave", "holiday", "contract", "policy",
+            "payroll", "manager", "request", "approval", "travel", "expense", "training", "onboarding", "pension",
+            "insurance", "overtime", "schedule", "the", "and", "of", "for", "with", "your", "must", "can" };
+
+    private final int pageSize;
+
+    private final int breadcrumbDepth;
+
+    private final int linksPerPage;
+
+    private final int attachmentsPerPage;
+
+    private final long seed;
+
+    /**
+     * @param pageSize           characters of body text per page
+     * @param breadcrumbDepth    entries in the breadcrumb trail, dashboard and
+     *                           space included, 0 leaves it out
+     * @param linksPerPage       links to other pages in the body
+     * @param attachmentsPerPage images in the body, each its own file
+     */
+    KbCorpusGenerator(int pageSize, int breadcrumbDepth, int linksPerPage, int attachmentsPerPage, long seed) {
+        if (pageSize < 0 || breadcrumbDepth < 0 || linksPerPage < 0 || attachmentsPerPage < 0) {
+            throw new IllegalArgumentException("Corpus settings must not be negative");
+        }
+        this.pageSize = pageSize;
+        this.breadcrumbDepth = breadcrumbDepth;
+        this.linksPerPage = linksPerPage;
+        this.attachmentsPerPage = attachmentsPerPage;
+        this.seed = seed;
+    }
+
+    static String pageName(int page) {
+        return "page-" + page + KbKnowledgeAPI.DEFAULT_EXTENSSION;
+    }
+
+    static String attachmentName(int page, int attachment) {
+        return "attachments/" + page + "/image-" + attachment + ".png";
+    }
+
+    static String title(int page) {
+        return "Page " + page;
+    }
+
+    /**
+     * Label of the category at a breadcrumb level, 0 being the first level
+     * below the space.
+     */
+    static String category(int page, int level) {
+        return "Category " + level + "." + (page / (level + 1)) % CATEGORY_FANOUT;
+    }
+
+    /**
+     * Writes pages 0 to pages - 1 and their attachments into dir.
+     */
+    void generate(Path dir, int pages) throws IOException {
+        Files.createDirectories(dir);
+
+        try (Writer out = Files.newBufferedWriter(dir.resolve(INDEX), StandardCharsets.UTF_8)) {
+            writeIndex(out, pages);
+        }
+
+        for (int page = 0; page < pages; page++) {
+            try (Writer out = Files.newBufferedWriter(dir.resolve(pageName(page)), StandardCharsets.UTF_8)) {
+                writePage(out, page, pages);
+            }
+
+            Random random = new Random(seed ^ page);
+            for (int attachment = 0; attachment < attachmentsPerPage; attachment++) {
+                byte[] content = new byte[ATTACHMENT_BYTES];
+                random.nextBytes(content);
+
+                Path file = dir.resolve(attachmentName(page, attachment));
+                Files.createDirectories(file.getParent());
+                Files.write(file, content);
+            }
+        }
+    }
+
+    private void writeIndex(Writer out, int pages) throws IOException {
+        out.write("<!DOCTYPE html>\n<html>\n<head>\n<title>");
+        out.write(SPACE);
+        out.write(" : Home</title>\n</head>\n<body>\n<div id=\"main-content\">\n<ul>\n");
+        for (int page = 0; page < Math.min(pages, CATEGORY_FANOUT); page++) {
+            out.write("<li><a href=\"");
+            out.write(pageName(page));
+            out.write("\">");
+            out.write(title(page));
+            out.write("</a></li>\n");
+        }
+        out.write("</ul>\n</div>\n</body>\n</html>\n");
+    }
+
+    void writePage(Writer out, int page, int pages) throws IOException {
+        Random random = new Random(seed + page);
+
+        out.write("<!DOCTYPE html>\n<html>\n<head>\n<title>");
+        out.write(SPACE);
+        out.write(" : ");
+        out.write(title(page));
+        out.write("</title>\n<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n</head>\n");
+        out.write("<body class=\"theme-default aui-theme-default\">\n<div id=\"page\">\n<div id=\"main\">\n");
+
+        out.write("<div id=\"main-header\">\n");
+        if (breadcrumbDepth > 0) {
+            writeBreadcrumbs(out, page);
+        }
+        out.write("<h1 id=\"title-heading\" class=\"pagetitle\"><span id=\"title-text\">");
+        out.write(title(page));
+        out.write("</span></h1>\n</div>\n");
+
+        out.write("<div class=\"page-metadata\">Created by <span class=\"author\">Jane Doe</span>, last modified on "
+                + "Jan 01, 2020</div>\n");
+
+        out.write("<div id=\"content\" class=\"view\">\n<div id=\"main-content\" class=\"wiki-content group\">\n");
+        writeBody(out, page, pages, random);
+        out.write("</div>\n</div>\n</div>\n");
+
+        out.write("<div id=\"footer\"><section class=\"footer-body\"><p>Document generated by Confluence</p>"
+                + "</section></div>\n</div>\n</body>\n</html>\n");
+    }
+
+    private void writeBreadcrumbs(Writer out, int page) throws IOException {
+        out.write("<div id=\"breadcrumb-section\">\n<ol id=\"breadcrumbs\">\n");
+        for (int level = 0; level < breadcrumbDepth; level++) {
+            String label;
+            if (level == 0) {
+                label = DASHBOARD;
+            } else if (level == 1) {
+                label = SPACE;
+            } else {
+                label = category(page, level - 2);
+            }
+            out.write("<li><span><a href=\"" + INDEX + "\">");
+            out.write(label);
+            out.write("</a></span></li>\n");
+        }
+        out.write("</ol>\n</div>\n");
+    }
+
+    /**
+     * Paragraphs of text up to pageSize characters with the links and images
+     * spread evenly between them.
+     */
+    private void writeBody(Writer out, int page, int pages, Random random) throws IOException {
+        int references = linksPerPage + attachmentsPerPage;
+        int paragraphs = Math.max(1, references);
+        int paragraphSize = pageSize / paragraphs;
+
+        int links = 0;
+        int attachments = 0;
+        for (int paragraph = 0; paragraph < paragraphs; paragraph++) {
+            out.write("<p>");
+            writeWords(out, paragraphSize, random);
+
+            // alternate so both kinds are spread over the page
+            if (links < linksPerPage && (attachments >= attachmentsPerPage || paragraph % 2 == 0)) {
+                int target = pages > 1 ? (page + 1 + random.nextInt(pages - 1)) % pages : page;
+                out.write(" <a href=\"");
+                out.write(pageName(target));
+                out.write("\">");
+                out.write(title(target));
+                out.write("</a>");
+                links++;
+            } else if (attachments < attachmentsPerPage) {
+                out.write(" <span class=\"confluence-embedded-file-wrapper\"><img class=\"confluence-embedded-image\" "
+                        + "src=\"");
+                out.write(attachmentName(page, attachments));
+                out.write("\" data-image-src=\"");
+                out.write(attachmentName(page, attachments));
+                out.write("\"></span>");
+                attachments++;
+            }
+            out.write("</p>\n");
+        }
+
+        out.write("<p>See <a href=\"https://www.example.com/handbook\">the handbook</a> or "
+                + "<a href=\"mailto:hr@example.com\">write to HR</a>.</p>\n");
+    }
+
+    private void writeWords(Writer out, int size, Random random) throws IOException {
+        int written = 0;
+        while (written < size) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (written > 0) {
+                out.write(' ');
+                written++;
+            }
+            out.write(word);
+            written += word.length();
+        }
+    }
+
+    /**
+     * Usage: KbCorpusGenerator dir pages [pageSize] [breadcrumbDepth]
+     * [linksPerPage] [attachmentsPerPage] [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: KbCorpusGenerator <dir> <pages> [pageSize] [breadcrumbDepth] [linksPerPage] "
+                    + "[attachmentsPerPage] [seed]");
+            System.exit(1);
+        }
+
+        KbCorpusGenerator generator = new KbCorpusGenerator(intArg(args, 2, 4096), intArg(args, 3, 4),
+                intArg(args, 4, 5), intArg(args, 5, 2), args.length > 6 ? Long.parseLong(args[6]) : 1L);
+
+        generator.generate(Paths.get(args[0]), Integer.parseInt(args[1]));
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A generated corpus in a temporary folder for the length of a trial, the
+ * benchmarks take its pages in turn.
+ */
+@State(Scope.Thread)
+public abstract class KbCorpusState {
+
+    @Param({ "1000" })
+    int pages;
+
+    @Param({ "4096" })
+    int pageSize;
+
+    @Param({ "4" })
+    int breadcrumbDepth;
+
+    @Param({ "5" })
+    int linksPerPage;
+
+    @Param({ "2" })
+    int attachmentsPerPage;
+
+    Path dir;
+
+    private int next;
+
+    @Setup
+    public void generateCorpus() throws IOException {
+        dir = Files.createTempDirectory("kb-corpus");
+        new KbCorpusGenerator(pageSize, breadcrumbDepth, linksPerPage, attachmentsPerPage, 1L).generate(dir, pages);
+        prepare();
+    }
+
+    /**
+     * Sets up what the benchmark needs once the corpus is written.
+     */
+    void prepare() throws IOException {
+    }
+
+    @TearDown
+    public void deleteCorpus() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    Path nextPage() {
+        Path page = dir.resolve(KbCorpusGenerator.pageName(next));
+        next = (next + 1) % pages;
+        return page;
+    }
+
+}
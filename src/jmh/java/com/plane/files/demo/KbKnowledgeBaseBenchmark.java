@@ -0,0 +1,63 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.plane.files.demo.KbKnowledgeBase.KbKnowledge;
+
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the knowledge base and category of a page from its breadcrumbs.
+ * Lookups find nothing and categories are created once against a canned
+ * transport, after the warmup every category is known.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KbKnowledgeBaseBenchmark extends KbCorpusState {
+
+    private static final int PARSED_PAGES = 100;
+
+    private KbKnowledgeBase klb;
+
+    private Document[] documents;
+
+    private int nextDocument;
+
+    @Override
+    void prepare() throws IOException {
+        klb = new KbKnowledgeBase("http://localhost");
+        klb.setTransport(new KbCannedTransport());
+
+        documents = new Document[Math.min(pages, PARSED_PAGES)];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = new KbArticleContext(dir.resolve(KbCorpusGenerator.pageName(i))).getDocument();
+        }
+    }
+
+    @Benchmark
+    public KbKnowledge fromFile() throws Exception {
+        return klb.fromFile(nextPage());
+    }
+
+    @Benchmark
+    public String extractLowestLevel() {
+        Document doc = documents[nextDocument];
+        nextDocument = (nextDocument + 1) % documents.length;
+        return klb.extractLowestLevel(doc);
+    }
+
+}
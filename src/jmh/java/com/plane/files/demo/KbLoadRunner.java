@@ -0,0 +1,228 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Imports a generated corpus into {@link KbServiceNowStub} over the real
+ * clients and reports articles per second and the latency of every call sent,
+ * a retried call counting once per attempt.
+ *
+ * Settings are name=value arguments, see {@link #DEFAULTS}.
+ */
+public class KbLoadRunner {
+
+    static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        // corpus
+        DEFAULTS.put("pages", "1000");
+        DEFAULTS.put("pageSize", "4096");
+        DEFAULTS.put("breadcrumbDepth", "4");
+        DEFAULTS.put("linksPerPage", "5");
+        DEFAULTS.put("attachmentsPerPage", "2");
+        // stub
+        DEFAULTS.put("latencyMedianMillis", "20");
+        DEFAULTS.put("latencyP99Millis", "200");
+        DEFAULTS.put("throttleRate", "0");
+        DEFAULTS.put("retryAfterSeconds", "0");
+        DEFAULTS.put("errorRate", "0");
+        DEFAULTS.put("stubConcurrency", "64");
+        // import, 0 leaves the option off
+        DEFAULTS.put("maxConnections", String.valueOf(KbHttpClients.DEFAULT_MAX_CONNECTIONS));
+        DEFAULTS.put("asyncHttp", "false");
+        DEFAULTS.put("maxConcurrency", "0");
+        DEFAULTS.put("batchSize", "0");
+        DEFAULTS.put("cpuWorkers", String.valueOf(KbImportPipeline.DEFAULT_CPU_WORKERS));
+        DEFAULTS.put("ioWorkers", String.valueOf(KbImportPipeline.DEFAULT_IO_WORKERS));
+        DEFAULTS.put("maxRetries", String.valueOf(KbRetryPolicy.DEFAULT_MAX_ATTEMPTS - 1));
+        DEFAULTS.put("retryBaseMillis", "50");
+        DEFAULTS.put("progressSeconds", "0");
+        // empty writes no report
+        DEFAULTS.put("metricsReport", "");
+    }
+
+    private final Map<String, String> settings;
+
+    KbLoadRunner(Map<String, String> settings) {
+        this.settings = new HashMap<>(DEFAULTS);
+        settings.forEach((name, value) -> {
+            if (!DEFAULTS.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown setting " + name + ", known are " + DEFAULTS.keySet());
+            }
+            this.settings.put(name, value);
+        });
+    }
+
+    private int intSetting(String name) {
+        return Integer.parseInt(settings.get(name));
+    }
+
+    private double doubleSetting(String name) {
+        return Double.parseDouble(settings.get(name));
+    }
+
+    /**
+     * Records the time from sending a call to its response.
+     */
+    static class TimedTransport implements KbTransport {
+
+        private final KbTransport delegate;
+
+        private long[] nanos = new long[1024];
+
+        private int count;
+
+        TimedTransport(KbTransport delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+            long start = System.nanoTime();
+            return delegate.execute(request).whenComplete((response, e) -> record(System.nanoTime() - start));
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return delegate.isBlocking();
+        }
+
+        private synchronized void record(long elapsed) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsed;
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         */
+        synchronized double percentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+        }
+    }
+
+    void run() throws IOException {
+        Path dir = Files.createTempDirectory("kb-load");
+        try {
+            int pages = intSetting("pages");
+            new KbCorpusGenerator(intSetting("pageSize"), intSetting("breadcrumbDepth"), intSetting("linksPerPage"),
+                    intSetting("attachmentsPerPage"), 1L).generate(dir, pages);
+
+            try (KbServiceNowStub stub = new KbServiceNowStub(intSetting("stubConcurrency"))
+                    .withLatency(doubleSetting("latencyMedianMillis"), doubleSetting("latencyP99Millis"))
+                    .withThrottling(doubleSetting("throttleRate"), intSetting("retryAfterSeconds"))
+                    .withErrors(doubleSetting("errorRate"), 503).start()) {
+
+                stub.knowledgeBase(KbCorpusGenerator.SPACE);
+                stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+                TimedTransport timed = new TimedTransport(baseTransport());
+
+                KbKnowledgeAPI api = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+                configure(api, timed);
+
+                long start = System.nanoTime();
+                api.createResourceReferences();
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                // the space index is imported as an article as well
+                int articles = pages + 1;
+
+                System.out.println();
+                System.out.println("Settings: " + settings);
+                System.out.printf("Articles: %d in %.2f s, %.1f articles/s%n", articles, seconds,
+                        articles / seconds);
+                // an async client queues calls for a connection, that wait is part of the latency
+                System.out.printf("Calls: %d, p50 %.1f ms, p99 %.1f ms%n", timed.getCount(),
+                        timed.percentileMillis(50), timed.percentileMillis(99));
+                System.out.printf("Stub: %d requests, %d throttled, %d failed, %d over the concurrency limit%n",
+                        stub.getRequests(), stub.getThrottled(), stub.getFailed(), stub.getRejected());
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private KbTransport baseTransport() {
+        int maxConnections = intSetting("maxConnections");
+        if (Boolean.parseBoolean(settings.get("asyncHttp"))) {
+            return KbAsyncTransport.basicAuth("user", "pass", maxConnections);
+        }
+        return new KbBlockingTransport(KbHttpClients.basicAuth("user", "pass", maxConnections,
+                KbHttpClients.DEFAULT_KEEP_ALIVE_SECONDS, KbHttpClients.DEFAULT_IDLE_SECONDS));
+    }
+
+    /**
+     * The same layering as DemoApplication: client, adaptive limit, batching,
+     * retries on top.
+     */
+    private void configure(KbKnowledgeAPI api, TimedTransport timed) {
+        api.withKbKnowledgeBase().withRetries(intSetting("maxRetries") + 1, intSetting("retryBaseMillis"));
+        api.setTransport(timed);
+        api.withProgress(intSetting("progressSeconds"));
+
+        String metricsReport = settings.get("metricsReport");
+        if (!metricsReport.isEmpty()) {
+            api.withMetricsReport(Paths.get(metricsReport));
+        }
+
+        int maxConcurrency = intSetting("maxConcurrency");
+        if (maxConcurrency > 0) {
+            api.withAdaptiveConcurrency(Math.min(KbAdaptiveLimiter.DEFAULT_INITIAL_LIMIT, maxConcurrency),
+                    maxConcurrency, 0);
+        }
+
+        int batchSize = intSetting("batchSize");
+        if (batchSize > 0) {
+            api.withBatching(batchSize, KbBatchTransport.DEFAULT_LINGER_MILLIS);
+        }
+
+        int cpuWorkers = intSetting("cpuWorkers");
+        if (cpuWorkers > 0) {
+            api.withPipeline(cpuWorkers, intSetting("ioWorkers"), KbImportPipeline.DEFAULT_QUEUE_CAPACITY);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            String[] setting = arg.split("=", 2);
+            if (setting.length != 2) {
+                System.err.println("Usage: KbLoadRunner [name=value ...], settings and defaults " + DEFAULTS);
+                System.exit(1);
+            }
+            settings.put(setting[0], setting[1]);
+        }
+
+        new KbLoadRunner(settings).run();
+
+        // pools of the import and the clients are not all daemons
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a page and stripping the Confluence chrome, and the same without a
+ * DOM as large pages are streamed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KbProcessorBenchmark extends KbCorpusState {
+
+    @Benchmark
+    public String processText() throws IOException {
+        return KbProcessor.processText(nextPage());
+    }
+
+    @Benchmark
+    public Document processDocument() throws IOException {
+        KbArticleContext ctx = new KbArticleContext(nextPage());
+        KbProcessor.processDocument(ctx);
+        return ctx.getDocument();
+    }
+
+    @Benchmark
+    public int streamText() throws IOException {
+        KbArticleContext ctx = new KbArticleContext(nextPage(), true);
+        StringWriter out = new StringWriter();
+        try (Reader in = ctx.newReader()) {
+            KbProcessor.STREAMING.rewrite(in, out, value -> null);
+        }
+        return out.getBuffer().length();
+    }
+
+}
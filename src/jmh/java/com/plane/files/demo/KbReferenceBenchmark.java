@@ -0,0 +1,101 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rewriting the links and images of a parsed page. Every page and attachment
+ * is in the journal the run starts from, so only the rewrite is measured, once
+ * as createReferences does it and once with a selector pass per attribute as
+ * a baseline for other strategies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KbReferenceBenchmark extends KbCorpusState {
+
+    private KbKnowledgeAPI api;
+
+    private KbArticleContext ctx;
+
+    @Override
+    void prepare() throws IOException {
+        Path journalFile = dir.resolve("journal.tsv");
+
+        KbJournal journal = new KbJournal(journalFile, KbJournal.DEFAULT_SYNC_RECORDS, KbJournal.DEFAULT_SYNC_MILLIS);
+        journal.record(KbJournal.KB, KbCorpusGenerator.INDEX, String.format("%032x", -1));
+        for (int page = 0; page < pages; page++) {
+            journal.record(KbJournal.KB, KbCorpusGenerator.pageName(page), String.format("%032x", page));
+            for (int attachment = 0; attachment < attachmentsPerPage; attachment++) {
+                journal.record(KbJournal.ATTACHMENT, KbCorpusGenerator.attachmentName(page, attachment),
+                        String.format("%016x%016x", page, attachment));
+            }
+        }
+        journal.close();
+
+        api = new KbKnowledgeAPI("user", "pass", "http://localhost", dir);
+        api.withJournal(journalFile);
+    }
+
+    @Setup(Level.Invocation)
+    public void parsePage() throws IOException {
+        ctx = KbArticleContext.parse(nextPage());
+    }
+
+    @Benchmark
+    public Document createReferences() throws IOException {
+        api.createReferences.accept(ctx);
+        return ctx.getDocument();
+    }
+
+    @Benchmark
+    public Document selectorPerAttribute() throws IOException {
+        Document doc = ctx.getDocument();
+
+        List<String> references = new ArrayList<>();
+        doc.select("img[src]").forEach(e -> references.add(e.attr("src")));
+        doc.select("[href]").forEach(e -> references.add(e.attr("href")));
+
+        api.resolveReferences(ctx.getSysId(), references);
+
+        for (Element e : doc.select("img[src]")) {
+            rewrite(e, "src");
+        }
+        for (Element e : doc.select("[href]")) {
+            rewrite(e, "href");
+        }
+
+        return doc;
+    }
+
+    private void rewrite(Element e, String attribute) {
+        String path = e.attr(attribute);
+        if (api.isKnowledgeRef(path)) {
+            e.attr(attribute, KbKnowledgeAPI.KB_SRC_PREFIX.concat(api.resolveReference(ctx.getSysId(), path)));
+        } else if (api.isAttachmentRef(path)) {
+            e.attr(attribute,
+                    KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX.concat(api.resolveReference(ctx.getSysId(), path)));
+        }
+    }
+
+}
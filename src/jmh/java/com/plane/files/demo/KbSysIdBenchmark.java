@@ -0,0 +1,74 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the sys_id of a created kb_knowledge record, which the Table API
+ * returns with the whole text in front of it, and of a lookup result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KbSysIdBenchmark {
+
+    @Param({ "4096" })
+    int pageSize;
+
+    private final KbKnowledgeAPI api = new KbKnowledgeAPI("user", "pass", "http://localhost", null);
+
+    private final KbKnowledgeBase klb = new KbKnowledgeBase("http://localhost");
+
+    private byte[] created;
+
+    private byte[] found;
+
+    @Setup
+    public void writeResponses() throws IOException {
+        StringWriter page = new StringWriter();
+        new KbCorpusGenerator(pageSize, 4, 5, 2, 1L).writePage(page, 0, 1000);
+
+        KbJsonCodec.KnowledgeRecord record = new KbJsonCodec.KnowledgeRecord();
+        record.setShortDescription(KbCorpusGenerator.title(0));
+        record.setLanguage("en");
+        record.setText(page.toString());
+
+        // the Table API answers with the record, sys_id after the text
+        String fields = EntityUtils.toString(KbJsonCodec.entity(record), StandardCharsets.UTF_8);
+        created = ("{\"result\":" + fields.substring(0, fields.length() - 1)
+                + ",\"sys_id\":\"0123456789abcdef0123456789abcdef\",\"number\":\"KB0010001\"}}")
+                        .getBytes(StandardCharsets.UTF_8);
+
+        found = "{\"result\":[{\"sys_id\":\"0123456789abcdef0123456789abcdef\"}]}".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String knowledgeSysId() throws IOException {
+        return api.getSysId(KbCannedTransport.response(HttpStatus.SC_CREATED, "Created", created));
+    }
+
+    @Benchmark
+    public String lookupSysId() throws IOException {
+        return klb.getSysId(KbCannedTransport.response(HttpStatus.SC_OK, "OK", found));
+    }
+
+}
@@ -2,7 +2,11 @@ package com.plane.files.demo;
 
 import java.io.Console;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -39,12 +43,125 @@ public class DemoApplication {
 
 		final KbKnowledgeAPI app = new KbKnowledgeAPI(user, pass, instance, Paths.get(args[0]));
 
-		app.withDefaultHttpClient().withKbKnowledgeBase();
+		List<String> include = Optional.ofNullable(System.getenv("include")).map(v -> Arrays.asList(v.split(",")))
+				.orElse(Collections.singletonList(KbFileWalker.DEFAULT_INCLUDE));
+		List<String> exclude = Optional.ofNullable(System.getenv("exclude")).map(v -> Arrays.asList(v.split(",")))
+				.orElse(Collections.emptyList());
+
+		app.withFileFilter(include, exclude);
+
+		Optional.ofNullable(System.getenv("linkOrder")).ifPresent(v -> {
+			app.withLinkOrder();
+		});
+
+		int maxConnections = Optional.ofNullable(System.getenv("maxConnections")).map(Integer::parseInt)
+				.orElse(KbHttpClients.DEFAULT_MAX_CONNECTIONS);
+		long idleConnectionSeconds = Optional.ofNullable(System.getenv("idleConnectionSeconds")).map(Long::parseLong)
+				.orElse(KbHttpClients.DEFAULT_IDLE_SECONDS);
+
+		app.withConnectionPool(maxConnections, idleConnectionSeconds).withDefaultHttpClient().withKbKnowledgeBase();
+
+		int maxRetries = Optional.ofNullable(System.getenv("maxRetries")).map(Integer::parseInt)
+				.orElse(KbRetryPolicy.DEFAULT_MAX_ATTEMPTS - 1);
+		long retryBaseMillis = Optional.ofNullable(System.getenv("retryBaseMillis")).map(Long::parseLong)
+				.orElse(KbRetryPolicy.DEFAULT_BASE_DELAY_MILLIS);
+
+		app.withRetries(maxRetries + 1, retryBaseMillis);
 
 		Optional.ofNullable(System.getenv("useTranslatedVersions")).ifPresent(v -> {
 			app.withTranslatedVersions();
 		});
-		
+
+		int lookupCacheSize = Optional.ofNullable(System.getenv("lookupCacheSize")).map(Integer::parseInt)
+				.orElse(KbLookupCache.DEFAULT_MAX_SIZE);
+		long lookupCacheTtl = Optional.ofNullable(System.getenv("lookupCacheTtlSeconds")).map(Long::parseLong)
+				.orElse(0L);
+
+		app.withLookupCache(lookupCacheSize, TimeUnit.SECONDS.toMillis(lookupCacheTtl));
+
+		// a dry run answers every call itself
+		Optional<String> dryRun = Optional.ofNullable(System.getenv("dryRun"));
+		if (!dryRun.isPresent()) {
+			Optional.ofNullable(System.getenv("asyncHttp")).ifPresent(v -> {
+				app.withAsyncHttpClient();
+			});
+		}
+
+		Optional<Integer> maxConcurrency = Optional.ofNullable(System.getenv("maxConcurrency")).map(Integer::parseInt);
+		Optional<Double> maxRequestsPerSecond = Optional.ofNullable(System.getenv("maxRequestsPerSecond"))
+				.map(Double::parseDouble);
+		if (dryRun.isPresent()) {
+			app.withDryRun(Paths.get(dryRun.get()), maxRequestsPerSecond.orElse(0d),
+					maxConcurrency.orElse(maxConnections), Optional.ofNullable(System.getenv("dryRunLatencyMillis"))
+							.map(Long::parseLong).orElse(KbImportPlan.DEFAULT_LATENCY_MILLIS));
+		} else if (maxConcurrency.isPresent() || maxRequestsPerSecond.isPresent()) {
+			int maxLimit = maxConcurrency.orElse(maxConnections);
+			app.withAdaptiveConcurrency(Math.min(KbAdaptiveLimiter.DEFAULT_INITIAL_LIMIT, maxLimit), maxLimit,
+					maxRequestsPerSecond.orElse(0d));
+		}
+
+		Optional.ofNullable(System.getenv("batchSize")).map(Integer::parseInt).ifPresent(size -> {
+			app.withBatching(size, Optional.ofNullable(System.getenv("batchLingerMillis")).map(Long::parseLong)
+					.orElse(KbBatchTransport.DEFAULT_LINGER_MILLIS));
+		});
+
+		Optional<String> journal = Optional.ofNullable(System.getenv("journal"));
+		if (journal.isPresent()) {
+			app.withJournal(Paths.get(journal.get()));
+		}
+
+		Optional<String> syncState = Optional.ofNullable(System.getenv("syncState"));
+		if (syncState.isPresent()) {
+			app.withSync(Paths.get(syncState.get()));
+		}
+
+		Optional.ofNullable(System.getenv("shardCount")).map(Integer::parseInt).ifPresent(count -> {
+			app.withShard(Optional.ofNullable(System.getenv("shardIndex")).map(Integer::parseInt).orElse(0), count);
+		});
+
+		Optional<String> sharedRegistry = Optional.ofNullable(System.getenv("sharedRegistry"));
+		if (sharedRegistry.isPresent()) {
+			app.withSharedRegistry(Paths.get(sharedRegistry.get()),
+					Optional.ofNullable(System.getenv("registryStaleSeconds")).map(Long::parseLong)
+							.map(TimeUnit.SECONDS::toMillis).orElse(KbSharedRegistry.DEFAULT_STALE_MILLIS));
+		}
+
+		Optional.ofNullable(System.getenv("attachmentWorkers")).map(Integer::parseInt)
+				.ifPresent(app::withAttachmentWorkers);
+
+		Optional.ofNullable(System.getenv("clientSysIds")).ifPresent(v -> {
+			app.withClientSysIds();
+		});
+
+		Optional.ofNullable(System.getenv("outputFiles")).ifPresent(v -> {
+			app.withOutputFiles();
+		});
+
+		Optional.ofNullable(System.getenv("streamingThreshold")).map(Long::parseLong)
+				.ifPresent(app::withStreamingThreshold);
+
+		Optional.ofNullable(System.getenv("preloadHierarchy")).ifPresent(v -> {
+			app.withHierarchyPreload(Optional.ofNullable(System.getenv("preloadPageSize")).map(Integer::parseInt)
+					.orElse(KbKnowledgeBase.DEFAULT_PRELOAD_PAGE_SIZE));
+		});
+
+		int cpuWorkers = Optional.ofNullable(System.getenv("cpuWorkers")).map(Integer::parseInt).orElse(0);
+		int ioWorkers = Optional.ofNullable(System.getenv("ioWorkers")).map(Integer::parseInt)
+				.orElse(KbImportPipeline.DEFAULT_IO_WORKERS);
+		int queueCapacity = Optional.ofNullable(System.getenv("pipelineQueueCapacity")).map(Integer::parseInt)
+				.orElse(KbImportPipeline.DEFAULT_QUEUE_CAPACITY);
+
+		// one file at a time unless cpuWorkers is set
+		if (cpuWorkers > 0) {
+			app.withPipeline(cpuWorkers, ioWorkers, queueCapacity);
+		}
+
+		app.withProgress(Optional.ofNullable(System.getenv("progressSeconds")).map(Long::parseLong)
+				.orElse(KbMetrics.DEFAULT_PROGRESS_SECONDS));
+
+		Optional.ofNullable(System.getenv("metricsReport")).ifPresent(v -> {
+			app.withMetricsReport(Paths.get(v));
+		});
 
 		app.createResourceReferences();
 
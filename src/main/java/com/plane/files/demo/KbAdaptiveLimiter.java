@@ -0,0 +1,222 @@
+package com.plane.files.demo;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Number of calls the instance gets at the same time, found while importing.
+ *
+ * The limit grows by one per round trip while the latency stays close to the
+ * lowest seen and the limit is in use. It is cut in half when the instance
+ * throttles and by a tenth when the latency rises, at most once per round
+ * trip: only calls started after the last cut can cut it again. The lowest
+ * latency slowly forgets itself so a slower instance is not throttled
+ * forever.
+ *
+ * Optionally the calls are also spaced out to a fixed number per second.
+ */
+class KbAdaptiveLimiter {
+
+    protected static Logger log = LoggerFactory.getLogger(KbAdaptiveLimiter.class);
+
+    public static final int DEFAULT_INITIAL_LIMIT = 8;
+
+    /** latency over the lowest seen times this counts as the instance slowing down */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    static final double THROTTLED_DECREASE = 0.5;
+
+    static final double LATENCY_DECREASE = 0.9;
+
+    /** growth of the lowest latency per call, about doubles it after 700 calls */
+    static final double BASELINE_DRIFT = 0.001;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long rateIntervalNanos;
+
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    private double limit;
+
+    private int inFlight;
+
+    private double baselineNanos;
+
+    private long lastDecreaseNanos;
+
+    private long nextSlotNanos;
+
+    private int lowestLimit;
+
+    private int highestLimit;
+
+    private long throttled;
+
+    /**
+     * @param maxRequestsPerSecond hard cap on calls per second, 0 for none
+     */
+    KbAdaptiveLimiter(int initialLimit, int maxLimit, double maxRequestsPerSecond) {
+        if (initialLimit < 1 || maxLimit < initialLimit || maxRequestsPerSecond < 0) {
+            throw new IllegalArgumentException("Limits must be positive and ordered, rate not negative");
+        }
+        this.minLimit = 1;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.lowestLimit = initialLimit;
+        this.highestLimit = initialLimit;
+        this.lastDecreaseNanos = System.nanoTime() - 1;
+        this.rateIntervalNanos = maxRequestsPerSecond > 0
+                ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond)
+                : 0;
+    }
+
+    /**
+     * Completes when a call may start, right away while under the limit.
+     */
+    CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                permit.complete(null);
+            } else {
+                waiters.add(permit);
+            }
+        }
+        return permit;
+    }
+
+    void acquire() throws InterruptedIOException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            // granted meanwhile or still queued, either way it is not used
+            if (!permit.cancel(false)) {
+                release();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a concurrency permit");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Nanos the call must wait to stay under the rate cap, the slot is
+     * reserved.
+     */
+    synchronized long reserveSlot() {
+        if (rateIntervalNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long slot = Math.max(now, nextSlotNanos);
+        nextSlotNanos = slot + rateIntervalNanos;
+        return slot - now;
+    }
+
+    /**
+     * Releases the permit of a call that started at startNanos and adjusts
+     * the limit to how it went.
+     *
+     * @param throttled the instance answered 429 or 503, or the call timed out
+     */
+    void release(long startNanos, boolean throttled) {
+        long now = System.nanoTime();
+        long rtt = now - startNanos;
+
+        synchronized (this) {
+            double before = limit;
+            int used = inFlight;
+
+            if (throttled) {
+                this.throttled++;
+                decrease(startNanos, now, THROTTLED_DECREASE);
+            } else {
+                if (baselineNanos == 0 || rtt < baselineNanos) {
+                    baselineNanos = rtt;
+                } else {
+                    baselineNanos *= 1 + BASELINE_DRIFT;
+                }
+
+                if (rtt > baselineNanos * LATENCY_TOLERANCE) {
+                    decrease(startNanos, now, LATENCY_DECREASE);
+                } else if (used * 2 >= (int) limit) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+
+            lowestLimit = Math.min(lowestLimit, (int) limit);
+            highestLimit = Math.max(highestLimit, (int) limit);
+
+            if ((int) limit < (int) before) {
+                log.info("Concurrency limit {} after {} ms{}", (int) limit, TimeUnit.NANOSECONDS.toMillis(rtt),
+                        throttled ? ", throttled" : "");
+            } else if ((int) limit > (int) before) {
+                log.debug("Concurrency limit {}", (int) limit);
+            }
+        }
+
+        release();
+    }
+
+    private void decrease(long startNanos, long now, double ratio) {
+        // calls started before the last cut saw the old load
+        if (startNanos - lastDecreaseNanos <= 0) {
+            return;
+        }
+        limit = Math.max(minLimit, limit * ratio);
+        lastDecreaseNanos = now;
+    }
+
+    private void release() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            while (inFlight < (int) limit && !waiters.isEmpty()) {
+                CompletableFuture<Void> next = waiters.poll();
+                if (!next.isCancelled()) {
+                    inFlight++;
+                    granted.add(next);
+                }
+            }
+        }
+
+        // the waiters' continuations run here, outside the lock
+        granted.forEach(permit -> permit.complete(null));
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getLowestLimit() {
+        return lowestLimit;
+    }
+
+    synchronized int getHighestLimit() {
+        return highestLimit;
+    }
+
+    synchronized long getThrottled() {
+        return throttled;
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * Table or Attachment API call answered with a status other than 2xx, after
+ * any retries.
+ */
+class KbApiException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    private final String reasonPhrase;
+
+    KbApiException(int statusCode, String reasonPhrase) {
+        super("Server response code " + statusCode + (reasonPhrase != null ? " " + reasonPhrase : ""));
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+    }
+
+    static KbApiException of(HttpResponse response) {
+        return new KbApiException(response.getStatusLine().getStatusCode(),
+                response.getStatusLine().getReasonPhrase());
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.plane.files.demo.KbKnowledgeBase.KbKnowledge;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ * Everything known about one HTML file while it is imported. The file is
+ * parsed on first access to the document and the same Document is used for
+ * metadata extraction, pruning and reference rewriting.
+ *
+ * A file above the streaming threshold is never parsed whole. Its document
+ * holds only the title and the breadcrumbs the metadata is read from, and its
+ * text is pruned and rewritten while it streams into the update body.
+ */
+class KbArticleContext {
+
+    /** the parts of a page the knowledge base and category are read from */
+    private static final KbHtmlRewriter OUTLINE = KbHtmlRewriter.keeping("title", "#breadcrumbs");
+
+    private final Path path;
+
+    private final boolean streamed;
+
+    private Document document;
+
+    private String sysId;
+
+    private KbKnowledge knowledge;
+
+    private KbArticleText text;
+
+    private List<Reference> references;
+
+    /** replacements of the references of a streamed file by their value */
+    private Map<String, String> rewrites;
+
+    /** sys_ids of the references by their path from the base folder, once resolved */
+    private Map<String, String> resolved;
+
+    /**
+     * A src or href attribute of an element, rewritten in place.
+     */
+    static class Reference {
+
+        private final Element element;
+
+        private final String attribute;
+
+        Reference(Element element, String attribute) {
+            this.element = element;
+            this.attribute = attribute;
+        }
+
+        String getValue() {
+            return element.attr(attribute);
+        }
+
+        void rewrite(String value) {
+            element.attr(attribute, value);
+        }
+    }
+
+    /**
+     * Every src or href attribute of a streamed file with the same value,
+     * rewritten when the text is streamed.
+     */
+    private static class StreamedReference extends Reference {
+
+        private final String value;
+
+        private final Map<String, String> rewrites;
+
+        StreamedReference(String value, Map<String, String> rewrites) {
+            super(null, null);
+            this.value = value;
+            this.rewrites = rewrites;
+        }
+
+        @Override
+        String getValue() {
+            return value;
+        }
+
+        @Override
+        void rewrite(String value) {
+            rewrites.put(this.value, value);
+        }
+    }
+
+    KbArticleContext(Path path) {
+        this(path, false);
+    }
+
+    KbArticleContext(Path path, boolean streamed) {
+        this.path = path;
+        this.streamed = streamed;
+    }
+
+    static KbArticleContext parse(Path path) throws IOException {
+        KbArticleContext ctx = new KbArticleContext(path);
+        ctx.getDocument();
+        return ctx;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    public synchronized Document getDocument() throws IOException {
+        if (document == null) {
+            document = streamed ? outline() : Jsoup.parse(path.toFile(), "UTF-8");
+        }
+        return document;
+    }
+
+    private Document outline() throws IOException {
+        StringWriter kept = new StringWriter();
+        try (Reader in = newReader()) {
+            OUTLINE.rewrite(in, kept, null);
+        }
+        return Jsoup.parse(kept.toString());
+    }
+
+    Reader newReader() throws IOException {
+        return Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    }
+
+    public String getSysId() {
+        return sysId;
+    }
+
+    public void setSysId(String sysId) {
+        this.sysId = sysId;
+    }
+
+    public KbKnowledge getKnowledge() {
+        return knowledge;
+    }
+
+    public void setKnowledge(KbKnowledge knowledge) {
+        this.knowledge = knowledge;
+    }
+
+    /**
+     * The img src and href attributes of the document in document order,
+     * found in one walk over the elements. Call after the document is
+     * pruned, the list is kept until the document is released. A streamed
+     * file is scanned instead, one reference per distinct value outside the
+     * pruned elements.
+     */
+    public synchronized List<Reference> getReferences() throws IOException {
+        if (references == null && streamed) {
+            Map<String, String> found = new LinkedHashMap<>();
+            Map<String, Reference> distinct = new LinkedHashMap<>();
+            try (Reader in = newReader()) {
+                KbProcessor.STREAMING.scan(in, value -> distinct.computeIfAbsent(value,
+                        v -> new StreamedReference(v, found)));
+            }
+            rewrites = found;
+            references = new ArrayList<>(distinct.values());
+        }
+        if (references == null) {
+            List<Reference> found = new ArrayList<>();
+            getDocument().traverse((node, depth) -> {
+                if (!(node instanceof Element)) {
+                    return;
+                }
+                Element element = (Element) node;
+                if (element.hasAttr("src") && "img".equals(element.normalName())) {
+                    found.add(new Reference(element, "src"));
+                }
+                if (element.hasAttr("href")) {
+                    found.add(new Reference(element, "href"));
+                }
+            });
+            references = found;
+        }
+        return references;
+    }
+
+    public KbArticleText getText() {
+        return text;
+    }
+
+    public void setText(KbArticleText text) {
+        this.text = text;
+    }
+
+    /**
+     * The replacements the references of a streamed file were given, empty
+     * before they are scanned.
+     */
+    public synchronized Map<String, String> getRewrites() {
+        return rewrites != null ? rewrites : new LinkedHashMap<>();
+    }
+
+    /**
+     * The sys_ids the references resolved to by their path from the base
+     * folder, null before they are resolved. A reference that did not
+     * resolve has no entry.
+     */
+    public synchronized Map<String, String> getResolved() {
+        return resolved;
+    }
+
+    public synchronized void setResolved(Map<String, String> resolved) {
+        this.resolved = resolved;
+    }
+
+    /**
+     * Drops the parsed document once the article is written.
+     */
+    public synchronized void release() {
+        document = null;
+        references = null;
+        rewrites = null;
+        resolved = null;
+    }
+
+}
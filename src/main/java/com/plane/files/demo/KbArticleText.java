@@ -0,0 +1,219 @@
+package com.plane.files.demo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.function.UnaryOperator;
+
+import org.jsoup.nodes.Document;
+
+/**
+ * Rewritten text of an article, rendered once from the document as the UTF-8
+ * bytes of a JSON string without the quotes. The request entity writes these
+ * bytes as they are, the HTML is never held as a String.
+ *
+ * The text of a page too large to hold is streamed into a spool file
+ * instead and read back from there each time the request is sent.
+ */
+final class KbArticleText {
+
+    private final byte[] bytes;
+
+    private final Path file;
+
+    private final long length;
+
+    private final String hash;
+
+    private KbArticleText(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.file = null;
+        this.length = length;
+        this.hash = null;
+    }
+
+    private KbArticleText(Path file, long length, String hash) {
+        this.bytes = null;
+        this.file = file;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    static KbArticleText render(Document doc) throws IOException {
+        Buffer buffer = new Buffer();
+        try (Writer out = new JsonStringWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8))) {
+            doc.html(out);
+        }
+        return new KbArticleText(buffer.bytes(), buffer.size());
+    }
+
+    static KbArticleText of(String html) throws IOException {
+        Buffer buffer = new Buffer();
+        try (Writer out = new JsonStringWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8))) {
+            out.write(html);
+        }
+        return new KbArticleText(buffer.bytes(), buffer.size());
+    }
+
+    /**
+     * Streams the HTML through the rewriter into a spool file, hashed on the
+     * way. The file goes with {@link #discard()} or when the JVM exits.
+     */
+    static KbArticleText spool(Reader html, KbHtmlRewriter rewriter, UnaryOperator<String> references)
+            throws IOException {
+        Path file = Files.createTempFile("kb-text", ".json");
+        file.toFile().deleteOnExit();
+
+        MessageDigest digest = KbHashes.newDigest();
+        try (Writer out = new JsonStringWriter(new OutputStreamWriter(
+                new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), digest),
+                StandardCharsets.UTF_8))) {
+            rewriter.rewrite(html, out, references);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return new KbArticleText(file, Files.size(file), KbHashes.hex(digest.digest()));
+    }
+
+    long length() {
+        return length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        if (file != null) {
+            Files.copy(file, out);
+            return;
+        }
+        out.write(bytes, 0, (int) length);
+    }
+
+    InputStream getContent() throws IOException {
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(bytes, 0, (int) length);
+    }
+
+    String hash() {
+        return hash != null ? hash : KbHashes.sha256(bytes, 0, (int) length);
+    }
+
+    /**
+     * Deletes the spool file once the request is answered, nothing to do for
+     * a text held in memory.
+     */
+    void discard() {
+        if (file != null) {
+            file.toFile().delete();
+        }
+    }
+
+    /**
+     * Grows like any ByteArrayOutputStream, hands out its array instead of a
+     * copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(16 * 1024);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Escapes quotes, backslashes and control characters on the way through.
+     */
+    private static class JsonStringWriter extends Writer {
+
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final Writer out;
+
+        JsonStringWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write("\\u00");
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xf]);
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    out.write(cbuf, start, i - start);
+                    write(c);
+                    start = i + 1;
+                }
+            }
+            out.write(cbuf, start, off + len - start);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                char c = str.charAt(i);
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    out.write(str, start, i - start);
+                    write(c);
+                    start = i + 1;
+                }
+            }
+            out.write(str, start, off + len - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.plane.files.demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking transport for the Table and Attachment API. Requests return
+ * futures completed on the client's I/O threads, so callers must not block in
+ * the continuations they attach directly.
+ */
+class KbAsyncTransport implements KbTransport, Closeable {
+
+    protected static Logger log = LoggerFactory.getLogger(KbAsyncTransport.class);
+
+    private final CloseableHttpAsyncClient client;
+
+    KbAsyncTransport(CloseableHttpAsyncClient client) {
+        this.client = client;
+        this.client.start();
+    }
+
+    /**
+     * An async client with up to maxConnections requests in flight, sending the
+     * Basic credentials with every request.
+     */
+    static KbAsyncTransport basicAuth(String user, String pass, int maxConnections) {
+
+        String credentials = Base64.getEncoder().encodeToString((user + ":" + pass).getBytes(StandardCharsets.UTF_8));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(KbHttpClients.DEFAULT_TIMEOUT_MILLIS)
+                .setConnectTimeout(KbHttpClients.DEFAULT_TIMEOUT_MILLIS)
+                .setSocketTimeout(KbHttpClients.DEFAULT_TIMEOUT_MILLIS).build();
+
+        log.debug("Async client, max connections {}", maxConnections);
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "kb-http-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        return new KbAsyncTransport(HttpAsyncClients.custom().setThreadFactory(factory).setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultHeaders(
+                        Collections.singletonList(new BasicHeader(HttpHeaders.AUTHORIZATION, "Basic " + credentials)))
+                .setDefaultRequestConfig(requestConfig).build());
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        client.execute(request, new FutureCallback<HttpResponse>() {
+
+            @Override
+            public void completed(HttpResponse response) {
+                log.info("Response status: {}", response.getStatusLine().getStatusCode());
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.completeExceptionally(new CancellationException(request.getRequestLine().toString()));
+            }
+        });
+
+        return future;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+}
@@ -0,0 +1,316 @@
+package com.plane.files.demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs Table API requests into ServiceNow Batch API calls. A batch is sent
+ * once it holds batchSize requests or lingerMillis after its first request,
+ * whichever comes first, and each serviced request completes the future of
+ * its caller with the status and body it would have had on its own.
+ * Attachment uploads and anything else outside the Table API go straight to
+ * the delegate, as do bodies above MAX_BODY_BYTES or that can only be read
+ * once, such as the text of a large article, which a batch would have to
+ * hold in memory. A call that is waited for in the calling thread goes
+ * straight to the delegate too, it has nothing to share a batch with.
+ */
+class KbBatchTransport implements KbTransport, Closeable {
+
+    protected static Logger log = LoggerFactory.getLogger(KbBatchTransport.class);
+
+    public static final long DEFAULT_LINGER_MILLIS = 50;
+
+    static final String BATCH_API_PATH = "/api/now/v1/batch";
+
+    static final String TABLE_API_PATH = KbKnowledgeAPI.API_PATH + "table/";
+
+    /** lookups, category and record creates fit, article texts mostly not */
+    static final long MAX_BODY_BYTES = 64 * 1024;
+
+    private final String instance;
+
+    private final KbTransport delegate;
+
+    private final int batchSize;
+
+    private final long lingerMillis;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final ScheduledExecutorService timer;
+
+    /** sends the batches the timer cuts, so one batch does not hold up the next */
+    private final ExecutorService sender = Executors
+            .newCachedThreadPool(KbImportPipeline.daemonThreads("kb-batch-send"));
+
+    private List<Pending> queue = new ArrayList<>();
+
+    private ScheduledFuture<?> lingerTask;
+
+    KbBatchTransport(String instance, KbTransport delegate, int batchSize, long lingerMillis) {
+        if (batchSize < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Batch size must be positive and linger time not negative");
+        }
+        this.instance = instance;
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kb-batch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+
+        if (!isBatched(request)) {
+            return delegate.execute(request);
+        }
+
+        Pending pending;
+        try {
+            pending = new Pending(Long.toString(ids.incrementAndGet()), request);
+        } catch (IOException e) {
+            return KbKnowledgeAPI.failed(e);
+        }
+
+        List<Pending> full = null;
+        synchronized (this) {
+            queue.add(pending);
+            if (queue.size() >= batchSize) {
+                full = drain();
+            } else if (queue.size() == 1) {
+                lingerTask = timer.schedule(this::flushOnSender, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        }
+
+        return pending.future;
+    }
+
+    @Override
+    public HttpResponse executeAndWait(HttpUriRequest request) throws IOException {
+        return delegate.executeAndWait(request);
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return delegate.isBlocking();
+    }
+
+    static boolean isBatched(HttpUriRequest request) {
+        if (!request.getURI().getRawPath().startsWith(TABLE_API_PATH)) {
+            return false;
+        }
+
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity()
+                : null;
+        return entity == null || (entity.isRepeatable() && !entity.isStreaming() && entity.getContentLength() >= 0
+                && entity.getContentLength() <= MAX_BODY_BYTES);
+    }
+
+    void flush() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void flushOnSender() {
+        try {
+            sender.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // closing, the batch goes out from here
+            flush();
+        }
+    }
+
+    private List<Pending> drain() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        List<Pending> batch = queue;
+        queue = new ArrayList<>();
+        return batch;
+    }
+
+    private void send(List<Pending> batch) {
+
+        HttpPost post;
+        try {
+            post = batchRequest(batch);
+        } catch (IOException e) {
+            batch.forEach(p -> p.future.completeExceptionally(e));
+            return;
+        }
+
+        log.debug("Sending batch of {} requests", batch.size());
+
+        delegate.execute(post).whenComplete((response, e) -> {
+            if (e != null) {
+                batch.forEach(p -> p.future.completeExceptionally(e));
+                return;
+            }
+            try {
+                dispatch(batch, response);
+            } catch (IOException | RuntimeException ex) {
+                batch.forEach(p -> p.future.completeExceptionally(ex));
+            } finally {
+                KbHttpClients.release(response);
+            }
+        });
+    }
+
+    private HttpPost batchRequest(List<Pending> batch) throws IOException {
+
+        ObjectNode root = mapper.createObjectNode();
+        root.put("batch_request_id", batch.get(0).id);
+
+        ArrayNode requests = root.putArray("rest_requests");
+        for (Pending p : batch) {
+            ObjectNode r = requests.addObject();
+            r.put("id", p.id);
+            r.put("method", p.method);
+            r.put("url", p.url);
+
+            ArrayNode headers = r.putArray("headers");
+            headers.addObject().put("name", "Content-Type").put("value", ContentType.APPLICATION_JSON.getMimeType());
+            headers.addObject().put("name", "Accept").put("value", ContentType.APPLICATION_JSON.getMimeType());
+
+            if (p.body != null) {
+                r.put("body", p.body);
+            }
+        }
+
+        HttpPost post = new HttpPost(instance + BATCH_API_PATH);
+        post.addHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
+        post.setEntity(new StringEntity(mapper.writeValueAsString(root), ContentType.APPLICATION_JSON));
+
+        return post;
+    }
+
+    private void dispatch(List<Pending> batch, HttpResponse response) throws IOException {
+
+        int status = response.getStatusLine().getStatusCode();
+        if (status == 429 || status == 503) {
+            // nothing in the batch ran, each call gets the answer and its retry on its own
+            for (Pending p : batch) {
+                BasicHttpResponse single = new BasicHttpResponse(response.getStatusLine());
+                single.setHeaders(response.getHeaders("Retry-After"));
+                p.future.complete(single);
+            }
+            return;
+        }
+        if (status < 200 || status >= 300) {
+            throw new IOException("Batch request failed, server response code " + status);
+        }
+
+        Map<String, Pending> byId = new HashMap<>();
+        batch.forEach(p -> byId.put(p.id, p));
+
+        HttpEntity entity = response.getEntity();
+        JsonNode root;
+        try (InputStream in = entity != null ? entity.getContent() : null) {
+            root = in != null ? mapper.readTree(in) : mapper.createObjectNode();
+        }
+
+        for (JsonNode serviced : root.path("serviced_requests")) {
+            Pending p = byId.remove(serviced.path("id").asText());
+            if (p == null) {
+                continue;
+            }
+
+            BasicHttpResponse single = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                    serviced.path("status_code").asInt(), serviced.path("status_text").asText());
+
+            String body = serviced.path("body").asText();
+            if (!body.isEmpty()) {
+                single.setEntity(new ByteArrayEntity(Base64.getDecoder().decode(body), ContentType.APPLICATION_JSON));
+            }
+
+            p.future.complete(single);
+        }
+
+        byId.values().forEach(p -> p.future
+                .completeExceptionally(new IOException("Request not serviced in batch: " + p.method + " " + p.url)));
+    }
+
+    @Override
+    public void close() {
+        flush();
+        timer.shutdown();
+        sender.shutdown();
+    }
+
+    private static class Pending {
+
+        private final String id;
+
+        private final String method;
+
+        private final String url;
+
+        private final String body;
+
+        private final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        Pending(String id, HttpUriRequest request) throws IOException {
+            this.id = id;
+            this.method = request.getMethod();
+
+            String query = request.getURI().getRawQuery();
+            this.url = request.getURI().getRawPath() + (query != null ? "?" + query : "");
+
+            HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                    ? ((HttpEntityEnclosingRequest) request).getEntity()
+                    : null;
+            this.body = entity != null ? Base64.getEncoder().encodeToString(EntityUtils.toByteArray(entity)) : null;
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Runs requests on the blocking client in the calling thread and returns a
+ * completed future.
+ */
+class KbBlockingTransport implements KbTransport {
+
+    private final HttpClient httpClient;
+
+    KbBlockingTransport(HttpClient httpClient) {
+        if (httpClient == null) {
+            throw new IllegalStateException("HttpClient not set");
+        }
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+        try {
+            return CompletableFuture.completedFuture(httpClient.execute(request));
+        } catch (IOException | RuntimeException e) {
+            return KbKnowledgeAPI.failed(e);
+        }
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.plane.files.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Answers every request in memory, nothing is sent. A lookup finds nothing,
+ * as on an instance that has none of the corpus yet, a create or update
+ * succeeds with a new sys_id and a batch is answered request by request.
+ * Counts the requests and request bytes that would have gone over the wire
+ * per endpoint.
+ */
+class KbDryRunTransport implements KbTransport {
+
+    private static final byte[] NOT_FOUND = "{\"result\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> bytes = new ConcurrentHashMap<>();
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+        String endpoint = KbMetrics.endpointOf(request);
+        requests.computeIfAbsent(endpoint, e -> new LongAdder()).increment();
+
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity()
+                : null;
+        if (entity != null && entity.getContentLength() > 0) {
+            bytes.computeIfAbsent(endpoint, e -> new LongAdder()).add(entity.getContentLength());
+        }
+
+        try {
+            if (request.getURI().getPath().equals(KbBatchTransport.BATCH_API_PATH)) {
+                return CompletableFuture.completedFuture(response(HttpStatus.SC_OK, "OK", batch(entity)));
+            }
+            return CompletableFuture.completedFuture(answer(request.getMethod(), request.getURI().getPath()));
+        } catch (IOException | RuntimeException e) {
+            return KbKnowledgeAPI.failed(e);
+        }
+    }
+
+    private HttpResponse answer(String method, String path) {
+        switch (method) {
+        case "GET":
+            return response(HttpStatus.SC_OK, "OK", NOT_FOUND);
+        case "POST":
+            return response(HttpStatus.SC_CREATED, "Created", result(String.format("%032x", created.incrementAndGet())));
+        default:
+            // an update answers with the sys_id it was sent to
+            return response(HttpStatus.SC_OK, "OK", result(path.substring(path.lastIndexOf('/') + 1)));
+        }
+    }
+
+    private byte[] batch(HttpEntity entity) throws IOException {
+        JsonNode batch;
+        try (InputStream in = entity.getContent()) {
+            batch = mapper.readTree(in);
+        }
+
+        ObjectNode root = mapper.createObjectNode();
+        root.put("batch_request_id", batch.path("batch_request_id").asText());
+        ArrayNode serviced = root.putArray("serviced_requests");
+
+        for (JsonNode request : batch.path("rest_requests")) {
+            String url = request.path("url").asText();
+            int q = url.indexOf('?');
+            HttpResponse response = answer(request.path("method").asText(), q < 0 ? url : url.substring(0, q));
+
+            ObjectNode item = serviced.addObject();
+            item.put("id", request.path("id").asText());
+            item.put("status_code", response.getStatusLine().getStatusCode());
+            item.put("status_text", response.getStatusLine().getReasonPhrase());
+            try (InputStream in = response.getEntity().getContent()) {
+                item.put("body", Base64.getEncoder().encodeToString(readAll(in)));
+            }
+        }
+
+        root.putArray("unserviced_requests");
+        return mapper.writeValueAsBytes(root);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] result(String sysId) {
+        return ("{\"result\":{\"sys_id\":\"" + sysId + "\"}}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static HttpResponse response(int status, String reason, byte[] body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+    long getRequests() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Requests by endpoint as the instance would have seen them, one per
+     * batch when batching.
+     */
+    Map<String, Long> getRequestsByEndpoint() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((endpoint, n) -> counts.put(endpoint, n.sum()));
+        return counts;
+    }
+
+    Map<String, Long> getBytesByEndpoint() {
+        Map<String, Long> counts = new TreeMap<>();
+        bytes.forEach((endpoint, n) -> counts.put(endpoint, n.sum()));
+        return counts;
+    }
+
+}
@@ -0,0 +1,274 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks a folder and every folder below it on a thread of its own and hands
+ * the files over through a bounded queue, the import starts with the first
+ * file found and the walk waits while the import is behind. Memory does not
+ * grow with the size of the tree.
+ *
+ * A file is handed over when its path relative to the folder matches one of
+ * the include globs and none of the exclude globs, e.g. include
+ * {@code **.html} and exclude {@code archive/**}. A folder matching an
+ * exclude glob is not entered. When the import is split into shards only the
+ * files of this shard are handed over.
+ */
+class KbFileWalker implements Iterator<Path>, AutoCloseable {
+
+    protected static Logger log = LoggerFactory.getLogger(KbFileWalker.class);
+
+    public static final String DEFAULT_INCLUDE = "**" + KbKnowledgeAPI.DEFAULT_EXTENSSION;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** put after the last file */
+    private static final Path END = Paths.get("");
+
+    private final Path root;
+
+    private final Filter filter;
+
+    private final BlockingQueue<Path> queue;
+
+    private final Thread thread;
+
+    private final AtomicLong found = new AtomicLong();
+
+    private volatile boolean closed;
+
+    private Path next;
+
+    /**
+     * Globs matched against the path relative to the walked folder, and the
+     * shard of the files to keep. A file belongs to the shard its relative
+     * path hashes to, the same in every process that walks the same folder.
+     */
+    static class Filter {
+
+        private final List<PathMatcher> includes;
+
+        private final List<PathMatcher> excludes;
+
+        private final int shardIndex;
+
+        private final int shardCount;
+
+        Filter(List<String> includes, List<String> excludes) {
+            if (includes.isEmpty()) {
+                throw new IllegalArgumentException("At least one include pattern is needed");
+            }
+            this.includes = matchers(includes);
+            this.excludes = matchers(excludes);
+            this.shardIndex = 0;
+            this.shardCount = 1;
+        }
+
+        private Filter(Filter filter, int shardIndex, int shardCount) {
+            if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid shard %d of %d", shardIndex, shardCount));
+            }
+            this.includes = filter.includes;
+            this.excludes = filter.excludes;
+            this.shardIndex = shardIndex;
+            this.shardCount = shardCount;
+        }
+
+        /**
+         * The same globs keeping only the files of shard shardIndex of
+         * shardCount, counted from 0.
+         */
+        Filter shard(int shardIndex, int shardCount) {
+            return new Filter(this, shardIndex, shardCount);
+        }
+
+        int getShardIndex() {
+            return shardIndex;
+        }
+
+        int getShardCount() {
+            return shardCount;
+        }
+
+        static Filter defaults() {
+            return new Filter(Collections.singletonList(DEFAULT_INCLUDE), Collections.emptyList());
+        }
+
+        private static List<PathMatcher> matchers(List<String> globs) {
+            FileSystem fs = Paths.get("").getFileSystem();
+            return globs.stream().map(glob -> fs.getPathMatcher("glob:" + glob)).collect(Collectors.toList());
+        }
+
+        boolean isIncluded(Path relative) {
+            return matches(includes, relative) && !isExcluded(relative) && owns(relative);
+        }
+
+        /**
+         * Whether the file belongs to this shard, by the CRC-32 of its path
+         * with / separators.
+         */
+        boolean owns(Path relative) {
+            if (shardCount == 1) {
+                return true;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(relative.toString().replace('\\', '/').getBytes(StandardCharsets.UTF_8));
+            return crc.getValue() % shardCount == shardIndex;
+        }
+
+        boolean isExcluded(Path relative) {
+            return matches(excludes, relative);
+        }
+
+        private static boolean matches(List<PathMatcher> matchers, Path relative) {
+            for (PathMatcher m : matchers) {
+                if (m.matches(relative)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    KbFileWalker(Path root, Filter filter, int queueCapacity) {
+        this.root = root;
+        this.filter = filter;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = KbImportPipeline.daemonThreads("kb-walk").newThread(this::walk);
+        this.thread.start();
+    }
+
+    private void walk() {
+        try {
+            walk(root, filter, file -> {
+                try {
+                    queue.put(file);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                found.incrementAndGet();
+                return !closed;
+            });
+        } catch (IOException e) {
+            log.error("Can not walk {}", root, e);
+        } finally {
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the folder in the calling thread and hands every file over to
+     * the sink until it returns false.
+     */
+    static void walk(Path root, Filter filter, Predicate<Path> sink) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && filter.isExcluded(root.relativize(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && filter.isIncluded(root.relativize(file))) {
+                    return sink.test(file) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // an unreadable folder does not stop the import of the others
+                log.error("Can not read {}", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Number of files the walk would hand over, without holding them. An
+     * interrupt stops the count where it is.
+     */
+    static long count(Path root, Filter filter) throws IOException {
+        AtomicLong count = new AtomicLong();
+        walk(root, filter, file -> {
+            count.incrementAndGet();
+            return !Thread.currentThread().isInterrupted();
+        });
+        return count.get();
+    }
+
+    /**
+     * Waits for the walk to find the next file or to end.
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                next = END;
+            }
+        }
+        return next != END;
+    }
+
+    @Override
+    public Path next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Path file = next;
+        next = null;
+        return file;
+    }
+
+    long getFound() {
+        return found.get();
+    }
+
+    /**
+     * Stops the walk, files it found and not handed over are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        queue.clear();
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 content hashes as lower case hex, files are read in chunks.
+ */
+final class KbHashes {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private KbHashes() {
+    }
+
+    static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    static String sha256(byte[] content) {
+        return hex(newDigest().digest(content));
+    }
+
+    static String sha256(byte[] content, int offset, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(content, offset, length);
+        return hex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+}
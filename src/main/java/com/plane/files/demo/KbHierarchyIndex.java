@@ -0,0 +1,50 @@
+package com.plane.files.demo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * kb_knowledge_base sys_ids by title and kb_category sys_ids by full_category,
+ * read in bulk before the import. Once loaded the index is authoritative, a
+ * title or category that is not in it does not exist on the instance unless
+ * it was created by this run.
+ */
+class KbHierarchyIndex {
+
+    private final Map<String, String> knowledgeBases = new ConcurrentHashMap<>();
+
+    private final Map<String, String> categories = new ConcurrentHashMap<>();
+
+    /**
+     * @return sys_id of the knowledge base or an empty string, as a Table API
+     *         lookup without a match would
+     */
+    String getKnowledgeBaseId(String title) {
+        return knowledgeBases.getOrDefault(title, "");
+    }
+
+    String getCategoryId(String fullCategory) {
+        return categories.getOrDefault(fullCategory, "");
+    }
+
+    void putKnowledgeBase(String title, String sysId) {
+        if (title != null && sysId != null) {
+            knowledgeBases.putIfAbsent(title, sysId);
+        }
+    }
+
+    void putCategory(String fullCategory, String sysId) {
+        if (fullCategory != null && sysId != null) {
+            categories.putIfAbsent(fullCategory, sysId);
+        }
+    }
+
+    int getKnowledgeBaseCount() {
+        return knowledgeBases.size();
+    }
+
+    int getCategoryCount() {
+        return categories.size();
+    }
+
+}
@@ -0,0 +1,563 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import org.jsoup.parser.Parser;
+
+/**
+ * Rewrites an HTML text as it is read, without building a DOM. Elements
+ * matching the patterns are dropped with everything inside them, and the img
+ * src and href values are handed to a function that may replace them. The
+ * text goes through a fixed buffer, so memory is bounded by the buffer and
+ * the longest single tag rather than by the size of the page.
+ *
+ * Patterns are the simple selectors {@code #id}, {@code .class} and
+ * {@code tag}. A matched element ends at the end tag of the same name at the
+ * same nesting, the way well-formed pages end their elements. Comments and
+ * the contents of script, style, title and textarea elements are copied as
+ * they are.
+ */
+final class KbHtmlRewriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern SIMPLE_SELECTOR = Pattern.compile("[#.]?[\\w-]+");
+
+    private static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList("area", "base", "br", "col",
+            "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<>(
+            Arrays.asList("script", "style", "title", "textarea"));
+
+    private final List<String> patterns;
+
+    /** keeps the matched elements instead of dropping them */
+    private final boolean keep;
+
+    KbHtmlRewriter(String... deletePatterns) {
+        this(false, deletePatterns);
+    }
+
+    private KbHtmlRewriter(boolean keep, String... patterns) {
+        for (String pattern : patterns) {
+            if (!SIMPLE_SELECTOR.matcher(pattern).matches()) {
+                throw new IllegalArgumentException("Only #id, .class and tag patterns can be streamed: " + pattern);
+            }
+        }
+        this.keep = keep;
+        this.patterns = Arrays.asList(patterns);
+    }
+
+    /**
+     * Writes only the elements matching the patterns, e.g. the parts of a
+     * page its metadata is read from.
+     */
+    static KbHtmlRewriter keeping(String... patterns) {
+        return new KbHtmlRewriter(true, patterns);
+    }
+
+    /**
+     * Copies the text to the writer, a reference is replaced by what the
+     * function returns for it unless that is null.
+     */
+    void rewrite(Reader in, Writer out, UnaryOperator<String> references) throws IOException {
+        new Run(in, out, references).run();
+    }
+
+    /**
+     * Hands over the references of the elements that would be written, in
+     * document order.
+     */
+    void scan(Reader in, Consumer<String> references) throws IOException {
+        new Run(in, null, value -> {
+            references.accept(value);
+            return null;
+        }).run();
+    }
+
+    /**
+     * One pass over a text.
+     */
+    private final class Run {
+
+        private final Reader in;
+
+        private final Writer out;
+
+        private final UnaryOperator<String> references;
+
+        private final char[] buf = new char[BUFFER_SIZE];
+
+        private int pos;
+
+        private int limit;
+
+        private final StringBuilder tag = new StringBuilder();
+
+        /** name of the element a pattern matched while inside it */
+        private String matched;
+
+        private int depth;
+
+        Run(Reader in, Writer out, UnaryOperator<String> references) {
+            this.in = in;
+            this.out = out;
+            this.references = references;
+        }
+
+        void run() throws IOException {
+            while (fill()) {
+                int start = pos;
+                while (pos < limit && buf[pos] != '<') {
+                    pos++;
+                }
+                if (isOutput()) {
+                    write(buf, start, pos - start);
+                }
+
+                if (pos < limit) {
+                    pos++;
+                    markup();
+                }
+            }
+        }
+
+        private void markup() throws IOException {
+            int c = peek();
+            if (c == '!' || c == '?') {
+                declaration();
+            } else if (c == '/') {
+                pos++;
+                endTag();
+            } else if (isLetter(c)) {
+                startTag();
+            } else if (isOutput()) {
+                // a stray '<' is text
+                write('<');
+            }
+        }
+
+        private void declaration() throws IOException {
+            boolean output = isOutput();
+            tag.setLength(0);
+            tag.append('<').append((char) read());
+
+            int c = read();
+            if (c == '-' && peek() == '-') {
+                tag.append('-').append((char) read());
+                emit(tag, output);
+                comment(output);
+                return;
+            }
+
+            for (; c >= 0; c = read()) {
+                tag.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+            }
+            emit(tag, output);
+        }
+
+        private void comment(boolean output) throws IOException {
+            int dashes = 0;
+            for (int c = read(); c >= 0; c = read()) {
+                if (output) {
+                    write((char) c);
+                }
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+        private void startTag() throws IOException {
+            tag.setLength(0);
+            tag.append('<');
+
+            // quotes only count around an attribute value, a '>' inside one does not end the tag
+            int quote = 0;
+            boolean value = false;
+            boolean complete = false;
+            for (int c = read(); c >= 0; c = read()) {
+                tag.append((char) c);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '>') {
+                    complete = true;
+                    break;
+                } else if (c == '=') {
+                    value = true;
+                } else if (value && (c == '"' || c == '\'')) {
+                    quote = c;
+                    value = false;
+                } else if (!Character.isWhitespace(c)) {
+                    value = false;
+                }
+            }
+
+            if (!complete) {
+                emit(tag, isOutput());
+                return;
+            }
+
+            Tag t = new Tag(tag);
+            boolean opens = !t.selfClosing && !VOID_ELEMENTS.contains(t.name);
+
+            boolean output;
+            if (depth == 0 && t.matchesAny(patterns)) {
+                if (opens) {
+                    matched = t.name;
+                    depth = 1;
+                    output = isOutput();
+                } else {
+                    // only this one tag is dropped or kept
+                    output = keep;
+                }
+            } else {
+                if (depth > 0 && opens && t.name.equals(matched)) {
+                    depth++;
+                }
+                output = isOutput();
+            }
+
+            if (output) {
+                write(references != null ? t.rewrite(references) : tag);
+            }
+
+            if (opens && RAW_TEXT_ELEMENTS.contains(t.name)) {
+                rawText(t.name);
+            }
+        }
+
+        private void endTag() throws IOException {
+            if (!isLetter(peek())) {
+                // "</>" and the like carry no element
+                declarationLike();
+                return;
+            }
+
+            tag.setLength(0);
+            tag.append("</");
+            int nameStart = tag.length();
+            for (int c = peek(); c >= 0 && isNameChar((char) c); c = peek()) {
+                tag.append((char) read());
+            }
+            endTag(tag.substring(nameStart).toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Reads the rest of an end tag whose name is in the tag buffer.
+         */
+        private void endTag(String name) throws IOException {
+            for (int c = read(); c >= 0; c = read()) {
+                tag.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+            }
+
+            boolean output = isOutput();
+            if (depth > 0 && name.equals(matched)) {
+                depth--;
+            }
+            emit(tag, output);
+        }
+
+        private void declarationLike() throws IOException {
+            tag.setLength(0);
+            tag.append("</");
+            for (int c = read(); c >= 0; c = read()) {
+                tag.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+            }
+            emit(tag, isOutput());
+        }
+
+        /**
+         * Copies the contents of a script or style element up to its end tag.
+         */
+        private void rawText(String name) throws IOException {
+            String close = "</" + name;
+            tag.setLength(0);
+
+            for (int c = read(); c >= 0; c = read()) {
+                int m = tag.length();
+                if (Character.toLowerCase((char) c) == close.charAt(m)) {
+                    tag.append((char) c);
+                    if (tag.length() < close.length()) {
+                        continue;
+                    }
+
+                    int next = peek();
+                    if (next < 0 || next == '>' || next == '/' || Character.isWhitespace(next)) {
+                        endTag(name);
+                        return;
+                    }
+                } else {
+                    emit(tag, isOutput());
+                    tag.setLength(0);
+                    if (c == '<') {
+                        tag.append('<');
+                        continue;
+                    }
+                    if (isOutput()) {
+                        write((char) c);
+                    }
+                    continue;
+                }
+
+                // "</scriptx" is text
+                emit(tag, isOutput());
+                tag.setLength(0);
+            }
+
+            emit(tag, isOutput());
+        }
+
+        private boolean isOutput() {
+            return keep ? depth > 0 : depth == 0;
+        }
+
+        private boolean fill() throws IOException {
+            while (pos >= limit) {
+                int n = in.read(buf, 0, buf.length);
+                if (n < 0) {
+                    pos = 0;
+                    limit = 0;
+                    return false;
+                }
+                pos = 0;
+                limit = n;
+            }
+            return true;
+        }
+
+        private int read() throws IOException {
+            return fill() ? buf[pos++] : -1;
+        }
+
+        private int peek() throws IOException {
+            return fill() ? buf[pos] : -1;
+        }
+
+        private void emit(CharSequence s, boolean output) throws IOException {
+            if (output) {
+                write(s);
+            }
+        }
+
+        private void write(char[] b, int off, int len) throws IOException {
+            if (out != null && len > 0) {
+                out.write(b, off, len);
+            }
+        }
+
+        private void write(char c) throws IOException {
+            if (out != null) {
+                out.write(c);
+            }
+        }
+
+        private void write(CharSequence s) throws IOException {
+            if (out != null) {
+                out.append(s);
+            }
+        }
+    }
+
+    /**
+     * A start tag read whole, with the spans of the attributes the rewriter
+     * looks at.
+     */
+    private static final class Tag {
+
+        private final CharSequence text;
+
+        private final String name;
+
+        private final boolean selfClosing;
+
+        private final List<Attribute> attributes = new ArrayList<>();
+
+        Tag(CharSequence text) {
+            this.text = text;
+
+            int n = text.length();
+            int i = 1;
+            while (i < n && isNameChar(text.charAt(i))) {
+                i++;
+            }
+            this.name = text.subSequence(1, i).toString().toLowerCase(Locale.ROOT);
+            this.selfClosing = n >= 2 && text.charAt(n - 2) == '/';
+
+            // the last character is the closing '>'
+            n--;
+            while (i < n) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c) || c == '/') {
+                    i++;
+                    continue;
+                }
+
+                int attrStart = i;
+                while (i < n && !Character.isWhitespace(text.charAt(i)) && "=>/".indexOf(text.charAt(i)) < 0) {
+                    i++;
+                }
+                String attr = text.subSequence(attrStart, i).toString().toLowerCase(Locale.ROOT);
+
+                while (i < n && Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+                if (i >= n || text.charAt(i) != '=') {
+                    continue;
+                }
+
+                i++;
+                while (i < n && Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+
+                if (i < n && (text.charAt(i) == '"' || text.charAt(i) == '\'')) {
+                    char quote = text.charAt(i);
+                    int valueStart = i + 1;
+                    i = valueStart;
+                    while (i < n && text.charAt(i) != quote) {
+                        i++;
+                    }
+                    attributes.add(new Attribute(attr, valueStart, i, true));
+                    i++;
+                } else {
+                    int valueStart = i;
+                    while (i < n && !Character.isWhitespace(text.charAt(i))) {
+                        i++;
+                    }
+                    attributes.add(new Attribute(attr, valueStart, i, false));
+                }
+            }
+        }
+
+        boolean matchesAny(List<String> patterns) {
+            for (String pattern : patterns) {
+                if (matches(pattern)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(String pattern) {
+            if (pattern.charAt(0) == '#') {
+                String id = value("id");
+                return id != null && id.equals(pattern.substring(1));
+            }
+            if (pattern.charAt(0) == '.') {
+                String classes = value("class");
+                if (classes == null) {
+                    return false;
+                }
+                for (String c : classes.split("\\s+")) {
+                    if (c.equalsIgnoreCase(pattern.substring(1))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return name.equalsIgnoreCase(pattern);
+        }
+
+        private String value(String attr) {
+            for (Attribute a : attributes) {
+                if (a.name.equals(attr)) {
+                    return a.value(text);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The tag with the references the function replaces, the tag itself
+         * when it replaces none.
+         */
+        CharSequence rewrite(UnaryOperator<String> references) {
+            StringBuilder rewritten = null;
+            int copied = 0;
+
+            for (Attribute a : attributes) {
+                if (!a.name.equals("href") && !(a.name.equals("src") && name.equals("img"))) {
+                    continue;
+                }
+
+                String replacement = references.apply(a.value(text));
+                if (replacement == null) {
+                    continue;
+                }
+
+                if (rewritten == null) {
+                    rewritten = new StringBuilder(text.length() + replacement.length());
+                }
+                int start = a.quoted ? a.start - 1 : a.start;
+                int end = a.quoted ? a.end + 1 : a.end;
+                rewritten.append(text, copied, start).append('"').append(escape(replacement)).append('"');
+                copied = end;
+            }
+
+            if (rewritten == null) {
+                return text;
+            }
+            return rewritten.append(text, copied, text.length());
+        }
+
+        private static String escape(String value) {
+            return value.replace("&", "&amp;").replace("\"", "&quot;");
+        }
+    }
+
+    private static final class Attribute {
+
+        private final String name;
+
+        private final int start;
+
+        private final int end;
+
+        private final boolean quoted;
+
+        Attribute(String name, int start, int end, boolean quoted) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.quoted = quoted;
+        }
+
+        String value(CharSequence text) {
+            String value = text.subSequence(start, end).toString();
+            return value.indexOf('&') < 0 ? value : Parser.unescapeEntities(value, true);
+        }
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_';
+    }
+
+}
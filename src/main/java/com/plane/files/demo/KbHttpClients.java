@@ -0,0 +1,96 @@
+package com.plane.files.demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the HTTP client shared by the Table and Attachment API calls.
+ */
+class KbHttpClients {
+
+    protected static Logger log = LoggerFactory.getLogger(KbHttpClients.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 30;
+
+    public static final long DEFAULT_IDLE_SECONDS = 30;
+
+    public static final int DEFAULT_TIMEOUT_MILLIS = 60_000;
+
+    private KbHttpClients() {
+    }
+
+    /**
+     * A pooled client that keeps connections alive between requests and sends
+     * the Basic credentials with every request instead of waiting for a 401.
+     * All connections go to one instance, so the per route limit equals the
+     * total.
+     */
+    static HttpClient basicAuth(String user, String pass, int maxConnections, long keepAliveSeconds,
+            long idleSeconds) {
+
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+        cm.setMaxTotal(maxConnections);
+        cm.setDefaultMaxPerRoute(maxConnections);
+        cm.setValidateAfterInactivity(2_000);
+
+        String credentials = Base64.getEncoder().encodeToString((user + ":" + pass).getBytes(StandardCharsets.UTF_8));
+
+        ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            long max = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+            return duration > 0 ? Math.min(duration, max) : max;
+        };
+
+        RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(DEFAULT_TIMEOUT_MILLIS)
+                .setConnectTimeout(DEFAULT_TIMEOUT_MILLIS).setSocketTimeout(DEFAULT_TIMEOUT_MILLIS).build();
+
+        log.debug("Connection pool size {}, keep-alive {}s, idle eviction {}s", maxConnections, keepAliveSeconds,
+                idleSeconds);
+
+        return HttpClientBuilder.create().setConnectionManager(cm)
+                .setDefaultHeaders(
+                        Collections.singletonList(new BasicHeader(HttpHeaders.AUTHORIZATION, "Basic " + credentials)))
+                .setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAlive).evictExpiredConnections()
+                .evictIdleConnections(idleSeconds, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Reads whatever is left of the response body and closes the response so
+     * the connection goes back to the pool on every path, errors included.
+     */
+    static void release(HttpResponse response) {
+        if (response == null) {
+            return;
+        }
+
+        EntityUtils.consumeQuietly(response.getEntity());
+
+        if (response instanceof Closeable) {
+            try {
+                ((Closeable) response).close();
+            } catch (IOException e) {
+                log.debug("Exception closing response", e);
+            }
+        }
+    }
+
+}
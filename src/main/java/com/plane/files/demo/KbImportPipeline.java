@@ -0,0 +1,421 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Staged import of a folder of HTML files.
+ *
+ * Every article goes through parse (CPU), create (I/O), prune (CPU), resolve
+ * references (I/O), rewrite (CPU) and patch (I/O). CPU stages run on one
+ * pool, Table/Attachment API calls on a separate I/O pool, and a stage only
+ * ever runs on its own pool. The walk waits while the number of articles in
+ * flight is at its cap, so a large folder does not queue up unbounded work.
+ *
+ * Given the components of a {@link KbLinkGraph} a component is scheduled
+ * once the components it links to are done, components that do not depend
+ * on each other run side by side.
+ *
+ * With an async transport the create, resolve and patch stages compose the
+ * futures of the requests instead of holding an I/O thread while they run.
+ * In that mode the create and patch stages always use the API's own calls.
+ */
+public class KbImportPipeline implements AutoCloseable {
+
+    protected static Logger log = LoggerFactory.getLogger(KbImportPipeline.class);
+
+    public static final int DEFAULT_CPU_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    public static final int DEFAULT_IO_WORKERS = 8;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final KbKnowledgeAPI api;
+
+    private final KbMetrics metrics;
+
+    private final ThreadPoolExecutor cpuPool;
+
+    private final ThreadPoolExecutor ioPool;
+
+    private final Semaphore inFlight;
+
+    /** every scheduled file and its article, done whatever the outcome */
+    private final Map<Path, CompletableFuture<String>> scheduled = new ConcurrentHashMap<>();
+
+    /** the contexts of scheduled files until their rewrite or failure releases them */
+    private final Map<Path, KbArticleContext> held = new ConcurrentHashMap<>();
+
+    /** articles in flight, a finished one removes itself */
+    private final Set<CompletableFuture<String>> pending = ConcurrentHashMap.newKeySet();
+
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+    private Consumer<KbArticleContext> processingFunc;
+
+    private Function<KbArticleContext, String> createKb;
+
+    private Function<KbArticleContext, String> updateKbFunc;
+
+    KbImportPipeline(KbKnowledgeAPI api, int cpuWorkers, int ioWorkers, int queueCapacity) {
+        this.api = api;
+        this.metrics = api.getMetrics();
+        this.cpuPool = newPool("kb-cpu", cpuWorkers);
+        this.ioPool = newPool("kb-io", ioWorkers);
+        this.inFlight = new Semaphore(queueCapacity);
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static ThreadPoolExecutor newPool(String name, int workers) {
+        // the in-flight limit at the intake caps what can be queued, a queued stage never
+        // runs on the thread of another pool or of the HTTP client
+        return new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                daemonThreads(name));
+    }
+
+    /**
+     * Imports the files as they come, waiting while the in-flight limit is
+     * reached, and then every file they link to.
+     */
+    void run(Iterator<Path> files, Consumer<KbArticleContext> processingFunc,
+            Function<KbArticleContext, String> createKb, Function<KbArticleContext, String> updateKbFunc)
+            throws IOException {
+        start(processingFunc, createKb, updateKbFunc);
+
+        while (files.hasNext()) {
+            admit(files.next());
+        }
+
+        awaitAll();
+    }
+
+    /**
+     * Imports the components of a link graph, each one after the components
+     * it links to, see {@link KbLinkGraph#components()}. A component is
+     * admitted once its dependencies are done, failed or not, and waits at
+     * the in-flight limit as in {@link #run(Iterator, Consumer, Function, Function)}.
+     */
+    void run(List<List<Path>> components, KbLinkGraph graph, Consumer<KbArticleContext> processingFunc,
+            Function<KbArticleContext, String> createKb, Function<KbArticleContext, String> updateKbFunc)
+            throws IOException {
+        start(processingFunc, createKb, updateKbFunc);
+
+        Map<Path, Integer> componentOf = new HashMap<>();
+        for (int i = 0; i < components.size(); i++) {
+            for (Path file : components.get(i)) {
+                componentOf.put(file.toAbsolutePath().normalize(), i);
+            }
+        }
+
+        // components are listed after the ones they link to, a dependency always has the lower index
+        AtomicInteger[] waitingFor = new AtomicInteger[components.size()];
+        List<List<Integer>> dependents = new ArrayList<>();
+        BlockingQueue<Integer> ready = new LinkedBlockingQueue<>();
+
+        for (int i = 0; i < components.size(); i++) {
+            dependents.add(new ArrayList<>());
+
+            Set<Integer> dependencies = new HashSet<>();
+            for (Path file : components.get(i)) {
+                for (Path to : graph.getLinks(file.toAbsolutePath().normalize())) {
+                    Integer j = componentOf.get(to);
+                    if (j != null && j != i) {
+                        dependencies.add(j);
+                    }
+                }
+            }
+
+            for (int j : dependencies) {
+                dependents.get(j).add(i);
+            }
+            waitingFor[i] = new AtomicInteger(dependencies.size());
+            if (dependencies.isEmpty()) {
+                ready.add(i);
+            }
+        }
+
+        for (int admitted = 0; admitted < components.size(); admitted++) {
+            int i;
+            try {
+                i = ready.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for linked files");
+            }
+
+            List<CompletableFuture<String>> articles = new ArrayList<>();
+            for (Path file : components.get(i)) {
+                admit(file);
+                // scheduled here or earlier through a link
+                articles.add(scheduled.get(file.toAbsolutePath().normalize()));
+            }
+
+            CompletableFuture.allOf(articles.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+                for (int k : dependents.get(i)) {
+                    if (waitingFor[k].decrementAndGet() == 0) {
+                        ready.add(k);
+                    }
+                }
+            });
+        }
+
+        awaitAll();
+    }
+
+    private void start(Consumer<KbArticleContext> processingFunc, Function<KbArticleContext, String> createKb,
+            Function<KbArticleContext, String> updateKbFunc) {
+        this.processingFunc = processingFunc;
+        this.createKb = createKb;
+        this.updateKbFunc = updateKbFunc;
+
+        log.info("Importing files, cpu workers {}, io workers {}", cpuPool.getCorePoolSize(),
+                ioPool.getCorePoolSize());
+    }
+
+    /**
+     * Submits a file from the intake, waiting while the in-flight limit is
+     * reached.
+     */
+    private void admit(Path path) {
+        inFlight.acquireUninterruptibly();
+
+        CompletableFuture<String> f = submit(path);
+        if (f == null) {
+            inFlight.release();
+        } else {
+            f.whenComplete((s, e) -> inFlight.release());
+        }
+    }
+
+    /**
+     * Schedules a file unless it is already scheduled. Files discovered
+     * through links are submitted from the resolve stage and are not counted
+     * against the in-flight limit, so an I/O worker never blocks on it.
+     */
+    CompletableFuture<String> submit(Path path) {
+        Path file = path.toAbsolutePath().normalize();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (scheduled.putIfAbsent(file, result) != null) {
+            return null;
+        }
+        Article article = new Article(api.contextFor(path));
+        held.put(file, article.ctx);
+        CompletableFuture<Article> parsed = CompletableFuture.completedFuture(article)
+                .thenApplyAsync(this::parse, cpuPool);
+
+        CompletableFuture<String> f;
+        if (api.isAsync()) {
+            // requests stay in flight on the async client, every stage after one is handed back to a pool
+            f = parsed.thenComposeAsync(this::createAsync, ioPool)
+                    .thenApplyAsync(this::prune, cpuPool)
+                    .thenComposeAsync(this::resolveAsync, ioPool)
+                    .thenApplyAsync(this::rewrite, cpuPool)
+                    .thenCompose(this::patchAsync);
+        } else {
+            f = parsed.thenApplyAsync(this::create, ioPool)
+                    .thenApplyAsync(this::prune, cpuPool)
+                    .thenApplyAsync(this::resolve, ioPool)
+                    .thenApplyAsync(this::rewrite, cpuPool)
+                    .thenApplyAsync(this::patch, ioPool);
+        }
+
+        CompletableFuture<String> done = f.whenComplete((s, e) -> {
+            metrics.articleDone(e != null);
+            if (e != null) {
+                // a failed stage skips the rewrite, which releases the context otherwise
+                held.remove(file, article.ctx);
+                api.release(article.ctx);
+                failures.add(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+        });
+
+        pending.add(done);
+        done.whenComplete((s, e) -> {
+            pending.remove(done);
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(s);
+            }
+        });
+
+        return done;
+    }
+
+    /**
+     * The context is the one of a scheduled article and is released by the
+     * pipeline, a context the file is given after that is not.
+     */
+    boolean holds(KbArticleContext ctx) {
+        return held.get(ctx.getPath().toAbsolutePath().normalize()) == ctx;
+    }
+
+    private void awaitAll() throws IOException {
+        // files reached through links are added while waiting
+        while (!pending.isEmpty()) {
+            for (CompletableFuture<String> f : pending) {
+                try {
+                    f.join();
+                } catch (CompletionException e) {
+                    // collected in failures
+                }
+            }
+        }
+
+        IOException failure = null;
+
+        Throwable e;
+        while ((e = failures.poll()) != null) {
+            log.error("Error creating Kb Knowledge", e);
+
+            if (failure == null) {
+                failure = new IOException("Import failed", e);
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Article parse(Article a) {
+        long start = System.nanoTime();
+        try {
+            a.ctx.getDocument();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.record(KbMetrics.PARSE, start);
+        }
+        return a;
+    }
+
+    private Article create(Article a) {
+        long start = System.nanoTime();
+        try {
+            a.ctx.setSysId(createKb != null ? createKb.apply(a.ctx) : null);
+        } finally {
+            metrics.record(KbMetrics.CREATE, start);
+        }
+        return a;
+    }
+
+    private Article prune(Article a) {
+        long start = System.nanoTime();
+        try {
+            KbProcessor.processDocument(a.ctx);
+            a.references = api.scanReferences(a.ctx);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.record(KbMetrics.PRUNE, start);
+        }
+        return a;
+    }
+
+    private Article resolve(Article a) {
+        a.ctx.setResolved(api.resolveReferences(a.ctx.getSysId(), a.references));
+        return a;
+    }
+
+    private CompletableFuture<Article> createAsync(Article a) {
+        return metrics.time(KbMetrics.CREATE, System.nanoTime(), api.createKbAsync(a.ctx)).thenApply(sysId -> {
+            a.ctx.setSysId(sysId);
+            return a;
+        });
+    }
+
+    private CompletableFuture<Article> resolveAsync(Article a) {
+        Map<String, String> resolved = new ConcurrentHashMap<>();
+        return CompletableFuture.allOf(a.references.stream().distinct()
+                .map(ref -> api.resolveReferenceAsync(a.ctx.getSysId(), ref)
+                        .thenAccept(id -> KbKnowledgeAPI.putResolved(resolved, ref, id)))
+                .toArray(CompletableFuture[]::new)).thenApply(v -> {
+                    a.ctx.setResolved(resolved);
+                    return a;
+                });
+    }
+
+    private CompletableFuture<String> patchAsync(Article a) {
+        return metrics.time(KbMetrics.PATCH, System.nanoTime(), api.patchKbAsync(a.ctx));
+    }
+
+    private Article rewrite(Article a) {
+        long start = System.nanoTime();
+        try {
+            processingFunc.accept(a.ctx);
+            api.writeText(a.ctx);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.record(KbMetrics.REWRITE, start);
+            // the rewritten text is rendered now, no need to hold the document until the patch
+            held.remove(a.ctx.getPath().toAbsolutePath().normalize(), a.ctx);
+            api.release(a.ctx);
+        }
+        return a;
+    }
+
+    private String patch(Article a) {
+        long start = System.nanoTime();
+        try {
+            return updateKbFunc != null ? updateKbFunc.apply(a.ctx) : null;
+        } finally {
+            metrics.record(KbMetrics.PATCH, start);
+        }
+    }
+
+    @Override
+    public void close() {
+        cpuPool.shutdownNow();
+        ioPool.shutdownNow();
+    }
+
+    private static class Article {
+
+        private final KbArticleContext ctx;
+
+        private List<String> references;
+
+        Article(KbArticleContext ctx) {
+            this.ctx = ctx;
+        }
+    }
+
+}
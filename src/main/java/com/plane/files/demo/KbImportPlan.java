@@ -0,0 +1,157 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What an import would send, worked out by running it against
+ * {@link KbDryRunTransport}. Articles, links and attachments come from the
+ * run's counters, calls per endpoint from its metrics and requests per
+ * endpoint, one per batch when batching, from the transport.
+ *
+ * The run time is projected as the longer of sending every request at the
+ * request rate and waiting out their latency over the concurrency.
+ */
+class KbImportPlan {
+
+    protected static Logger log = LoggerFactory.getLogger(KbImportPlan.class);
+
+    public static final long DEFAULT_LATENCY_MILLIS = 200;
+
+    static final String CATEGORY_ENDPOINT = "POST table/kb_category";
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final KbDryRunTransport transport = new KbDryRunTransport();
+
+    private final double requestsPerSecond;
+
+    private final int concurrency;
+
+    private final long latencyMillis;
+
+    /**
+     * @param requestsPerSecond the instance's rate limit, 0 when there is none
+     * @param concurrency       requests in flight at the same time
+     * @param latencyMillis     the instance's mean response time
+     */
+    KbImportPlan(double requestsPerSecond, int concurrency, long latencyMillis) {
+        if (requestsPerSecond < 0 || concurrency < 1 || latencyMillis < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid plan rate %s, concurrency %d, latency %d ms", requestsPerSecond, concurrency,
+                    latencyMillis));
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.concurrency = concurrency;
+        this.latencyMillis = latencyMillis;
+    }
+
+    KbDryRunTransport getTransport() {
+        return transport;
+    }
+
+    double projectedSeconds() {
+        return Math.max(secondsByRate(), secondsByLatency());
+    }
+
+    private double secondsByRate() {
+        return requestsPerSecond > 0 ? transport.getRequests() / requestsPerSecond : 0;
+    }
+
+    private double secondsByLatency() {
+        return transport.getRequests() * latencyMillis / 1000.0 / concurrency;
+    }
+
+    private String limitedBy() {
+        return secondsByRate() > secondsByLatency() ? "rate" : "latency";
+    }
+
+    private static long calls(KbMetrics metrics, String endpoint) {
+        KbMetrics.Endpoint e = metrics.getEndpoints().get(endpoint);
+        return e != null ? e.getCount() : 0;
+    }
+
+    void log(KbMetrics metrics, long attachmentBytes) {
+        StringBuilder requests = new StringBuilder();
+        transport.getRequestsByEndpoint().forEach((endpoint, n) -> requests.append(String.format("\n\t\t%s: %d, %d bytes",
+                endpoint, n, transport.getBytesByEndpoint().getOrDefault(endpoint, 0L))));
+
+        log.info("\nImport plan:\n\tArticles: {}\n\tNew categories: {}\n\tLinks: {}"
+                + "\n\tAttachments: {} references, {} unique, {} bytes\n\tCalls: {}\n\tRequests: {}{}"
+                + "\n\tProjected: {} s at {} requests per second, concurrency {}, latency {} ms, limited by {}",
+                metrics.getArticlesDone(), calls(metrics, CATEGORY_ENDPOINT),
+                metrics.counter(KbKnowledgeAPI.LINKS).sum(), metrics.counter(KbKnowledgeAPI.ATTACHMENT_PATHS).sum(),
+                metrics.counter(KbKnowledgeAPI.ATTACHMENT_UPLOADS).sum(), attachmentBytes, metrics.getCalls(),
+                transport.getRequests(), requests, String.format("%.1f", projectedSeconds()), requestsPerSecond,
+                concurrency, latencyMillis, limitedBy());
+    }
+
+    /**
+     * Writes the plan as JSON, laid out like the metrics report.
+     */
+    void write(KbMetrics metrics, long attachmentBytes, Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file);
+                JsonGenerator json = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+
+            json.writeObjectFieldStart("articles");
+            json.writeNumberField("total", metrics.getArticlesTotal());
+            json.writeNumberField("planned", metrics.getArticlesDone());
+            json.writeNumberField("failed", metrics.getArticlesFailed());
+            json.writeNumberField("skipped", metrics.getArticlesSkipped());
+            json.writeEndObject();
+
+            json.writeNumberField("newCategories", calls(metrics, CATEGORY_ENDPOINT));
+            json.writeNumberField("links", metrics.counter(KbKnowledgeAPI.LINKS).sum());
+
+            json.writeObjectFieldStart("attachments");
+            json.writeNumberField("references", metrics.counter(KbKnowledgeAPI.ATTACHMENT_PATHS).sum());
+            json.writeNumberField("unique", metrics.counter(KbKnowledgeAPI.ATTACHMENT_UPLOADS).sum());
+            json.writeNumberField("bytes", attachmentBytes);
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("calls");
+            for (Map.Entry<String, KbMetrics.Endpoint> e : new TreeMap<>(metrics.getEndpoints()).entrySet()) {
+                json.writeObjectFieldStart(e.getKey());
+                json.writeNumberField("count", e.getValue().getCount());
+                json.writeNumberField("bytesSent", e.getValue().getBytesSent());
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+
+            Map<String, Long> bytes = transport.getBytesByEndpoint();
+            json.writeObjectFieldStart("requests");
+            for (Map.Entry<String, Long> e : transport.getRequestsByEndpoint().entrySet()) {
+                json.writeObjectFieldStart(e.getKey());
+                json.writeNumberField("count", e.getValue());
+                json.writeNumberField("bytesSent", bytes.getOrDefault(e.getKey(), 0L));
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("projection");
+            json.writeNumberField("requests", transport.getRequests());
+            json.writeNumberField("requestsPerSecond", requestsPerSecond);
+            json.writeNumberField("concurrency", concurrency);
+            json.writeNumberField("latencyMillis", latencyMillis);
+            json.writeNumberField("seconds", projectedSeconds());
+            json.writeStringField("limitedBy", limitedBy());
+            json.writeEndObject();
+
+            json.writeEndObject();
+        }
+    }
+
+}
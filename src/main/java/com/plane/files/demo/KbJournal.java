@@ -0,0 +1,193 @@
+package com.plane.files.demo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only record of everything an import created, one tab separated
+ * line of type, key and sys_id per record. Each record is written as soon
+ * as it is known so it survives the process, the writes are forced to disk
+ * every syncRecords records and at least every syncMillis.
+ *
+ * Replaying the journal of an interrupted run refills the registries so the
+ * next run skips what is done instead of creating it again.
+ */
+class KbJournal implements Closeable {
+
+    protected static Logger log = LoggerFactory.getLogger(KbJournal.class);
+
+    public static final int DEFAULT_SYNC_RECORDS = 100;
+
+    public static final long DEFAULT_SYNC_MILLIS = 1000;
+
+    /** kb_knowledge created, keyed by file name */
+    static final String KB = "kb";
+
+    /** kb_knowledge text written, keyed by file name */
+    static final String DONE = "done";
+
+    /** attachment uploaded, keyed by the reference in the article */
+    static final String ATTACHMENT = "attachment";
+
+    /** attachment uploaded, keyed by content hash */
+    static final String CONTENT = "content";
+
+    /** kb_category created, keyed by full_category */
+    static final String CATEGORY = "category";
+
+    interface Handler {
+
+        void accept(String type, String key, String sysId);
+    }
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final int syncRecords;
+
+    private final ScheduledExecutorService timer;
+
+    private int unsynced;
+
+    KbJournal(Path file, int syncRecords, long syncMillis) throws IOException {
+        if (syncRecords < 1 || syncMillis < 1) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        this.file = file;
+        this.syncRecords = syncRecords;
+        boolean torn = endsTorn(file);
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+
+        // a line torn by a crash must not swallow the first record of this run
+        if (torn) {
+            channel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+        }
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(KbImportPipeline.daemonThreads("kb-journal"));
+        this.timer.scheduleWithFixedDelay(this::syncQuietly, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean endsTorn(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            return false;
+        }
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            in.read(last, in.size() - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    /**
+     * Reads the records of an earlier run, a line torn by a crash is skipped.
+     */
+    static int replay(Path file, Handler handler) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 3 || fields[2].isEmpty()) {
+                    log.warn("Skipping journal line [{}]", line);
+                    continue;
+                }
+                handler.accept(fields[0], unescape(fields[1]), fields[2]);
+                count++;
+            }
+        }
+
+        log.info("Replayed {} journal records from {}", count, file);
+
+        return count;
+    }
+
+    void record(String type, String key, String sysId) {
+        if (key == null || sysId == null || sysId.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer line = ByteBuffer
+                .wrap((type + "\t" + escape(key) + "\t" + sysId + "\n").getBytes(StandardCharsets.UTF_8));
+
+        synchronized (this) {
+            try {
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+                if (++unsynced >= syncRecords) {
+                    sync();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can not write journal " + file, e);
+            }
+        }
+    }
+
+    synchronized void sync() throws IOException {
+        if (unsynced > 0 && channel.isOpen()) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            log.error("Can not sync journal {}", file, e);
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdown();
+        synchronized (this) {
+            sync();
+            channel.close();
+        }
+    }
+
+}
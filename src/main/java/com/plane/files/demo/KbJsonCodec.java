@@ -0,0 +1,353 @@
+package com.plane.files.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Table API bodies without a tree or a String copy in between. Responses are
+ * read token by token and only as far as the value asked for, the caller
+ * releases the response which consumes the rest. Requests are written from
+ * typed records through writers built once.
+ */
+final class KbJsonCodec {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final JsonFactory factory = mapper.getFactory();
+
+    private static final ObjectWriter KNOWLEDGE_WRITER = mapper.writerFor(KnowledgeRecord.class);
+
+    private static final ObjectWriter CATEGORY_WRITER = mapper.writerFor(CategoryRecord.class);
+
+    private KbJsonCodec() {
+    }
+
+    /**
+     * kb_knowledge fields the import sets, fields left null are not sent.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class KnowledgeRecord {
+
+        @JsonProperty("sys_id")
+        private String sysId;
+
+        @JsonProperty("u_assignment_group")
+        private String assignmentGroup;
+
+        @JsonProperty("short_description")
+        private String shortDescription;
+
+        @JsonProperty("language")
+        private String language;
+
+        @JsonProperty("kb_knowledge_base")
+        private String knowledgeBase;
+
+        @JsonProperty("kb_category")
+        private String category;
+
+        @JsonProperty("text")
+        private String text;
+
+        public String getSysId() {
+            return sysId;
+        }
+
+        public void setSysId(String sysId) {
+            this.sysId = sysId;
+        }
+
+        public String getAssignmentGroup() {
+            return assignmentGroup;
+        }
+
+        public void setAssignmentGroup(String assignmentGroup) {
+            this.assignmentGroup = assignmentGroup;
+        }
+
+        public String getShortDescription() {
+            return shortDescription;
+        }
+
+        public void setShortDescription(String shortDescription) {
+            this.shortDescription = shortDescription;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        public void setLanguage(String language) {
+            this.language = language;
+        }
+
+        public String getKnowledgeBase() {
+            return knowledgeBase;
+        }
+
+        public void setKnowledgeBase(String knowledgeBase) {
+            this.knowledgeBase = knowledgeBase;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public void setCategory(String category) {
+            this.category = category;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * kb_category under a knowledge base or another category.
+     */
+    static class CategoryRecord {
+
+        @JsonProperty("parent_id")
+        private final String parentId;
+
+        @JsonProperty("parent_table")
+        private final String parentTable;
+
+        @JsonProperty("label")
+        private final String label;
+
+        @JsonProperty("value")
+        private final int value;
+
+        CategoryRecord(String parentId, String parentTable, String label, int value) {
+            this.parentId = parentId;
+            this.parentTable = parentTable;
+            this.label = label;
+            this.value = value;
+        }
+
+        public String getParentId() {
+            return parentId;
+        }
+
+        public String getParentTable() {
+            return parentTable;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    static HttpEntity entity(KnowledgeRecord record) throws IOException {
+        return new ByteArrayEntity(KNOWLEDGE_WRITER.writeValueAsBytes(record), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * The record with the article text as its text field, the text is written
+     * from its buffer instead of being serialized again.
+     */
+    static HttpEntity entity(KnowledgeRecord record, KbArticleText text) throws IOException {
+        if (record.getText() != null) {
+            throw new IllegalArgumentException("Text is set twice");
+        }
+
+        byte[] fields = KNOWLEDGE_WRITER.writeValueAsBytes(record);
+
+        // {"a":"b"} becomes {"a":"b","text":"...
+        ByteArrayOutputStream head = new ByteArrayOutputStream(fields.length + 10);
+        head.write(fields, 0, fields.length - 1);
+        head.write((fields.length > 2 ? ",\"text\":\"" : "\"text\":\"").getBytes(StandardCharsets.UTF_8));
+
+        return new TextEntity(head.toByteArray(), text);
+    }
+
+    private static class TextEntity extends AbstractHttpEntity {
+
+        private static final byte[] TAIL = "\"}".getBytes(StandardCharsets.UTF_8);
+
+        private final byte[] head;
+
+        private final KbArticleText text;
+
+        TextEntity(byte[] head, KbArticleText text) {
+            this.head = head;
+            this.text = text;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return head.length + text.length() + TAIL.length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new SequenceInputStream(Collections.enumeration(
+                    Arrays.asList(new ByteArrayInputStream(head), text.getContent(), new ByteArrayInputStream(TAIL))));
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(head);
+            text.writeTo(out);
+            out.write(TAIL);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    static HttpEntity entity(CategoryRecord record) throws IOException {
+        return new ByteArrayEntity(CATEGORY_WRITER.writeValueAsBytes(record), ContentType.APPLICATION_JSON);
+    }
+
+    static String toString(CategoryRecord record) throws IOException {
+        return CATEGORY_WRITER.writeValueAsString(record);
+    }
+
+    /**
+     * Reads the text at a JSON pointer like /result/sys_id or
+     * /result/0/sys_id and stops there.
+     *
+     * @return the text, "" when the body has no value there, null without a
+     *         body
+     */
+    static String readText(HttpEntity entity, String pointer) throws IOException {
+        if (entity == null) {
+            return null;
+        }
+
+        String[] path = pointer.substring(1).split("/");
+
+        try (InputStream in = entity.getContent(); JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() == null) {
+                return "";
+            }
+
+            for (String segment : path) {
+                if (!moveTo(parser, segment)) {
+                    return "";
+                }
+            }
+
+            return parser.currentToken().isScalarValue() && parser.currentToken() != JsonToken.VALUE_NULL
+                    ? parser.getText()
+                    : "";
+        }
+    }
+
+    /**
+     * Moves from the start of an object or array to the value of the field or
+     * element named by the segment, skipping the values before it.
+     */
+    private static boolean moveTo(JsonParser parser, String segment) throws IOException {
+        if (parser.currentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (segment.equals(name)) {
+                    return true;
+                }
+                parser.skipChildren();
+            }
+            return false;
+        }
+
+        if (parser.currentToken() == JsonToken.START_ARRAY) {
+            int index;
+            try {
+                index = Integer.parseInt(segment);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY && parser.currentToken() != null; i++) {
+                if (i == index) {
+                    return true;
+                }
+                parser.skipChildren();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Hands the key field and sys_id of every record of a result array to the
+     * sink as they are read.
+     *
+     * @return the number of records
+     */
+    static int readResults(HttpEntity entity, String keyField, BiConsumer<String, String> sink) throws IOException {
+        if (entity == null) {
+            return 0;
+        }
+
+        int count = 0;
+        try (InputStream in = entity.getContent(); JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT || !moveTo(parser, "result")
+                    || parser.currentToken() != JsonToken.START_ARRAY) {
+                return 0;
+            }
+
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String key = "";
+                String sysId = "";
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                        if (keyField.equals(name)) {
+                            key = parser.getText();
+                        } else if ("sys_id".equals(name)) {
+                            sysId = parser.getText();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                sink.accept(key, sysId);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+}
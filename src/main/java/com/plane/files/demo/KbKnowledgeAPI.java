@@ -1,30 +1,48 @@
 package com.plane.files.demo;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.plane.files.demo.KbKnowledgeBase.KbKnowledge;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpPatch;
@@ -32,9 +50,6 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,16 +63,78 @@ public class KbKnowledgeAPI {
 
     private Path basedir;
 
-    private Map<String, String> pathToKbSysId = new HashMap<>();
+    private Map<String, String> pathToKbSysId = new ConcurrentHashMap<>();
 
-    private Map<String, String> pathToAttachmentSysId = new HashMap<>();
+    private Map<String, String> pathToAttachmentSysId = new ConcurrentHashMap<>();
 
-    final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> hashToAttachmentSysId = new ConcurrentHashMap<>();
 
-    protected static Logger log = LoggerFactory.getLogger(KbKnowledgeAPI.class);
+    private final Map<Path, String> attachmentHashes = new ConcurrentHashMap<>();
+
+    private final AtomicLong attachmentBytes = new AtomicLong();
+
+    private int attachmentWorkers = DEFAULT_ATTACHMENT_WORKERS;
+
+    private ExecutorService attachmentPool;
+
+    private KbJournal journal;
+
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+
+    private KbSyncState syncState;
+
+    private KbSharedRegistry registry;
+
+    private final Map<String, String> sourceHashes = new ConcurrentHashMap<>();
+
+    /** files referring to an attachment whose content the last sync did not upload */
+    private final Set<String> attachmentsChanged = ConcurrentHashMap.newKeySet();
+
+    private final Map<Path, KbArticleContext> contexts = new ConcurrentHashMap<>();
+
+    private KbFileWalker.Filter fileFilter = KbFileWalker.Filter.defaults();
+
+    private boolean linkOrder = false;
+
+    /** created for a link before the walk reached the file, imported after the walk if it never does */
+    private final Set<Path> linkedAhead = ConcurrentHashMap.newKeySet();
+
+    /** the contexts of files linked ahead of their turn, kept parsed for their own import */
+    private final Deque<KbArticleContext> keptAhead = new ArrayDeque<>();
+
+    private final KbSingleFlight<String, String> kbCreation = new KbSingleFlight<>();
+
+    private final KbSingleFlight<String, String> attachmentCreation = new KbSingleFlight<>();
+
+    private int cpuWorkers = 0;
+
+    private int ioWorkers = KbImportPipeline.DEFAULT_IO_WORKERS;
+
+    private int queueCapacity = KbImportPipeline.DEFAULT_QUEUE_CAPACITY;
+
+    private KbImportPipeline pipeline;
+
+    private int preloadPageSize = 0;
+
+    private boolean clientSysIds = false;
+
+    private boolean outputFiles = false;
 
-    public static final String SRC_PATTERN = "<img.+?(src=\"(.*?)\")";
-    public static final String HREF_PATTERN = "(href=\"(.*?)\")";
+    private long streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+
+    private final Map<String, KbJsonCodec.KnowledgeRecord> pendingInserts = new ConcurrentHashMap<>();
+
+    private final KbMetrics metrics = new KbMetrics();
+
+    private long progressSeconds = KbMetrics.DEFAULT_PROGRESS_SECONDS;
+
+    private Path metricsReport;
+
+    private KbImportPlan plan;
+
+    private Path planFile;
+
+    protected static Logger log = LoggerFactory.getLogger(KbKnowledgeAPI.class);
 
     static final String DEFAULT_EXTENSSION = ".html";
 
@@ -69,144 +146,861 @@ public class KbKnowledgeAPI {
 
     public static final String DEFAULT_INSTANCE = "https://circlekdev.service-now.com";
 
-    public final static Pattern[] REWRITE_PATTERNS = { Pattern.compile(SRC_PATTERN), Pattern.compile(HREF_PATTERN) };
+    public static final int DEFAULT_ATTACHMENT_WORKERS = 4;
+
+    static final String ATTACHMENT_PATHS = "attachment.paths";
+
+    static final String ATTACHMENT_UPLOADS = "attachment.uploads";
+
+    static final String LINKS = "links";
+
+    static final String STREAMED_ARTICLES = "articles.streamed";
+
+    /** files larger than this are streamed instead of parsed */
+    public static final long DEFAULT_STREAMING_THRESHOLD = 8L * 1024 * 1024;
+
+    /** contexts of files linked ahead of their turn kept parsed, the oldest is released past it */
+    static final int MAX_KEPT_AHEAD = 64;
 
     void createResourceReferences() throws IOException {
-        processFiles(basedir, createReferences, createKb, patchKb);
+        if (plan != null && (journal != null || syncState != null || registry != null)) {
+            throw new IllegalStateException("A dry run cannot record to a journal, sync state or shared registry");
+        }
+
+        if (klb != null && preloadPageSize > 0) {
+            klb.preloadHierarchy(preloadPageSize);
+        }
+
+        if (klb != null && klb.getLookupCache() != null) {
+            KbLookupCache cache = klb.getLookupCache();
+            metrics.cache("lookup", cache::getHits, cache::getMisses);
+        }
+        // a path whose content was uploaded under another path is a hit
+        LongAdder paths = metrics.counter(ATTACHMENT_PATHS);
+        LongAdder uploads = metrics.counter(ATTACHMENT_UPLOADS);
+        metrics.cache(KbMetrics.ATTACHMENT, () -> paths.sum() - uploads.sum(), uploads::sum);
+
+        metrics.start(progressSeconds);
+        try {
+            processFiles(basedir, createReferences, createKb, patchKb);
+        } finally {
+            metrics.stop();
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            if (syncState != null) {
+                syncState.save();
+            }
+            closeClients();
+        }
 
         int linksCount = pathToKbSysId.keySet() != null ? pathToKbSysId.keySet().size() : 0;
         int attachmentsCount = pathToAttachmentSysId.keySet() != null ? pathToAttachmentSysId.keySet().size() : 0;
-        log.info("\nProcessing stats:\n\tLinks count: {}\n\tAttachments count: {}", linksCount, attachmentsCount);
+        log.info("\nProcessing stats:\n\tLinks count: {}\n\tAttachments count: {}\n\tUnique attachments: {}"
+                + "\n\tAttachment bytes: {}", linksCount, attachmentsCount, hashToAttachmentSysId.size(),
+                attachmentBytes.get());
+
+        if (limiter != null) {
+            log.info("\nConcurrency limit:\n\tCurrent: {}\n\tLowest: {}\n\tHighest: {}\n\tThrottled: {}",
+                    limiter.getLimit(), limiter.getLowestLimit(), limiter.getHighestLimit(), limiter.getThrottled());
+        }
+
+        if (klb != null && klb.getLookupCache() != null) {
+            KbLookupCache cache = klb.getLookupCache();
+            log.info("\nLookup cache:\n\tHits: {}\n\tMisses: {}\n\tEvictions: {}", cache.getHits(),
+                    cache.getMisses(), cache.getEvictions());
+        }
+
+        metrics.logSummary();
+        if (metricsReport != null) {
+            metrics.writeReport(metricsReport);
+        }
+
+        if (plan != null) {
+            plan.log(metrics, attachmentBytes.get());
+            if (planFile != null) {
+                plan.write(metrics, attachmentBytes.get(), planFile);
+            }
+        }
     }
 
-    void processFiles(Path p, Function<KbLine, String> processingFunc, Function<Path, String> createKb,
-            BiFunction<String, Path, String> updateKbFunc) throws IOException {
+    void processFiles(Path p, Consumer<KbArticleContext> processingFunc,
+            Function<KbArticleContext, String> createKb, Function<KbArticleContext, String> updateKbFunc)
+            throws IOException {
         log.debug("Running from {}", p.toAbsolutePath());
-        List<Path> files = Files.walk(p, 1).filter(s -> {
-            return s.toAbsolutePath().getFileName().toString().endsWith(DEFAULT_EXTENSSION);
-        }).collect(Collectors.toList());
-        for (Path path : files) {
 
-            procesFile(path, processingFunc, createKb, updateKbFunc);
+        if (!Files.isDirectory(p)) {
+            throw new NoSuchFileException(p.toString(), null, "Not a folder");
+        }
 
+        if (linkOrder) {
+            List<Path> files = new ArrayList<>();
+            KbFileWalker.walk(p, fileFilter, files::add);
+
+            KbLinkGraph graph = linkGraph(files);
+            List<List<Path>> components = linkOrdered(graph);
+            importFiles(components.stream().flatMap(List::stream).iterator(), components, graph, processingFunc,
+                    createKb, updateKbFunc);
+            return;
         }
-    }
 
-    static class KbLine {
-        private String sysId;
+        // counted on the side for the ETA, the import starts with the first file found
+        CompletableFuture<Long> total = new CompletableFuture<>();
+        Thread counter = KbImportPipeline.daemonThreads("kb-count").newThread(() -> {
+            try {
+                long count = KbFileWalker.count(p, fileFilter);
+                if (total.complete(count)) {
+                    metrics.setArticlesTotal(count);
+                }
+            } catch (IOException e) {
+                log.debug("Can not count the files of {}", p, e);
+                total.completeExceptionally(e);
+            }
+        });
+        counter.start();
+
+        try (KbFileWalker walker = new KbFileWalker(p, fileFilter, KbFileWalker.DEFAULT_QUEUE_CAPACITY)) {
+            Iterator<Path> files = walker;
+            if (!completed.isEmpty() || syncState != null) {
+                // done by an earlier run, links to them resolve from the known sys_ids
+                files = StreamSupport.stream(Spliterators.spliteratorUnknownSize(walker, Spliterator.ORDERED), false)
+                        .filter(file -> {
+                            if (isDone(file)) {
+                                metrics.articleSkipped();
+                                return false;
+                            }
+                            return true;
+                        }).iterator();
+            }
 
-        private String line;
+            importFiles(files, null, null, processingFunc, createKb, updateKbFunc);
 
-        public String getSysId() {
-            return sysId;
+            log.info("Found {} files, {} skipped as done", walker.getFound(), metrics.getArticlesSkipped());
+        } finally {
+            // the import is over, a count still walking is of no use to it
+            total.cancel(false);
+            counter.interrupt();
         }
+    }
 
-        public String getLine() {
-            return line;
+    /**
+     * The components of the graph still to import, each one after the
+     * components it links to.
+     */
+    private List<List<Path>> linkOrdered(KbLinkGraph graph) {
+        List<List<Path>> components = graph.components().stream()
+                .map(c -> c.stream().filter(this::owns).collect(Collectors.toList())).filter(c -> !c.isEmpty())
+                .collect(Collectors.toList());
+
+        log.info("Link graph of {} files, {} link cycles", components.stream().mapToInt(List::size).sum(),
+                components.stream().filter(c -> c.size() > 1).count());
+
+        if (!completed.isEmpty() || syncState != null) {
+            // done by an earlier run, links to them resolve from the known sys_ids
+            components = components.stream()
+                    .map(c -> c.stream().filter(f -> !isDone(f, graph)).collect(Collectors.toList()))
+                    .filter(c -> !c.isEmpty()).collect(Collectors.toList());
+
+            log.info("{} new or changed files", components.stream().mapToInt(List::size).sum());
         }
 
-        public KbLine(String sysId, String line) {
-            this.sysId = sysId;
-            this.line = line;
+        metrics.setArticlesTotal(components.stream().mapToInt(List::size).sum());
+
+        return components;
+    }
+
+    /**
+     * Imports the files in order, or with the pipeline the components of the
+     * graph as their dependencies are done when they are given.
+     */
+    private void importFiles(Iterator<Path> files, List<List<Path>> components, KbLinkGraph graph,
+            Consumer<KbArticleContext> processingFunc, Function<KbArticleContext, String> createKb,
+            Function<KbArticleContext, String> updateKbFunc) throws IOException {
+
+        attachmentPool = Executors.newFixedThreadPool(attachmentWorkers,
+                KbImportPipeline.daemonThreads("kb-attachment"));
+        try {
+            if (cpuWorkers > 0) {
+                // independent files run side by side in the pools, linked ones are scheduled when reached
+                try (KbImportPipeline p1 = new KbImportPipeline(this, cpuWorkers, ioWorkers, queueCapacity)) {
+                    this.pipeline = p1;
+                    if (components != null) {
+                        p1.run(components, graph, processingFunc, createKb, updateKbFunc);
+                    } else {
+                        p1.run(files, processingFunc, createKb, updateKbFunc);
+                    }
+                } finally {
+                    this.pipeline = null;
+                }
+                return;
+            }
+
+            IOException failure = null;
+
+            // one failed file does not stop the others, as in the pipeline
+            while (files.hasNext() || !linkedAhead.isEmpty()) {
+                // files outside the walk that an imported file links to come last
+                Path path = files.hasNext() ? files.next() : linkedAhead.iterator().next();
+                linkedAhead.remove(path.toAbsolutePath().normalize());
+
+                try {
+                    procesFile(path, processingFunc, createKb, updateKbFunc);
+                    metrics.articleDone(false);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Error creating Kb Knowledge from {}", path, e);
+                    metrics.articleDone(true);
+
+                    if (failure == null) {
+                        failure = new IOException("Import failed", e);
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            releaseKeptAhead();
+            attachmentPool.shutdownNow();
+            attachmentPool = null;
         }
+    }
 
-        void replace(String target, String replacement) {
-            this.line = this.line.replace(target, replacement);
+    /**
+     * Patched according to the journal, or unchanged since the last sync, with
+     * the attachments it uploaded, and not linking to a file the last sync did
+     * not import.
+     */
+    private boolean isDone(Path file, KbLinkGraph graph) {
+        String fileName = getKbFileName(file);
+        if (completed.contains(fileName)) {
+            return true;
+        }
+        if (syncState == null) {
+            return false;
         }
+
+        KbSyncState.Entry last = syncState.get(fileName);
+        return last != null && last.getSourceHash().equals(sourceHashes.get(fileName))
+                && !attachmentsChanged.contains(fileName) && graph.getLinks(file).stream().allMatch(to -> syncState.get(getKbFileName(to)) != null);
     }
 
-    protected String procesFile(Path path, Function<KbLine, String> processingFunc, Function<Path, String> createKb,
-            BiFunction<String, Path, String> updateKbFunc) throws IOException {
-        Path newPath = getWritePath(path);
-        log.debug("Writing to {}", newPath);
+    /**
+     * Same as {@link #isDone(Path, KbLinkGraph)} reading the links of the one
+     * file.
+     */
+    private boolean isDone(Path file) {
+        String fileName = getKbFileName(file);
+        if (completed.contains(fileName)) {
+            return true;
+        }
+        if (syncState == null) {
+            return false;
+        }
 
-        // create sys_id
-        final String sysId = createKb != null ? createKb.apply(path) : null;
+        KbSyncState.Entry last = syncState.get(fileName);
+        if (last == null) {
+            return false;
+        }
+
+        AtomicBoolean linksKnown = new AtomicBoolean(true);
+        String sourceHash;
+        try {
+            sourceHash = scanLinks(file, to -> {
+                if (syncState.get(getKbFileName(to)) == null) {
+                    linksKnown.set(false);
+                }
+            });
+        } catch (IOException e) {
+            // the import reports it
+            return false;
+        }
 
-        //pre-process file
-       String text = KbProcessor.processText(path);
+        sourceHashes.put(fileName, sourceHash);
+        return last.getSourceHash().equals(sourceHash) && !attachmentsChanged.contains(fileName)
+                && linksKnown.get();
+    }
 
-        // rewrite references
-        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(newPath));
-         BufferedReader br = new BufferedReader(new StringReader(text))) {
-            br.lines().map(x -> {
-                return new KbLine(sysId, x);
-            }).forEach(k -> {
+    /**
+     * Scans the files and every file they link to for links between them,
+     * without parsing them.
+     */
+    KbLinkGraph linkGraph(List<Path> files) throws IOException {
+        KbLinkGraph graph = new KbLinkGraph();
+        Deque<Path> queue = new ArrayDeque<>();
 
-                String line = processingFunc.apply(k);
+        for (Path path : files) {
+            Path file = path.toAbsolutePath().normalize();
+            if (!graph.contains(file)) {
+                graph.addFile(file);
+                queue.add(file);
+            }
+        }
 
-                out.println(line);
+        while (!queue.isEmpty()) {
+            Path from = queue.poll();
 
+            String sourceHash = scanLinks(from, to -> {
+                // another shard imports the files it owns and follows their links
+                if (!graph.contains(to) && owns(to)) {
+                    queue.add(to);
+                }
+                graph.addLink(from, to);
             });
+            if (syncState != null) {
+                sourceHashes.put(getKbFileName(from), sourceHash);
+            }
+        }
+
+        return graph;
+    }
+
+    /**
+     * Hands over every existing file the file links to and returns the hash
+     * of its content. The file is read through a buffer and hashed on the
+     * way, its links are the references the rewrite sees once it is pruned.
+     * When syncing, the attachments it refers to are checked against the
+     * contents the last sync uploaded.
+     */
+    private String scanLinks(Path from, Consumer<Path> sink) throws IOException {
+        MessageDigest digest = KbHashes.newDigest();
+        AtomicBoolean attachmentsSynced = new AtomicBoolean(true);
+        try (Reader in = new InputStreamReader(new DigestInputStream(Files.newInputStream(from), digest),
+                StandardCharsets.UTF_8)) {
+            KbProcessor.STREAMING.scan(in, ref -> {
+                if (syncState != null && isAttachmentRef(ref) && attachmentsSynced.get()
+                        && !isSynced(from, ref)) {
+                    attachmentsSynced.set(false);
+                }
+                link(from, ref, sink);
+            });
+        }
+        if (syncState != null) {
+            if (attachmentsSynced.get()) {
+                attachmentsChanged.remove(getKbFileName(from));
+            } else {
+                attachmentsChanged.add(getKbFileName(from));
+            }
+        }
+        return KbHashes.hex(digest.digest());
+    }
+
+    /**
+     * Whether the last sync uploaded the content the attachment has now. The
+     * content hash is kept for the upload, a missing file is reported when
+     * the reference is resolved.
+     */
+    private boolean isSynced(Path from, String ref) {
+        Path file;
+        try {
+            file = basedir.resolve(fromBasedir(from, ref));
+        } catch (InvalidPathException e) {
+            return true;
+        }
+        if (!Files.exists(file)) {
+            return true;
+        }
+
+        try {
+            return syncState.hadAttachment(contentHash(file));
+        } catch (UncheckedIOException e) {
+            // the upload reports it
+            return false;
+        }
+    }
+
+    private void link(Path from, String ref, Consumer<Path> sink) {
+        if (!isKnowledgeRef(ref)) {
+            return;
+        }
+
+        Path to;
+        try {
+            to = basedir.resolve(fromBasedir(from, ref)).toAbsolutePath().normalize();
+        } catch (InvalidPathException e) {
+            return;
+        }
+
+        // missing files are reported when the link is resolved
+        if (Files.exists(to)) {
+            sink.accept(to);
+        }
+    }
+
+    protected String procesFile(Path path, Consumer<KbArticleContext> processingFunc,
+            Function<KbArticleContext, String> createKb, Function<KbArticleContext, String> updateKbFunc)
+            throws IOException {
+        KbArticleContext ctx = contextFor(path);
+        try {
+            long start = System.nanoTime();
+            ctx.getDocument();
+            metrics.record(KbMetrics.PARSE, start);
+
+            // create sys_id
+            start = System.nanoTime();
+            ctx.setSysId(createKb != null ? createKb.apply(ctx) : null);
+            metrics.record(KbMetrics.CREATE, start);
+
+            //pre-process file
+            start = System.nanoTime();
+            KbProcessor.processDocument(ctx);
+            metrics.record(KbMetrics.PRUNE, start);
+
+            // rewrite references
+            start = System.nanoTime();
+            processingFunc.accept(ctx);
+
+            writeText(ctx);
+            metrics.record(KbMetrics.REWRITE, start);
+        } finally {
+            release(ctx);
         }
 
         // update kb_knwoledge with rewritten references
-        return updateKbFunc != null ? updateKbFunc.apply(sysId, newPath) : null;
+        long start = System.nanoTime();
+        try {
+            return updateKbFunc != null ? updateKbFunc.apply(ctx) : null;
+        } finally {
+            metrics.record(KbMetrics.PATCH, start);
+        }
+
+    }
 
+    /**
+     * Returns the context of a file, the same instance is handed out until the
+     * file is written so the file is parsed once however it is reached.
+     */
+    KbArticleContext contextFor(Path path) {
+        return contexts.computeIfAbsent(path.toAbsolutePath().normalize(),
+                p -> new KbArticleContext(p, isStreamed(p)));
+    }
+
+    /**
+     * Above the streaming threshold, a missing file is left to the parse to
+     * report.
+     */
+    boolean isStreamed(Path path) {
+        try {
+            return Files.size(path) > streamingThreshold;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void release(KbArticleContext ctx) {
+        synchronized (keptAhead) {
+            keptAhead.remove(ctx);
+        }
+        contexts.remove(ctx.getPath().toAbsolutePath().normalize(), ctx);
+        ctx.release();
+    }
+
+    /**
+     * Keeps the context of a file linked ahead of its turn for the file's own
+     * import, which releases it. Past {@link #MAX_KEPT_AHEAD} the oldest is
+     * released and its file parsed again in its turn.
+     */
+    private void keepAhead(KbArticleContext ctx) {
+        KbArticleContext oldest = null;
+        synchronized (keptAhead) {
+            if (!keptAhead.contains(ctx)) {
+                keptAhead.addLast(ctx);
+            }
+            if (keptAhead.size() > MAX_KEPT_AHEAD) {
+                oldest = keptAhead.pollFirst();
+            }
+        }
+        if (oldest != null) {
+            release(oldest);
+        }
+    }
+
+    /** Releases the contexts of files linked ahead that a failed import never reached. */
+    private void releaseKeptAhead() {
+        List<KbArticleContext> left;
+        synchronized (keptAhead) {
+            left = new ArrayList<>(keptAhead);
+        }
+        left.forEach(this::release);
+    }
+
+    /**
+     * Releases a context a link was resolved with, unless it is the one of an
+     * article the pipeline has not rewritten yet. A file imported or failed
+     * before, or past its rewrite, gets a new context nothing else releases.
+     */
+    private void releaseUnlessHeld(KbArticleContext ctx) {
+        if (pipeline == null || !pipeline.holds(ctx)) {
+            release(ctx);
+        }
+    }
+
+    /**
+     * Renders the rewritten document into the text the update sends, and into
+     * the .1 file next to the source when output files are on.
+     */
+    void writeText(KbArticleContext ctx) throws IOException {
+        if (ctx.isStreamed()) {
+            writeStreamed(ctx);
+            return;
+        }
+
+        ctx.setText(KbArticleText.render(ctx.getDocument()));
+
+        if (outputFiles) {
+            Path newPath = getWritePath(ctx.getPath());
+            log.debug("Writing to {}", newPath);
+
+            try (Writer out = Files.newBufferedWriter(newPath)) {
+                out.write(ctx.getDocument().outerHtml());
+            }
+        }
+    }
+
+    /**
+     * Prunes and rewrites a file too large to parse on its way into the spool
+     * file the update is sent from, and into the .1 file in a second pass.
+     */
+    private void writeStreamed(KbArticleContext ctx) throws IOException {
+        Map<String, String> rewrites = ctx.getRewrites();
+
+        try (Reader in = ctx.newReader()) {
+            ctx.setText(KbArticleText.spool(in, KbProcessor.STREAMING, rewrites::get));
+        }
+        metrics.counter(STREAMED_ARTICLES).increment();
+
+        if (outputFiles) {
+            Path newPath = getWritePath(ctx.getPath());
+            log.debug("Writing to {}", newPath);
+
+            try (Reader in = ctx.newReader(); Writer out = Files.newBufferedWriter(newPath)) {
+                KbProcessor.STREAMING.rewrite(in, out, rewrites::get);
+            }
+        }
+    }
+
+    List<String> scanReferences(KbArticleContext ctx) throws IOException {
+        List<KbArticleContext.Reference> found = ctx.getReferences();
+        List<String> references = new ArrayList<>(found.size());
+        for (KbArticleContext.Reference reference : found) {
+            references.add(fromBasedir(ctx.getPath(), reference.getValue()));
+        }
+        return references;
+    }
+
+    /**
+     * A reference of the file as a path relative to the base folder, a file in
+     * a folder below it links relative to its own folder.
+     */
+    String fromBasedir(Path file, String ref) {
+        Path base = basedir.toAbsolutePath().normalize();
+        Path dir = file.toAbsolutePath().normalize().getParent();
+        if (dir == null || dir.equals(base) || (!isKnowledgeRef(ref) && !isAttachmentRef(ref))) {
+            return ref;
+        }
+
+        try {
+            return base.relativize(dir.resolve(ref).normalize()).toString().replace('\\', '/');
+        } catch (IllegalArgumentException e) {
+            return ref;
+        }
     }
 
     Path getWritePath(Path p) {
         return Paths.get(p.toAbsolutePath().toString().concat(OUT_EXTENSSION));
     }
 
+    /**
+     * Key of the article in the sys_id map, the journal and the sync state:
+     * the file name, with its folder below the base folder for a file in a
+     * folder below it.
+     */
     String getKbFileName(Path p) {
         String s = p.getName(p.getNameCount() - 1).toString().replace(OUT_EXTENSSION, "");
+
+        Path base = basedir.toAbsolutePath().normalize();
+        Path dir = p.toAbsolutePath().normalize().getParent();
+        if (dir != null && !dir.equals(base) && dir.startsWith(base)) {
+            s = base.relativize(dir).toString().replace('\\', '/') + "/" + s;
+        }
+
         log.info("KbFileName: {}", s);
         return s;
     }
 
-    Function<KbLine, String> createReferences = (KbLine line) -> {
-        for (Pattern pattern : REWRITE_PATTERNS) {
-            Matcher m = pattern.matcher(line.getLine());
-
-            while (m.find()) {
+    Consumer<KbArticleContext> createReferences = (KbArticleContext ctx) -> {
+        try {
+            // resolved by the pipeline's resolve stage, otherwise attachments upload side by side here
+            Map<String, String> resolved = ctx.getResolved();
+            if (resolved == null) {
+                resolved = resolveReferences(ctx.getSysId(), scanReferences(ctx));
+            }
 
-                String path = m.group(2);
-                String sysId = null;
+            // the references the scan found, each attribute is set once
+            for (KbArticleContext.Reference reference : ctx.getReferences()) {
 
-                log.debug("Analyzing resource [{}]", path);
+                String path = fromBasedir(ctx.getPath(), reference.getValue());
+                String sysId = resolved.get(path);
+                if (sysId == null) {
+                    continue;
+                }
 
                 if (isKnowledgeRef(path)) {
-                    sysId = pathToKbSysId.get(getKbFileName(Paths.get(path)));
-                    if (sysId == null) {
-                        Path kbPath = basedir.resolve(path);
-                        if (!Files.exists(kbPath)) {
-                            log.error("Kb Knowledge file not found: {}", kbPath);
-                        } else {
-
-                            // create Kb recursively
-                            try {
-                                sysId = this.procesFile(kbPath, this.createReferences, this.createKb, this.patchKb);
-                            } catch (IOException e) {
-                                log.error("Error creating Kb Knowledge: {}", kbPath, e);
-                                continue;
-                            }
-                        }
-                    } else {
-                        log.info("Returning with sys_id from cache {}", sysId);
-                    }
-
-                    if (sysId != null) {
-                        line.replace(m.group(2), KB_SRC_PREFIX.concat(sysId));
-                    }
+                    reference.rewrite(KB_SRC_PREFIX.concat(sysId));
+                    metrics.counter(LINKS).increment();
                 } else if (isAttachmentRef(path)) {
-                    sysId = pathToAttachmentSysId.get(m.group(2));
-                    if (sysId == null) {
-                        sysId = this.createAttachment.apply(line.getSysId(), path);
-                        if (sysId != null) {
-                            pathToAttachmentSysId.put(path, sysId);
-                        }
+                    reference.rewrite(SYS_ATTACHMENT_SRC_PREFIX.concat(sysId));
+                }
+
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    };
+
+    /**
+     * Returns the sys_id a reference should point to, creating the kb_knowledge
+     * or attachment record on first use.
+     */
+    String resolveReference(String sysId, String path) {
+        log.debug("Analyzing resource [{}]", path);
+
+        if (isKnowledgeRef(path)) {
+            String kbSysId = pathToKbSysId.get(getKbFileName(basedir.resolve(path)));
+            if (kbSysId != null) {
+                log.info("Returning with sys_id from cache {}", kbSysId);
+                return kbSysId;
+            }
+
+            Path kbPath = basedir.resolve(path);
+            if (!Files.exists(kbPath)) {
+                log.error("Kb Knowledge file not found: {}", kbPath);
+                return null;
+            }
+
+            if (!owns(kbPath)) {
+                // the shard owning the file imports it, the link only needs its record
+                if (clientSysIds) {
+                    return clientSysId(kbPath);
+                }
+                KbArticleContext target = contextFor(kbPath);
+                try {
+                    return this.createKb.apply(target);
+                } finally {
+                    release(target);
+                }
+            }
+
+            if (pipeline != null) {
+                // the record only has to exist for the link, the pipeline imports the file itself
+                if (clientSysIds) {
+                    pipeline.submit(kbPath);
+                    return clientSysId(kbPath);
+                }
+                KbArticleContext target = contextFor(kbPath);
+                try {
+                    kbSysId = this.createKb.apply(target);
+                    pipeline.submit(kbPath);
+                } finally {
+                    releaseUnlessHeld(target);
+                }
+                return kbSysId;
+            }
+
+            // a link back into a cycle, the record is created now and the file imported in its turn
+            log.debug("Creating linked Kb Knowledge ahead of its turn: {}", kbPath);
+            linkedAhead.add(kbPath.toAbsolutePath().normalize());
+            KbArticleContext target = contextFor(kbPath);
+            try {
+                return this.createKb.apply(target);
+            } finally {
+                // the file's own import reuses the parsed document and releases it
+                keepAhead(target);
+            }
+        } else if (isAttachmentRef(path)) {
+            return resolveAttachment(sysId, path).join();
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves the references of one article once per distinct path, its
+     * attachments are uploaded side by side. Returns the sys_ids by path, a
+     * reference that did not resolve has no entry.
+     */
+    Map<String, String> resolveReferences(String sysId, List<String> references) {
+        Map<String, String> resolved = new ConcurrentHashMap<>();
+        Set<String> distinct = new HashSet<>();
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+
+        for (String path : references) {
+            if (!distinct.add(path)) {
+                continue;
+            }
+            if (isAttachmentRef(path)) {
+                uploads.add(resolveAttachment(sysId, path).thenAccept(id -> putResolved(resolved, path, id)));
+            } else {
+                putResolved(resolved, path, resolveReference(sysId, path));
+            }
+        }
+
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).join();
+        return resolved;
+    }
+
+    static void putResolved(Map<String, String> resolved, String path, String sysId) {
+        if (sysId != null && !sysId.isEmpty()) {
+            resolved.put(path, sysId);
+        }
+    }
+
+    /**
+     * Returns the sys_id of the attachment, uploading it once per distinct
+     * content. A file with the same bytes under another name or folder gets
+     * the sys_id of the first upload.
+     */
+    CompletableFuture<String> resolveAttachment(String sysId, String path) {
+        String aSysId = pathToAttachmentSysId.get(path);
+        if (aSysId != null) {
+            return CompletableFuture.completedFuture(aSysId);
+        }
+
+        Path file = basedir.resolve(Paths.get(path));
+        if (!Files.exists(file)) {
+            log.error("File not found {}", file);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<String> hash = onAttachmentPool(() -> contentHash(file));
+
+        return hash.thenCompose(h -> uploadOnce(h, sysId, path, file)).thenApply(id -> {
+            if (id != null && !id.isEmpty() && pathToAttachmentSysId.putIfAbsent(path, id) == null) {
+                metrics.counter(ATTACHMENT_PATHS).increment();
+                journal(KbJournal.ATTACHMENT, path, id);
+            }
+            return id;
+        }).exceptionally(e -> {
+            log.error("Exception when creating attachment:", e);
+            return null;
+        });
+    }
+
+    private CompletableFuture<String> uploadOnce(String hash, String sysId, String path, Path file) {
+        return attachmentCreation.executeAsync(hash, () -> {
+            String created = hashToAttachmentSysId.get(hash);
+            if (created != null) {
+                return CompletableFuture.completedFuture(created);
+            }
+            // uploaded by another shard when the registry already holds the content
+            CompletableFuture<String> upload = registry != null
+                    ? registry.resolveAsync(KbJournal.CONTENT, hash, () -> upload(sysId, path, file))
+                    : upload(sysId, path, file);
+
+            return upload.thenApply(id -> {
+                if (id != null && !id.isEmpty()) {
+                    hashToAttachmentSysId.put(hash, id);
+                    journal(KbJournal.CONTENT, hash, id);
+                    if (syncState != null) {
+                        syncState.putAttachment(hash, id);
                     }
-                    if (sysId != null) {
-                        line.replace(m.group(2), SYS_ATTACHMENT_SRC_PREFIX.concat(sysId));
+                }
+                return id;
+            });
+        });
+    }
+
+    private CompletableFuture<String> upload(String sysId, String path, Path file) {
+        metrics.counter(ATTACHMENT_UPLOADS).increment();
+
+        long start = System.nanoTime();
+        return metrics.time(KbMetrics.ATTACHMENT, start,
+                isAsync() ? createAttachmentAsync(sysId, path)
+                        : onAttachmentPool(() -> this.createAttachment.apply(sysId, path)))
+                .thenApply(id -> {
+                    if (id != null && !id.isEmpty()) {
+                        attachmentBytes.addAndGet(file.toFile().length());
                     }
+                    return id;
+                });
+    }
+
+    private <T> CompletableFuture<T> onAttachmentPool(Supplier<T> task) {
+        ExecutorService pool = attachmentPool;
+        if (pool != null) {
+            return CompletableFuture.supplyAsync(task, pool);
+        }
+        try {
+            return CompletableFuture.completedFuture(task.get());
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * SHA-256 of the file, read in chunks and remembered per path.
+     */
+    String contentHash(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        String hash = attachmentHashes.get(key);
+        if (hash != null) {
+            return hash;
+        }
+
+        try {
+            hash = KbHashes.sha256(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        attachmentHashes.put(key, hash);
+        return hash;
+    }
+
+    /**
+     * Same as {@link #resolveReference(String, String)} with attachment uploads
+     * and kb_knowledge creation in flight instead of blocking the caller.
+     */
+    CompletableFuture<String> resolveReferenceAsync(String sysId, String path) {
+
+        if (isKnowledgeRef(path) && pipeline != null) {
+            String kbSysId = pathToKbSysId.get(getKbFileName(basedir.resolve(path)));
+            if (kbSysId != null) {
+                return CompletableFuture.completedFuture(kbSysId);
+            }
+
+            Path kbPath = basedir.resolve(path);
+            if (!Files.exists(kbPath)) {
+                log.error("Kb Knowledge file not found: {}", kbPath);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (!owns(kbPath)) {
+                if (clientSysIds) {
+                    return CompletableFuture.completedFuture(clientSysId(kbPath));
                 }
+                KbArticleContext target = contextFor(kbPath);
+                return createKbAsync(target).whenComplete((id, e) -> release(target));
+            }
 
+            // scheduled first, the callbacks run on the HTTP client threads
+            pipeline.submit(kbPath);
+            if (clientSysIds) {
+                return CompletableFuture.completedFuture(clientSysId(kbPath));
             }
 
+            KbArticleContext target = contextFor(kbPath);
+            return createKbAsync(target).whenComplete((id, e) -> releaseUnlessHeld(target));
+
+        } else if (isAttachmentRef(path)) {
+            return resolveAttachment(sysId, path);
         }
-        return line.getLine();
-    };
+
+        return CompletableFuture.completedFuture(resolveReference(sysId, path));
+    }
 
     protected boolean isKnowledgeRef(String name) {
         return !name.startsWith("http") && name.endsWith(DEFAULT_EXTENSSION);
@@ -224,140 +1018,443 @@ public class KbKnowledgeAPI {
             Path path = basedir.resolve(Paths.get(name));
 
             if (Files.exists(path)) {
-                String mimeType = null;
+
                 try {
-                    mimeType = Files.probeContentType(path);
-                } catch (IOException e1) {
-                    log.error("Exception probing content type", e1);
+
+                    FileEntity file = attachmentEntity(path);
+
+                    HttpResponse response = postRecord(file,
+                            String.format(ATTACHMENT_API_PATH, sysId, path.getFileName().toString()));
+
+                    String aSysId = getSysId(response);
+
+                    log.debug("Attachment sys_id {}", aSysId);
+
+                    return aSysId;
+
+                } catch (IOException e) {
+                    log.error("Exception when creating attachment:", e);
+
+                }
+            } else {
+                log.error("File not found {}", path);
+            }
+        } catch (Exception e) {
+            log.error("Unexpected error", e);
+        }
+
+        return null;
+    };
+
+    private FileEntity attachmentEntity(Path path) {
+        String mimeType = null;
+        try {
+            mimeType = Files.probeContentType(path);
+        } catch (IOException e1) {
+            log.error("Exception probing content type", e1);
+        }
+
+        if (mimeType == null) {
+            log.error("Unknown content type, trying application/octet-stream, path: {}", path);
+            mimeType = ContentType.APPLICATION_OCTET_STREAM.getMimeType();
+        }
+
+        return new FileEntity(path.toFile(), ContentType.create(mimeType));
+    }
+
+    CompletableFuture<String> createAttachmentAsync(String sysId, String name) {
+        log.info("Creating Attachment record from [{}]", name);
+
+        Path path = basedir.resolve(Paths.get(name));
+
+        if (!Files.exists(path)) {
+            log.error("File not found {}", path);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return sendRecordAsync(postRequest(attachmentEntity(path),
+                String.format(ATTACHMENT_API_PATH, sysId, path.getFileName().toString()))).thenApply(response -> {
+                    try {
+                        String aSysId = getSysId(response);
+
+                        log.debug("Attachment sys_id {}", aSysId);
+
+                        return aSysId;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).exceptionally(e -> {
+                    log.error("Exception when creating attachment:", e);
+                    return null;
+                });
+    }
+
+    protected String getSysId(HttpResponse response) throws IOException {
+        String sysId = null;
+        try {
+            sysId = KbJsonCodec.readText(response.getEntity(), "/result/sys_id");
+
+            if (sysId != null) {
+                log.info("Record sys_id:{}", sysId);
+            }
+        } finally {
+            KbHttpClients.release(response);
+        }
+        return sysId;
+    }
+
+    Function<KbArticleContext, String> createKb = (KbArticleContext ctx) -> {
+        log.info("Creating Knowledge record from [{}]", ctx.getPath());
+
+        String fileName = getKbFileName(ctx.getPath());
+
+        String sysId = pathToKbSysId.get(fileName);
+
+        if (sysId == null) {
+            return kbCreation.execute(fileName, () -> createKbRecord(ctx, fileName));
+        } else {
+            log.debug("Reading sys_id from cache {}", sysId);
+        }
+
+        return sysId;
+    };
+
+    private String createKbRecord(KbArticleContext ctx, String fileName) {
+
+        String sysId = pathToKbSysId.get(fileName);
+
+        if (sysId == null && registry != null && !clientSysIds) {
+            // created by another shard when one of its files links here first
+            sysId = registry.resolve(KbJournal.KB, fileName, () -> postKb(ctx, fileName));
+            if (sysId != null) {
+                pathToKbSysId.putIfAbsent(fileName, sysId);
+            }
+            return sysId;
+        }
+
+        return sysId != null ? sysId : postKb(ctx, fileName);
+    }
+
+    private String postKb(KbArticleContext ctx, String fileName) {
+
+        String sysId = pathToKbSysId.get(fileName);
+
+        if (sysId == null) {
+            try {
+
+                if (clientSysIds) {
+                    return assignKb(ctx, fileName);
                 }
 
-                if (mimeType == null) {
-                    log.error("Unknown content type, trying application/octet-stream, path: {}", path);
-                    mimeType = ContentType.APPLICATION_OCTET_STREAM.getMimeType();
-                }
+                HttpResponse response = postRecord(kbPayload(ctx), KB_KNOWLEDGE_API_PATH);
+
+                return kbCreated(fileName, response);
+
+            } catch (IOException e) {
+                log.error("Exception when creating kb:", e);
+                throw new UncheckedIOException(e);
+
+            } catch (RuntimeException e) {
+                log.error("Exception when creating kb:", e);
+                throw e;
+
+            } catch (Exception e) {
+                log.error("Exception when creating kb:", e);
+                throw new IllegalStateException("Can not create kb_knowledge for " + fileName, e);
+            }
+        }
+
+        return sysId;
+    }
+
+    /**
+     * Stable sys_id of the article at the path, a name based UUID of the path
+     * relative to the base folder so a re-run assigns the same ids.
+     */
+    String clientSysId(Path path) {
+        Path relative = basedir.toAbsolutePath().normalize().relativize(path.toAbsolutePath().normalize());
+        String name = KB_KNOWLEDGE_API_PATH + "/" + relative.toString().replace('\\', '/');
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString().replace("-", "");
+    }
+
+    /**
+     * Assigns the client side sys_id and keeps the record fields until the
+     * text is rewritten, the record is then inserted with one POST.
+     */
+    private String assignKb(KbArticleContext ctx, String fileName) throws Exception {
 
-                try {
+        KbJsonCodec.KnowledgeRecord record = new KbJsonCodec.KnowledgeRecord();
 
-                    FileEntity file = new FileEntity(path.toFile(), ContentType.create(mimeType));
+        populateKnowledgeBase(ctx, record);
 
-                    HttpResponse response = postRecord(file,
-                            String.format(ATTACHMENT_API_PATH, sysId, path.getFileName().toString()));
+        return assignKb(ctx, fileName, record);
+    }
 
-                    String aSysId = getSysId(response);
+    private String assignKb(KbArticleContext ctx, String fileName, KbJsonCodec.KnowledgeRecord record) {
 
-                    log.debug("Attachment sys_id {}", aSysId);
+        String sysId = clientSysId(ctx.getPath());
+        record.setSysId(sysId);
 
-                    return aSysId;
+        pendingInserts.put(fileName, record);
+        pathToKbSysId.put(fileName, sysId);
 
-                } catch (IOException e) {
-                    log.error("Exception when creating attachment:", e);
+        log.info("kb_knowledge {}, path {}", sysId, fileName);
 
-                }
-            } else {
-                log.error("File not found {}", path);
-            }
-        } catch (Exception e) {
-            log.error("Unexpected error", e);
-        }
+        return sysId;
+    }
 
-        return null;
-    };
+    private HttpEntity kbPayload(KbArticleContext ctx) throws Exception {
 
-    protected String getSysId(HttpResponse response) throws IOException {
-        HttpEntity respEntity = response.getEntity();
-        String sysId = null;
-        if (respEntity != null) {
+        KbJsonCodec.KnowledgeRecord record = new KbJsonCodec.KnowledgeRecord();
+
+        populateKnowledgeBase(ctx, record);
 
-            String result = EntityUtils.toString(respEntity);
+        return KbJsonCodec.entity(record);
+    }
 
-            JsonNode root = mapper.readTree(result);
-            sysId = root.at("/result/sys_id").asText();
+    private String kbCreated(String fileName, HttpResponse response) throws IOException {
 
-            log.info("Record sys_id:{}", sysId);
+        handleTableApiResponse(response);
 
-            log.debug("Response: {}", result);
+        String sysId = getSysId(response);
 
+        if (sysId != null) {
+            pathToKbSysId.put(fileName, sysId);
+            journal(KbJournal.KB, fileName, sysId);
         }
+
+        log.info("kb_knowledge {}, path {}", pathToKbSysId.get(fileName), fileName);
+
         return sysId;
     }
 
-    Function<Path, String> createKb = (Path name) -> {
-        log.info("Creating Knowledge record from [{}]", name);
+    /**
+     * Same as {@link #createKb} with the knowledge base, category and group
+     * lookups, the category creates and the POST in flight instead of
+     * blocking the calling thread.
+     */
+    CompletableFuture<String> createKbAsync(KbArticleContext ctx) {
+        log.info("Creating Knowledge record from [{}]", ctx.getPath());
 
-        String fileName = getKbFileName(name);
+        String fileName = getKbFileName(ctx.getPath());
 
         String sysId = pathToKbSysId.get(fileName);
 
-        if (sysId == null) {
-            try {
+        if (sysId != null) {
+            log.debug("Reading sys_id from cache {}", sysId);
+            return CompletableFuture.completedFuture(sysId);
+        }
 
-                Map<String, Object> params = new HashMap<>();
-               
+        return kbCreation.executeAsync(fileName, () -> {
+            String created = pathToKbSysId.get(fileName);
+            if (created != null) {
+                return CompletableFuture.completedFuture(created);
+            }
 
-                populateKnowledgeBase(name, params);
+            if (clientSysIds) {
+                return knowledgeRecordAsync(ctx).thenApply(record -> assignKb(ctx, fileName, record));
+            }
 
-                String payload = mapper.writeValueAsString(params);
+            if (registry == null) {
+                return postKbAsync(ctx, fileName);
+            }
 
-                HttpResponse response = postRecord(payload, KB_KNOWLEDGE_API_PATH);
+            return registry.resolveAsync(KbJournal.KB, fileName, () -> postKbAsync(ctx, fileName)).thenApply(id -> {
+                if (id != null && !id.isEmpty()) {
+                    pathToKbSysId.putIfAbsent(fileName, id);
+                }
+                return id;
+            });
+        });
+    }
 
-                handleTableApiResponse(response);
+    private CompletableFuture<String> postKbAsync(KbArticleContext ctx, String fileName) {
+        return knowledgeRecordAsync(ctx).thenCompose(record -> {
+            HttpEntity payload;
+            try {
+                payload = KbJsonCodec.entity(record);
+            } catch (IOException e) {
+                return failed(e);
+            }
+            return sendRecordAsync(postRequest(payload, KB_KNOWLEDGE_API_PATH));
+        }).thenApply(response -> {
+            try {
+                return kbCreated(fileName, response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
 
-                sysId = getSysId(response);
+    Function<KbArticleContext, String> patchKb = (KbArticleContext ctx) -> {
+        log.info("Patching Knowledge record from [{}]", ctx.getPath());
 
-                pathToKbSysId.put(fileName, sysId);
+        String sysId = ctx.getSysId();
+        Path name = ctx.getPath();
+        KbArticleText text = null;
+        try {
 
-                log.info("kb_knowledge {}, path {}", pathToKbSysId.get(fileName), fileName);
+            text = takeText(ctx);
 
+            String outputHash = outputHash(text);
+            if (outputUnchanged(sysId, name, outputHash)) {
                 return sysId;
+            }
 
-            } catch (IOException e) {
-                log.error("Exception when creating kb:", e);
-                System.exit(-1);
+            HttpResponse response = sendRecord(updateRequest(sysId, name, text));
 
-            } catch (Exception e) {
-                log.error("Exception when creating kb:", e);
-                System.exit(-1);
+            handleTableApiResponse(response);
+
+            patched(sysId, name, outputHash);
+
+            return getSysId(response);
+
+        } catch (IOException e) {
+            log.error("Exception when patching kb:", e);
+            throw new UncheckedIOException(e);
+        } finally {
+            if (text != null) {
+                text.discard();
             }
-        } else {
-            log.debug("Reading sys_id from cache {}", sysId);
         }
-
-        return sysId;
     };
 
-    BiFunction<String, Path, String> patchKb = (String sysId, Path name) -> {
-        log.info("Patching Knowledge record from [{}]", name);
+    /**
+     * PATCH of the rewritten text, or the POST of the whole record when its
+     * sys_id was assigned on the client.
+     */
+    private HttpEntityEnclosingRequestBase updateRequest(String sysId, Path name, KbArticleText text)
+            throws IOException {
 
-        try {
-            
-            String text = new String(Files.readAllBytes(name));
+        KbJsonCodec.KnowledgeRecord insert = clientSysIds ? pendingInserts.remove(getKbFileName(name)) : null;
+
+        KbJsonCodec.KnowledgeRecord record = insert != null ? insert : new KbJsonCodec.KnowledgeRecord();
 
-            Map<String, Object> params = new HashMap<>();
-            params.put("text", text);
+        // record.setWorkflowState("published");
 
-            // params.put("workflow_state", "published");
+        HttpEntity payload = KbJsonCodec.entity(record, text);
 
-            String payload = mapper.writeValueAsString(params);
+        if (insert != null) {
+            return postRequest(payload, KB_KNOWLEDGE_API_PATH);
+        }
 
-            HttpResponse response = patchRecord(payload, KB_KNOWLEDGE_API_PATH + "/" + sysId);
+        return patchRequest(payload, KB_KNOWLEDGE_API_PATH + "/" + sysId);
+    }
 
-            handleTableApiResponse(response);
+    CompletableFuture<String> patchKbAsync(KbArticleContext ctx) {
+        log.info("Patching Knowledge record from [{}]", ctx.getPath());
 
-            return getSysId(response);
+        String sysId = ctx.getSysId();
+        Path name = ctx.getPath();
 
+        HttpEntityEnclosingRequestBase request;
+        String outputHash;
+        KbArticleText text;
+        try {
+            text = takeText(ctx);
         } catch (IOException e) {
-            log.error("Exception when creating kb:", e);
+            return failed(e);
+        }
+
+        try {
+            outputHash = outputHash(text);
+            if (outputUnchanged(sysId, name, outputHash)) {
+                text.discard();
+                return CompletableFuture.completedFuture(sysId);
+            }
 
+            request = updateRequest(sysId, name, text);
+        } catch (IOException e) {
+            text.discard();
+            return failed(e);
         }
 
-        return null;
-    };
+        return sendRecordAsync(request).whenComplete((response, e) -> text.discard()).thenApply(response -> {
+
+            try {
+                handleTableApiResponse(response);
+            } catch (KbApiException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            patched(sysId, name, outputHash);
+
+            try {
+                return getSysId(response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Hands the rendered text over to the request, the context does not keep
+     * it alive after that.
+     */
+    private KbArticleText takeText(KbArticleContext ctx) throws IOException {
+        KbArticleText text = ctx.getText();
+        if (text == null) {
+            throw new IOException("Text of " + ctx.getPath() + " not rendered");
+        }
+        ctx.setText(null);
+        return text;
+    }
+
+    private String outputHash(KbArticleText text) {
+        return syncState != null ? text.hash() : null;
+    }
+
+    /**
+     * The record already holds this text since the last sync, only parts of
+     * the source that are pruned changed.
+     */
+    private boolean outputUnchanged(String sysId, Path name, String outputHash) {
+        if (syncState == null) {
+            return false;
+        }
+
+        String fileName = getKbFileName(name);
+        KbSyncState.Entry last = syncState.get(fileName);
+        if (last == null || !last.getSysId().equals(sysId) || !last.getOutputHash().equals(outputHash)) {
+            return false;
+        }
 
-    void handleTableApiResponse(HttpResponse response) {
+        log.info("Text of {} unchanged since the last sync", fileName);
+        patched(sysId, name, outputHash);
+        return true;
+    }
+
+    private void patched(String sysId, Path name, String outputHash) {
+        String fileName = getKbFileName(name);
+
+        journal(KbJournal.DONE, fileName, sysId);
+
+        if (syncState != null) {
+            // hashed when checked against the last sync, or now for a new file
+            String sourceHash = sourceHashes.remove(fileName);
+            if (sourceHash == null) {
+                try {
+                    sourceHash = KbHashes.sha256(name);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            syncState.put(fileName, new KbSyncState.Entry(sysId, sourceHash, outputHash));
+        }
+    }
+
+    private void journal(String type, String key, String sysId) {
+        if (journal != null) {
+            journal.record(type, key, sysId);
+        }
+    }
+
+    void handleTableApiResponse(HttpResponse response) throws KbApiException {
         if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() >= 300) {
             log.error("Internal error, server response code {} \n {}", response.getStatusLine().getStatusCode(),
                     response.getStatusLine().getReasonPhrase());
-            System.exit(-1);
+            KbHttpClients.release(response);
+            throw KbApiException.of(response);
         }
 
     }
@@ -370,13 +1467,16 @@ public class KbKnowledgeAPI {
 
     protected HttpResponse patchRecord(String payload, String apiCall) throws IOException {
 
-        StringEntity entity = new StringEntity(payload, ContentType.APPLICATION_JSON);
+        return sendRecord(patchRequest(new StringEntity(payload, ContentType.APPLICATION_JSON), apiCall));
+    }
+
+    private HttpPatch patchRequest(HttpEntity entity, String apiCall) {
 
         HttpPatch request = new HttpPatch(instance + API_PATH + apiCall);
 
         request.setEntity(entity);
 
-        return sendRecord(request);
+        return request;
     }
 
     protected HttpResponse postRecord(String payload, String apiCall) throws IOException {
@@ -388,45 +1488,117 @@ public class KbKnowledgeAPI {
 
     protected HttpResponse postRecord(HttpEntity entity, String apiCall) throws IOException {
 
+        return sendRecord(postRequest(entity, apiCall));
+
+    }
+
+    private HttpPost postRequest(HttpEntity entity, String apiCall) {
+
         HttpPost request = new HttpPost(instance + API_PATH + apiCall);
 
         request.setEntity(entity);
 
-        return sendRecord(request);
-
+        return request;
     }
 
     private HttpClient httpClient;
 
+    /** clients opened by this API, closed when the import ends */
+    private final List<Closeable> clients = new ArrayList<>();
+
+    private KbAsyncTransport asyncClient;
+
+    private int maxConnections = KbHttpClients.DEFAULT_MAX_CONNECTIONS;
+
+    private KbTransport transport;
+
+    private long idleConnectionSeconds = KbHttpClients.DEFAULT_IDLE_SECONDS;
+
+    private KbRetryPolicy retryPolicy = KbRetryPolicy.defaults();
+
+    private KbAdaptiveLimiter limiter;
+
     KbKnowledgeAPI withDefaultHttpClient() {
 
         this.httpClient = basicAuthHttpClient();
+        if (httpClient instanceof Closeable) {
+            clients.add((Closeable) httpClient);
+        }
 
         return this;
     }
 
     protected HttpClient basicAuthHttpClient() {
-        CredentialsProvider provider = new BasicCredentialsProvider();
-        provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, pass));
+        return KbHttpClients.basicAuth(user, pass, maxConnections, KbHttpClients.DEFAULT_KEEP_ALIVE_SECONDS,
+                idleConnectionSeconds);
+    }
 
-        HttpClient httpClient = HttpClientBuilder.create().setDefaultCredentialsProvider(provider).build();
+    protected KbAsyncTransport basicAuthAsyncTransport() {
+        return KbAsyncTransport.basicAuth(user, pass, maxConnections);
+    }
 
-        return httpClient;
+    /**
+     * Sizes the connection pool of the default client, call before
+     * {@link #withDefaultHttpClient()}.
+     */
+    KbKnowledgeAPI withConnectionPool(int maxConnections, long idleConnectionSeconds) {
+        if (maxConnections < 1 || idleConnectionSeconds < 1) {
+            throw new IllegalArgumentException("Connection pool size and idle time must be positive");
+        }
+        this.maxConnections = maxConnections;
+        this.idleConnectionSeconds = idleConnectionSeconds;
+        return this;
     }
 
     protected HttpResponse sendRecord(HttpEntityEnclosingRequestBase request) throws IOException {
 
+        if (transport != null) {
+            return retryPolicy.executeAndWait(request, transport);
+        }
+
         if (this.httpClient == null) {
             log.error("HttpClient not set");
             throw new IllegalStateException("HttpClient not set");
         }
 
-        HttpResponse response = httpClient.execute(request);
+        HttpResponse response = retryPolicy.executeAndWait(request, new KbBlockingTransport(httpClient));
         log.info("Response status: {}", response.getStatusLine().getStatusCode());
 
         return response;
     }
 
+    /**
+     * Sends the request through the async transport when one is set, otherwise
+     * blocks on the client and returns a completed future.
+     */
+    CompletableFuture<HttpResponse> sendRecordAsync(HttpEntityEnclosingRequestBase request) {
+
+        if (isAsync()) {
+            return retryPolicy.execute(request, transport);
+        }
+
+        try {
+            return CompletableFuture.completedFuture(sendRecord(request));
+        } catch (IOException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * A non-blocking client at the bottom of the transport, a limiter or
+     * batching over the blocking client is still sent through one call per
+     * thread.
+     */
+    boolean isAsync() {
+        return transport != null && !transport.isBlocking();
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
     String getShortDesc(Path p) {
         String fileName = p.getFileName().toString();
 
@@ -439,17 +1611,230 @@ public class KbKnowledgeAPI {
         this.pass = pass;
         this.instance = instance;
         this.basedir = basedir;
+        this.retryPolicy.setMetrics(metrics);
     }
 
     public void setHttpClient(HttpClient httpClient) {
         this.httpClient = httpClient;
     }
 
+    void setTransport(KbTransport transport) {
+        this.transport = transport;
+        if (klb != null) {
+            klb.setTransport(transport);
+        }
+    }
+
     private KbKnowledgeBase klb;
 
     KbKnowledgeAPI withKbKnowledgeBase() {
         klb = new KbKnowledgeBase(instance);
         klb.setHttpClient(httpClient);
+        klb.setTransport(transport);
+        klb.setJournal(journal);
+        klb.setRegistry(registry);
+        klb.setRetryPolicy(retryPolicy);
+        klb.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * Sends calls answered with 429 or 503, and calls that can safely be
+     * repeated, up to maxAttempts times. 1 disables retries.
+     */
+    KbKnowledgeAPI withRetries(int maxAttempts, long baseDelayMillis) {
+        this.retryPolicy = new KbRetryPolicy(maxAttempts, baseDelayMillis,
+                Math.max(baseDelayMillis, KbRetryPolicy.DEFAULT_MAX_DELAY_MILLIS));
+        retryPolicy.setMetrics(metrics);
+        if (klb != null) {
+            klb.setRetryPolicy(retryPolicy);
+        }
+        log.debug("Retries {}, base delay {} ms", maxAttempts, baseDelayMillis);
+        return this;
+    }
+
+    /**
+     * Sends Table and Attachment API calls through a non-blocking client, the
+     * pipeline then keeps requests in flight instead of blocked threads.
+     */
+    KbKnowledgeAPI withAsyncHttpClient() {
+        closeAsyncClient();
+        asyncClient = basicAuthAsyncTransport();
+        clients.add(asyncClient);
+        setTransport(asyncClient);
+        log.debug("Enabled async HTTP client");
+        return this;
+    }
+
+    /**
+     * Lets as many calls run at the same time as the instance takes without
+     * slowing down or throttling, between 1 and maxLimit, and at most
+     * maxRequestsPerSecond calls per second when that is not 0. Call after
+     * {@link #withAsyncHttpClient()} and before {@link #withBatching(int, long)}
+     * so a batch counts as one call.
+     */
+    KbKnowledgeAPI withAdaptiveConcurrency(int initialLimit, int maxLimit, double maxRequestsPerSecond) {
+        KbTransport delegate = transport != null ? transport : new KbBlockingTransport(httpClient);
+        limiter = new KbAdaptiveLimiter(initialLimit, maxLimit, maxRequestsPerSecond);
+        setTransport(new KbLimitedTransport(delegate, limiter));
+        log.debug("Enabled adaptive concurrency, initial limit {}, max limit {}, max {} requests per second",
+                initialLimit, maxLimit, maxRequestsPerSecond);
+        return this;
+    }
+
+    /**
+     * Packs Table API calls into Batch API requests of up to batchSize calls,
+     * on top of the async client, call after {@link #withAsyncHttpClient()}.
+     * Over the blocking client every call is waited for on its own and
+     * nothing is batched.
+     */
+    KbKnowledgeAPI withBatching(int batchSize, long lingerMillis) {
+        KbTransport delegate = transport != null ? transport : new KbBlockingTransport(httpClient);
+        if (delegate.isBlocking()) {
+            log.warn("Batching needs the async HTTP client, calls are sent one by one");
+        }
+        KbBatchTransport batching = new KbBatchTransport(instance, delegate, batchSize, lingerMillis);
+        // flushed, and its threads stopped, before the client it sends through is closed
+        clients.add(0, batching);
+        setTransport(batching);
+        log.debug("Enabled batching, batch size {}, linger {} ms", batchSize, lingerMillis);
+        return this;
+    }
+
+    /**
+     * Records every created record in the journal file, after replaying what
+     * an earlier run recorded there. Articles it finished are skipped and
+     * links to them, attachments and categories it created are reused.
+     */
+    KbKnowledgeAPI withJournal(Path file) throws IOException {
+        KbJournal.replay(file, (type, key, sysId) -> {
+            switch (type) {
+            case KbJournal.DONE:
+                completed.add(key);
+                pathToKbSysId.put(key, sysId);
+                break;
+            case KbJournal.KB:
+                pathToKbSysId.put(key, sysId);
+                break;
+            case KbJournal.ATTACHMENT:
+                pathToAttachmentSysId.put(key, sysId);
+                break;
+            case KbJournal.CONTENT:
+                hashToAttachmentSysId.put(key, sysId);
+                break;
+            case KbJournal.CATEGORY:
+                if (klb != null) {
+                    klb.rememberCategory(key, sysId);
+                }
+                break;
+            default:
+                log.warn("Unknown journal record {}", type);
+            }
+        });
+
+        journal = new KbJournal(file, KbJournal.DEFAULT_SYNC_RECORDS, KbJournal.DEFAULT_SYNC_MILLIS);
+        if (klb != null) {
+            klb.setJournal(journal);
+        }
+
+        log.debug("Journal {}, {} files done", file, completed.size());
+        return this;
+    }
+
+    /**
+     * Imports only what changed since the sync that saved the state file,
+     * the state is saved again at the end of the run.
+     */
+    KbKnowledgeAPI withSync(Path stateFile) throws IOException {
+        syncState = KbSyncState.load(stateFile);
+        syncState.getPrevious().forEach((fileName, entry) -> pathToKbSysId.putIfAbsent(fileName, entry.getSysId()));
+        hashToAttachmentSysId.putAll(syncState.getAttachments());
+        log.debug("Sync state {}", stateFile);
+        return this;
+    }
+
+    /**
+     * Number of attachments hashed and uploaded at the same time.
+     */
+    KbKnowledgeAPI withAttachmentWorkers(int attachmentWorkers) {
+        if (attachmentWorkers < 1) {
+            throw new IllegalArgumentException("Attachment workers must be positive");
+        }
+        this.attachmentWorkers = attachmentWorkers;
+        return this;
+    }
+
+    /**
+     * Assigns kb_knowledge sys_ids on the client, links are rewritten without
+     * creating the records first and each article is a single POST.
+     */
+    KbKnowledgeAPI withClientSysIds() {
+        this.clientSysIds = true;
+        log.debug("Enabled client side sys_ids");
+        return this;
+    }
+
+    /**
+     * Also writes the rewritten text of every article to a .1 file next to
+     * it, for debugging the rewrite.
+     */
+    KbKnowledgeAPI withOutputFiles() {
+        this.outputFiles = true;
+        log.debug("Enabled output files");
+        return this;
+    }
+
+    /**
+     * Streams files larger than the threshold in bytes through
+     * {@link KbHtmlRewriter} instead of parsing them, 0 streams every file.
+     */
+    KbKnowledgeAPI withStreamingThreshold(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Streaming threshold must not be negative");
+        }
+        this.streamingThreshold = bytes;
+        log.debug("Streaming files above {} bytes", bytes);
+        return this;
+    }
+
+    /**
+     * Imports through {@link KbImportPipeline} instead of one file at a time.
+     */
+    KbKnowledgeAPI withPipeline(int cpuWorkers, int ioWorkers, int queueCapacity) {
+        if (cpuWorkers < 1 || ioWorkers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Worker counts and queue capacity must be positive");
+        }
+        this.cpuWorkers = cpuWorkers;
+        this.ioWorkers = ioWorkers;
+        this.queueCapacity = queueCapacity;
+        log.debug("Enabled pipeline, cpu workers {}, io workers {}, queue capacity {}", cpuWorkers, ioWorkers,
+                queueCapacity);
+        return this;
+    }
+
+    /**
+     * Sizes the cache in front of kb_knowledge_base, kb_category and
+     * sys_user_group lookups, maxSize 0 disables it.
+     */
+    KbKnowledgeAPI withLookupCache(int maxSize, long ttlMillis) {
+        if (klb == null) {
+            throw new IllegalStateException("KbKnowledgeBase not set");
+        }
+        klb.setLookupCache(maxSize > 0 ? new KbLookupCache(maxSize, ttlMillis) : null);
+        log.debug("Lookup cache size {}, ttl {} ms", maxSize, ttlMillis);
+        return this;
+    }
+
+    /**
+     * Reads all knowledge bases and categories before the first file instead
+     * of looking them up per breadcrumb.
+     */
+    KbKnowledgeAPI withHierarchyPreload(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.preloadPageSize = pageSize;
+        log.debug("Enabled hierarchy preload, page size {}", pageSize);
         return this;
     }
 
@@ -459,27 +1844,179 @@ public class KbKnowledgeAPI {
         return this;
     }
 
-    private void populateKnowledgeBase(Path html, Map<String, Object> params) throws Exception {
+    /**
+     * Imports the files whose path below the base folder matches one of the
+     * include globs and none of the exclude globs, at any depth.
+     */
+    KbKnowledgeAPI withFileFilter(List<String> includes, List<String> excludes) {
+        this.fileFilter = new KbFileWalker.Filter(includes, excludes).shard(fileFilter.getShardIndex(),
+                fileFilter.getShardCount());
+        log.debug("Including {}, excluding {}", includes, excludes);
+        return this;
+    }
+
+    /**
+     * Imports only the files of shard shardIndex of shardCount, counted from
+     * 0, so shardCount processes started on the same folder import it side by
+     * side, see {@link KbFileWalker.Filter#owns(Path)}. Links to files of
+     * other shards resolve through the shared registry, or to the client side
+     * sys_id with {@link #withClientSysIds()}.
+     */
+    KbKnowledgeAPI withShard(int shardIndex, int shardCount) {
+        this.fileFilter = fileFilter.shard(shardIndex, shardCount);
+        log.debug("Shard {} of {}", shardIndex, shardCount);
+        return this;
+    }
+
+    /**
+     * Shares the sys_ids of kb_knowledge records, attachments and categories
+     * with the other processes of a sharded import through a folder on a
+     * shared volume, see {@link KbSharedRegistry}.
+     */
+    KbKnowledgeAPI withSharedRegistry(Path dir, long staleMillis) throws IOException {
+        this.registry = new KbSharedRegistry(dir, staleMillis);
         if (klb != null) {
-            KbKnowledge kl = klb.getKbKnowledge(html);
+            klb.setRegistry(registry);
+        }
+        log.debug("Shared registry {}", dir);
+        return this;
+    }
 
-            if (kl != null) {
-                params.put("u_assignment_group", kl.getAssignmentGroupId());
-                params.put("short_description", kl.getShortDesc());
-                params.put("language", kl.getLang());
+    /**
+     * Whether this shard imports the file, files outside the base folder
+     * are hashed by their relative path as well.
+     */
+    boolean owns(Path file) {
+        return fileFilter.owns(
+                basedir.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize()));
+    }
 
-            } else {
-                log.warn("Can not find kb_knowledge_base, assignment group not set for {}", html.toString());
-            }
+    /**
+     * Reads every file and the files it links to before the first import and
+     * imports linked files first, see {@link KbLinkGraph}. In the pipeline a
+     * file starts once the files it links to are done. The paths of the whole
+     * folder are held in memory and the import starts after the scan.
+     */
+    KbKnowledgeAPI withLinkOrder() {
+        this.linkOrder = true;
+        log.debug("Enabled link order");
+        return this;
+    }
+
+    /**
+     * Logs articles done, throughput and ETA every periodSeconds, 0 only logs
+     * the timings at the end.
+     */
+    KbKnowledgeAPI withProgress(long periodSeconds) {
+        if (periodSeconds < 0) {
+            throw new IllegalArgumentException("Progress period must not be negative");
+        }
+        this.progressSeconds = periodSeconds;
+        return this;
+    }
 
-            if (kl != null && kl.getKnowledgeBaseId() != null) {
-                params.put("kb_knowledge_base", kl.getKnowledgeBaseId());
+    /**
+     * Writes the stage and endpoint timings, bytes, retries and cache hit
+     * rates of the run to a JSON file at the end.
+     */
+    KbKnowledgeAPI withMetricsReport(Path file) {
+        this.metricsReport = file;
+        log.debug("Metrics report {}", file);
+        return this;
+    }
 
-                if (kl.getCategoryId() != null) {
-                    params.put("kb_category", kl.getCategoryId());
-                }
-            }
+    /**
+     * Runs the import without sending anything and reports what it would
+     * send, see {@link KbImportPlan}, written to planFile as well when not
+     * null. Replaces the client and closes the async one, call before
+     * {@link #withBatching(int, long)} so batches show in the plan.
+     */
+    KbKnowledgeAPI withDryRun(Path planFile, double requestsPerSecond, int concurrency, long latencyMillis) {
+        this.plan = new KbImportPlan(requestsPerSecond, concurrency, latencyMillis);
+        this.planFile = planFile;
+        closeAsyncClient();
+        setTransport(plan.getTransport());
+        log.debug("Dry run, plan {}", planFile);
+        return this;
+    }
+
+    KbImportPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Files whose context, and parsed page, is still held.
+     */
+    int getOpenContexts() {
+        return contexts.size();
+    }
+
+    private void closeAsyncClient() {
+        if (asyncClient != null) {
+            clients.remove(asyncClient);
+            close(asyncClient);
+            asyncClient = null;
+        }
+    }
+
+    private void closeClients() {
+        clients.forEach(KbKnowledgeAPI::close);
+        clients.clear();
+        asyncClient = null;
+    }
+
+    private static void close(Closeable client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("Can not close HTTP client", e);
+        }
+    }
+
+    KbMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void populateKnowledgeBase(KbArticleContext ctx, KbJsonCodec.KnowledgeRecord record) throws Exception {
+        if (klb != null) {
+            populateKnowledgeBase(ctx, record, klb.getKbKnowledge(ctx));
+        }
+    }
+
+    /**
+     * The fields of the article's kb_knowledge record, put together as the
+     * lookups of the knowledge base complete.
+     */
+    private CompletableFuture<KbJsonCodec.KnowledgeRecord> knowledgeRecordAsync(KbArticleContext ctx) {
+        KbJsonCodec.KnowledgeRecord record = new KbJsonCodec.KnowledgeRecord();
+        if (klb == null) {
+            return CompletableFuture.completedFuture(record);
+        }
+
+        return klb.getKbKnowledgeAsync(ctx).thenApply(kl -> {
+            populateKnowledgeBase(ctx, record, kl);
+            return record;
+        });
+    }
+
+    private void populateKnowledgeBase(KbArticleContext ctx, KbJsonCodec.KnowledgeRecord record, KbKnowledge kl) {
+        ctx.setKnowledge(kl);
+
+        if (kl != null) {
+            record.setAssignmentGroup(kl.getAssignmentGroupId());
+            record.setShortDescription(kl.getShortDesc());
+            record.setLanguage(kl.getLang());
+
+        } else {
+            log.warn("Can not find kb_knowledge_base, assignment group not set for {}", ctx.getPath());
+        }
 
+        if (kl != null && kl.getKnowledgeBaseId() != null) {
+            record.setKnowledgeBase(kl.getKnowledgeBaseId());
+
+            if (kl.getCategoryId() != null) {
+                record.setCategory(kl.getCategoryId());
+            }
         }
     }
 
@@ -1,13 +1,21 @@
 package com.plane.files.demo;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import org.apache.commons.codec.EncoderException;
 import org.apache.commons.codec.net.URLCodec;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -15,9 +23,7 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -30,6 +36,41 @@ public class KbKnowledgeBase {
 
     private String instance;
 
+    private KbLookupCache lookupCache = new KbLookupCache(KbLookupCache.DEFAULT_MAX_SIZE, 0);
+
+    private KbHierarchyIndex hierarchyIndex;
+
+    private KbTransport transport;
+
+    private KbJournal journal;
+
+    private KbSharedRegistry registry;
+
+    private KbRetryPolicy retryPolicy = KbRetryPolicy.defaults();
+
+    private KbMetrics metrics = new KbMetrics();
+
+    /** the category tree as far as this run resolved it, sys_ids by full name */
+    private final Map<String, String> knownCategories = new ConcurrentHashMap<>();
+
+    /** full names of the categories this run created, nothing below them exists yet */
+    private final Set<String> createdCategories = ConcurrentHashMap.newKeySet();
+
+    /** full names of the categories looked up first and not found, the walk from the top creates them */
+    private final Set<String> missingCategories = ConcurrentHashMap.newKeySet();
+
+    private final KbSingleFlight<String, String> categoryCreation = new KbSingleFlight<>();
+
+    private final KbSingleFlight<String, String> categoryLookup = new KbSingleFlight<>();
+
+    public static final int DEFAULT_PRELOAD_PAGE_SIZE = 1000;
+
+    static final String KB_KNOWLEDGE_BASE_TABLE = "table/kb_knowledge_base";
+
+    static final String KB_CATEGORY_TABLE = "table/kb_category";
+
+    static final String SYS_USER_GROUP_TABLE = "table/sys_user_group";
+
     protected static Logger log = LoggerFactory.getLogger(KbKnowledgeBase.class);
 
     final static String DEFAULT_ASSIGNMENT_GROUP = "HR Europe";
@@ -56,15 +97,21 @@ public class KbKnowledgeBase {
     }
 
     KbKnowledge getKbKnowledge(Path html) throws Exception {
+        return getKbKnowledge(new KbArticleContext(html));
+    }
 
+    KbKnowledge getKbKnowledge(KbArticleContext ctx) throws Exception {
+
+        final Path html = ctx.getPath();
         final KbKnowledge kb;
         try {
 
-            kb = fromFile(html);
+            kb = fromDocument(html, ctx.getDocument());
 
             kb.setKnowledgeBaseId(getKbIdByName(kb.getKnowledgeBaseTitle()));
 
-            if (kb.getCategoryId() == null) {
+            // a page without breadcrumbs has no category to look up
+            if (kb.getCategoryId() == null && kb.getCategoryFullName() != null) {
                 kb.setCategoryId(getKbCategoryIdByName(kb.getCategoryFullName()));
             }
 
@@ -83,34 +130,119 @@ public class KbKnowledgeBase {
         return kb;
     }
 
+    /**
+     * Same as {@link #getKbKnowledge(KbArticleContext)} with the knowledge
+     * base, category and group lookups and the category creates in flight
+     * instead of blocking the calling thread, when an async transport is set.
+     * The page is read on the caller, the rest runs as the responses arrive.
+     */
+    CompletableFuture<KbKnowledge> getKbKnowledgeAsync(KbArticleContext ctx) {
+
+        if (!isAsync()) {
+            try {
+                return CompletableFuture.completedFuture(getKbKnowledge(ctx));
+            } catch (Exception e) {
+                return KbKnowledgeAPI.failed(e);
+            }
+        }
+
+        final Path html = ctx.getPath();
+        final Document doc;
+        try {
+            doc = ctx.getDocument();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<String> group = getIdByURLQueryAsync(groupQuery(DEFAULT_ASSIGNMENT_GROUP));
+
+        return fromDocumentAsync(html, doc)
+                .thenCompose(kb -> getKbIdByNameAsync(kb.getKnowledgeBaseTitle()).thenCompose(kbId -> {
+                    kb.setKnowledgeBaseId(kbId);
+
+                    // a page without breadcrumbs has no category to look up
+                    if (kb.getCategoryId() == null && kb.getCategoryFullName() != null) {
+                        return getKbCategoryIdByNameAsync(kb.getCategoryFullName()).thenApply(id -> {
+                            kb.setCategoryId(id);
+                            return kb;
+                        });
+                    }
+                    return CompletableFuture.completedFuture(kb);
+                })).thenCombine(group, (kb, groupId) -> {
+                    if (KbKnowledgeBase.useTranslatedVersion) {
+                        getSupportedLanguages().keySet().stream()
+                                .filter(k -> kb.getKnowledgeBaseTitle().contains(k)).findAny()
+                                .ifPresent(k -> kb.setLang(languages.get(k)));
+
+                        log.debug("Path [{}], Language [{}]", html.toString(), kb.getLang());
+                    }
+
+                    kb.setAssignmentGroupId(groupId);
+                    return kb;
+                });
+    }
+
     String getKbIdByName(String kbName) throws Exception {
 
         log.info("Reading kb_knowledge_base for {}", kbName);
 
-        return getIdByURLQuery("table/kb_knowledge_base" + "?title=" + new URLCodec().encode(kbName));
+        if (hierarchyIndex != null) {
+            return hierarchyIndex.getKnowledgeBaseId(kbName);
+        }
+
+        return getIdByURLQuery(KB_KNOWLEDGE_BASE_TABLE + "?title=" + new URLCodec().encode(kbName));
+    }
+
+    CompletableFuture<String> getKbIdByNameAsync(String kbName) {
+
+        log.info("Reading kb_knowledge_base for {}", kbName);
+
+        if (hierarchyIndex != null) {
+            return CompletableFuture.completedFuture(hierarchyIndex.getKnowledgeBaseId(kbName));
+        }
+
+        try {
+            return getIdByURLQueryAsync(KB_KNOWLEDGE_BASE_TABLE + "?title=" + new URLCodec().encode(kbName));
+        } catch (EncoderException e) {
+            return KbKnowledgeAPI.failed(e);
+        }
     }
 
     String getAssignmentGroupByName(String name) throws Exception {
 
-        return getIdByURLQuery("table/sys_user_group" + "?name=" + new URLCodec().encode(name));
+        return getIdByURLQuery(groupQuery(name));
+    }
+
+    private static String groupQuery(String name) {
+        try {
+            return SYS_USER_GROUP_TABLE + "?name=" + new URLCodec().encode(name);
+        } catch (EncoderException e) {
+            throw new IllegalArgumentException("Can not encode group name " + name, e);
+        }
     }
 
     String getIdByURLQuery(String q) {
 
-        if (this.httpClient == null) {
-            log.error("HttpClient not set");
-            throw new IllegalStateException("HttpClient not set");
+        long start = System.nanoTime();
+        try {
+            if (lookupCache != null) {
+                return lookupCache.get(q, () -> queryId(q));
+            }
+
+            return queryId(q);
+        } finally {
+            metrics.record(KbMetrics.LOOKUP, start);
         }
+    }
 
-        HttpGet request = new HttpGet(instance + KbKnowledgeAPI.API_PATH + q + "&sysparm_fields=sys_id");
+    private String queryId(String q) {
 
-        log.debug("Request uri: {}", request.getURI().toString());
-
-        request.addHeader("Accept", "application/json");
+        HttpGet request = lookupRequest(q);
 
         HttpResponse response;
         try {
-            response = httpClient.execute(request);
+            response = execute(request);
 
             handleTableApiResponse(response);
 
@@ -118,6 +250,9 @@ public class KbKnowledgeBase {
 
             return getSysId(response);
 
+        } catch (KbApiException e) {
+            // not a miss, the lookup cache must not remember it
+            throw new UncheckedIOException(e);
         } catch (ClientProtocolException e) {
             log.error(e.getMessage(), e);
         } catch (IOException e) {
@@ -127,43 +262,188 @@ public class KbKnowledgeBase {
         return null;
     }
 
-    void handleTableApiResponse(HttpResponse response) {
+    /**
+     * Same lookup as {@link #getIdByURLQuery(String)} without blocking a thread
+     * while the instance answers, when an async transport is set.
+     */
+    CompletableFuture<String> getIdByURLQueryAsync(String q) {
+
+        if (!isAsync()) {
+            return CompletableFuture.completedFuture(getIdByURLQuery(q));
+        }
+
+        long start = System.nanoTime();
+
+        if (lookupCache != null) {
+            return metrics.time(KbMetrics.LOOKUP, start, lookupCache.getAsync(q, () -> queryIdAsync(q)));
+        }
+
+        return metrics.time(KbMetrics.LOOKUP, start, queryIdAsync(q));
+    }
+
+    private CompletableFuture<String> queryIdAsync(String q) {
+
+        return retryPolicy.execute(lookupRequest(q), transport).thenApply(response -> {
+            try {
+                handleTableApiResponse(response);
+
+                return getSysId(response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).exceptionally(e -> {
+            if (e.getCause() instanceof UncheckedIOException
+                    && e.getCause().getCause() instanceof KbApiException) {
+                throw (UncheckedIOException) e.getCause();
+            }
+            log.error(e.getMessage(), e);
+            return null;
+        });
+    }
+
+    private HttpGet lookupRequest(String q) {
+
+        HttpGet request = new HttpGet(instance + KbKnowledgeAPI.API_PATH + q + "&sysparm_fields=sys_id");
+
+        log.debug("Request uri: {}", request.getURI().toString());
+
+        request.addHeader("Accept", "application/json");
+
+        return request;
+    }
+
+    private HttpResponse execute(HttpUriRequest request) throws IOException {
+
+        if (transport != null) {
+            return retryPolicy.executeAndWait(request, transport);
+        }
+
+        if (this.httpClient == null) {
+            log.error("HttpClient not set");
+            throw new IllegalStateException("HttpClient not set");
+        }
+
+        return retryPolicy.executeAndWait(request, new KbBlockingTransport(httpClient));
+    }
+
+    /**
+     * Reads every kb_knowledge_base and kb_category in pages and answers
+     * knowledge base and category lookups from memory from then on.
+     */
+    KbHierarchyIndex preloadHierarchy(int pageSize) throws IOException {
+
+        KbHierarchyIndex index = new KbHierarchyIndex();
+
+        readPages(KB_KNOWLEDGE_BASE_TABLE, "title", pageSize, index::putKnowledgeBase);
+        readPages(KB_CATEGORY_TABLE, "full_category", pageSize, index::putCategory);
+
+        log.info("Preloaded {} kb_knowledge_base and {} kb_category records", index.getKnowledgeBaseCount(),
+                index.getCategoryCount());
+
+        this.hierarchyIndex = index;
+
+        return index;
+    }
+
+    private void readPages(String table, String keyField, int pageSize, BiConsumer<String, String> sink)
+            throws IOException {
+
+        for (int offset = 0;; offset += pageSize) {
+
+            HttpGet request = new HttpGet(instance + KbKnowledgeAPI.API_PATH + table
+                    + "?sysparm_query=ORDERBYsys_id&sysparm_fields=sys_id," + keyField + "&sysparm_limit=" + pageSize
+                    + "&sysparm_offset=" + offset);
+
+            log.debug("Request uri: {}", request.getURI().toString());
+
+            request.addHeader("Accept", "application/json");
+
+            HttpResponse response = execute(request);
+
+            int count;
+            try {
+                handleTableApiResponse(response);
+
+                count = KbJsonCodec.readResults(response.getEntity(), keyField, sink);
+            } finally {
+                KbHttpClients.release(response);
+            }
+
+            if (count < pageSize) {
+                return;
+            }
+        }
+    }
+
+    void handleTableApiResponse(HttpResponse response) throws KbApiException {
         if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() >= 300) {
             log.error("Internal error, server response code {}", response.getStatusLine().getStatusCode());
-            System.exit(-1);
+            KbHttpClients.release(response);
+            throw KbApiException.of(response);
         }
 
     }
 
-    final ObjectMapper mapper = new ObjectMapper();
-
     protected String getSysId(HttpResponse response) throws IOException {
         return getSysId(response, "/result/0/sys_id");
     }
 
     protected String getSysId(HttpResponse response, String path) throws IOException {
-        HttpEntity respEntity = response.getEntity();
         String sysId = null;
-        if (respEntity != null) {
+        try {
+            sysId = KbJsonCodec.readText(response.getEntity(), path);
 
-            String result = EntityUtils.toString(respEntity);
+            if (sysId != null) {
+                log.info("Record sys_id:{}", sysId);
+            }
+        } finally {
+            KbHttpClients.release(response);
+        }
+        return sysId;
+    }
 
-            JsonNode root = mapper.readTree(result);
-            sysId = root.at(path).asText();
+    String getKbCategoryIdByName(String kbCategory) throws Exception {
 
-            log.debug("Response: {}\n", root.toPrettyString());
+        log.info("Reading kb_category for {}", kbCategory);
 
-            log.info("Record sys_id:{}", sysId);
+        String known = knownCategories.get(kbCategory);
+        if (known != null) {
+            return known;
+        }
 
+        if (hierarchyIndex != null) {
+            return hierarchyIndex.getCategoryId(kbCategory);
         }
-        return sysId;
+
+        return getIdByURLQuery(categoryQuery(kbCategory));
     }
 
-    String getKbCategoryIdByName(String kbCategory) throws Exception {
+    private static String categoryQuery(String fullCategory) {
+        try {
+            return KB_CATEGORY_TABLE + "?full_category=" + new URLCodec().encode(fullCategory);
+        } catch (EncoderException e) {
+            throw new IllegalArgumentException("Can not encode category name " + fullCategory, e);
+        }
+    }
+
+    CompletableFuture<String> getKbCategoryIdByNameAsync(String kbCategory) {
 
         log.info("Reading kb_category for {}", kbCategory);
 
-        return getIdByURLQuery("table/kb_category" + "?full_category=" + new URLCodec().encode(kbCategory));
+        String known = knownCategories.get(kbCategory);
+        if (known != null) {
+            return CompletableFuture.completedFuture(known);
+        }
+
+        if (hierarchyIndex != null) {
+            return CompletableFuture.completedFuture(hierarchyIndex.getCategoryId(kbCategory));
+        }
+
+        try {
+            return getIdByURLQueryAsync(categoryQuery(kbCategory));
+        } catch (IllegalArgumentException e) {
+            return KbKnowledgeAPI.failed(e);
+        }
     }
 
     static class KbKnowledge {
@@ -253,6 +533,51 @@ public class KbKnowledgeBase {
         this.httpClient = httpClient;
     }
 
+    /**
+     * Records every category resolved so a resumed run does not look it up again.
+     */
+    void setJournal(KbJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sends lookups and category creation through the async transport instead
+     * of the blocking client.
+     */
+    void setTransport(KbTransport transport) {
+        this.transport = transport;
+    }
+
+    private boolean isAsync() {
+        return transport != null && !transport.isBlocking();
+    }
+
+    /**
+     * Creates each category once across the processes of a sharded import.
+     */
+    void setRegistry(KbSharedRegistry registry) {
+        this.registry = registry;
+    }
+
+    void setRetryPolicy(KbRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    void setMetrics(KbMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Replaces the lookup cache, null sends every lookup to the instance.
+     */
+    void setLookupCache(KbLookupCache lookupCache) {
+        this.lookupCache = lookupCache;
+    }
+
+    KbLookupCache getLookupCache() {
+        return lookupCache;
+    }
+
     public KbKnowledgeBase(String instance) {
         this.instance = instance;
     }
@@ -293,7 +618,10 @@ public class KbKnowledgeBase {
     public final static String DEFAULT_KB = "Internal HR Knowledge - Europe";
 
     KbKnowledge fromFile(Path html) throws Exception {
-        Document doc = Jsoup.parse(html.toFile(), "UTF-8");
+        return fromDocument(html, Jsoup.parse(html.toFile(), "UTF-8"));
+    }
+
+    KbKnowledge fromDocument(Path html, Document doc) throws Exception {
 
         KbKnowledge kl = new KbKnowledge();
 
@@ -412,66 +740,458 @@ public class KbKnowledgeBase {
         return kl;
     }
 
+    /**
+     * Same as {@link #fromDocument(Path, Document)} with the knowledge base
+     * lookups and the category creates in flight. The breadcrumbs are read
+     * before the first lookup is sent.
+     */
+    CompletableFuture<KbKnowledge> fromDocumentAsync(Path html, Document doc) {
+
+        KbKnowledge kl = new KbKnowledge();
+
+        Element slugs = doc.select("#breadcrumbs").first();
+
+        String lLevel = extractLowestLevel(doc);
+
+        kl.setShortDesc(lLevel);
+
+        CompletableFuture<KbKnowledge> parsed;
+        if (slugs == null) {
+            kl.setKnowledgeBaseTitle(DEFAULT_KB);
+            parsed = CompletableFuture.completedFuture(kl);
+        } else {
+            int i = slugs.children().size();
+            List<String> labels = labels(slugs);
+
+            log.debug("Number of slugs to analyze {}, file {}", i, html.toString());
+            switch (i) {
+            case 0: {
+                parsed = CompletableFuture.completedFuture(kl);
+                break;
+            }
+            case 1: {
+                kl.setKnowledgeBaseTitle(DEFAULT_KB);
+                parsed = CompletableFuture.completedFuture(kl);
+                break;
+            }
+            case 2: {
+                parsed = isKnowledgeBase(lLevel).thenCompose(found -> {
+                    kl.setKnowledgeBaseTitle(found ? lLevel : label(labels, 1));
+
+                    return withCategory(kl, new KbCategory(null, lLevel));
+                });
+                break;
+            }
+            case 3: {
+                String potentialKblTitle = label(labels, 2);
+
+                parsed = isKnowledgeBase(potentialKblTitle).thenCompose(found -> {
+                    if (found) {
+                        // this is edge case
+                        kl.setCategoryFullName(lLevel);
+                        kl.setKnowledgeBaseTitle(potentialKblTitle);
+                        return CompletableFuture.completedFuture(kl);
+                    }
+
+                    // can be a variant with kb_knowledge_base under index 1
+                    kl.setKnowledgeBaseTitle(label(labels, 1));
+
+                    KbCategory parent = new KbCategory(null, kl.getKnowledgeBaseTitle());
+                    return withCategory(kl, new KbCategory(parent, potentialKblTitle));
+                });
+                break;
+            }
+            default: {
+                parsed = isKnowledgeBase(label(labels, 2)).thenCompose(found -> {
+                    // can be a variant with kb_knowledge_base under index 1
+                    int k = found ? 3 : 2;
+
+                    kl.setKnowledgeBaseTitle(label(labels, k - 1));
+
+                    KbCategory curr = new KbCategory(null, kl.getKnowledgeBaseTitle());
+                    for (; k < i; k++) {
+                        curr = new KbCategory(curr, label(labels, k));
+                    }
+                    return withCategory(kl, curr);
+                });
+            }
+            }
+        }
+
+        return parsed.thenApply(kb -> {
+            log.debug("Parsed fields: shortdesc: [{}], knowledgebase: [{}], catgegory: [{}]", kb.getShortDesc(),
+                    kb.getKnowledgeBaseTitle(), kb.getCategoryFullName());
+            return kb;
+        });
+    }
+
+    /**
+     * The label of every breadcrumb, null for one without a link.
+     */
+    private static List<String> labels(Element slugs) {
+        List<String> labels = new ArrayList<>();
+        for (Element slug : slugs.children()) {
+            Element link = slug.select("span a").first();
+            labels.add(link != null ? link.text() : null);
+        }
+        return labels;
+    }
+
+    private static String label(List<String> labels, int k) {
+        String label = labels.get(k);
+        if (label == null) {
+            throw new IllegalStateException("Breadcrumb " + k + " has no label");
+        }
+        return label;
+    }
+
+    private CompletableFuture<Boolean> isKnowledgeBase(String title) {
+        return getKbIdByNameAsync(title).thenApply(id -> id != null && !id.isEmpty());
+    }
+
+    private CompletableFuture<KbKnowledge> withCategory(KbKnowledge kl, KbCategory curr) {
+        return createIfNotExistAsync(curr).thenApply(nCategory -> {
+            log.debug("Category sys_id: [{}], full_name:[{}]", nCategory, curr.getFullName());
+
+            kl.setCategoryId(nCategory);
+            kl.setCategoryFullName(curr.getFullName());
+            return kl;
+        });
+    }
+
+    /**
+     * Resolves the category, looking it up first. Only when it does not
+     * exist are the categories above it resolved, top-down from the one below
+     * the knowledge base, creating the missing ones. A node is looked up once
+     * per run, and the nodes below one this run created are created without
+     * a lookup. Concurrent calls for the same node wait for the one in
+     * flight, and with a shared registry for the process creating it, so no
+     * category is created twice.
+     */
     String createIfNotExist(KbCategory c) throws Exception {
         log.debug("Category [{}], parent [{}]", c.getFullName(),
                 c.getParent() != null ? c.getParent().getFullName() : null);
-        if (c.getParent() == null) {
 
-            String nCategory = getKbCategoryIdByName(c.getFullName());
+        String leaf = knownCategories.get(c.getFullName());
+        if (leaf != null) {
+            return leaf;
+        }
+        if (c.getParent() != null && !missingCategories.contains(c.getFullName())) {
+            try {
+                leaf = categoryLookup.execute(c.getFullName(), () -> lookUpExisting(c.getFullName()));
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+            if (leaf != null && !leaf.isEmpty()) {
+                return leaf;
+            }
+        }
 
-            if (nCategory == null || nCategory.isEmpty()) {
+        Deque<KbCategory> path = new ArrayDeque<>();
+        for (KbCategory node = c; node != null; node = node.getParent()) {
+            path.push(node);
+        }
 
-                String kblId = getKbIdByName(c.getLabel());
+        String parentId = null;
+        boolean parentCreated = false;
+        for (KbCategory node : path) {
+            String id = knownCategories.get(node.getFullName());
+            if (id == null) {
+                // the leaf looked up first is not looked up again
+                id = resolveCategory(node, parentId, parentCreated || missingCategories.contains(node.getFullName()));
+            }
+            parentId = id;
+            parentCreated = createdCategories.contains(node.getFullName());
+        }
+        return parentId;
+    }
 
-                nCategory = createKbCategory(c.getLabel(), kblId, "kb_knowledge_base");
+    /**
+     * The sys_id of a category that exists, from this run, the index or the
+     * instance. A miss is remembered so the category is not looked up again,
+     * a lookup that failed is not a miss.
+     */
+    private String lookUpExisting(String fullName) {
+        String id;
+        try {
+            id = getKbCategoryIdByName(fullName);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+        return existing(fullName, id);
+    }
+
+    private String existing(String fullName, String id) {
+        if (id != null && !id.isEmpty()) {
+            knownCategories.putIfAbsent(fullName, id);
+            return id;
+        }
+        if (id != null) {
+            missingCategories.add(fullName);
+        }
+        return null;
+    }
+
+    private String resolveCategory(KbCategory node, String parentId, boolean parentCreated) throws Exception {
+        String fullName = node.getFullName();
+        try {
+            return categoryCreation.execute(fullName, () -> {
+                // resolved by the flight this caller just missed
+                String known = knownCategories.get(fullName);
+                if (known != null) {
+                    return known;
+                }
+
+                if (registry == null) {
+                    return lookUpOrCreate(node, parentId, parentCreated);
+                }
+
+                // created by another process, its id is all this one needs
+                String id = registry.resolve(KbJournal.CATEGORY, fullName,
+                        () -> lookUpOrCreate(node, parentId, parentCreated));
+                if (id != null && !id.isEmpty()) {
+                    knownCategories.putIfAbsent(fullName, id);
+                }
+                return id;
+            });
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
             }
+            throw e;
+        }
+    }
 
-            return nCategory;
+    /**
+     * Same as {@link #createIfNotExist(KbCategory)} with each lookup and
+     * create chained on the one above it instead of waited for.
+     */
+    CompletableFuture<String> createIfNotExistAsync(KbCategory c) {
+        log.debug("Category [{}], parent [{}]", c.getFullName(),
+                c.getParent() != null ? c.getParent().getFullName() : null);
 
-        } else {
-            String id = getKbCategoryIdByName(c.getFullName());
-            if (id == null || id.isEmpty()) {
-                String p = getKbCategoryIdByName(c.getParent().getFullName());
-                if (p == null || p.isEmpty()) {
-                    p = createIfNotExist(c.getParent());
+        String known = knownCategories.get(c.getFullName());
+        if (known != null) {
+            return CompletableFuture.completedFuture(known);
+        }
+        if (c.getParent() == null || missingCategories.contains(c.getFullName())) {
+            return walkAsync(c);
+        }
+
+        return categoryLookup.executeAsync(c.getFullName(),
+                () -> getKbCategoryIdByNameAsync(c.getFullName()).thenApply(id -> existing(c.getFullName(), id)))
+                .thenCompose(id -> id != null && !id.isEmpty() ? CompletableFuture.completedFuture(id) : walkAsync(c));
+    }
+
+    private CompletableFuture<String> walkAsync(KbCategory c) {
+        Deque<KbCategory> path = new ArrayDeque<>();
+        for (KbCategory node = c; node != null; node = node.getParent()) {
+            path.push(node);
+        }
+
+        CompletableFuture<String> parentId = CompletableFuture.completedFuture(null);
+        for (KbCategory node : path) {
+            boolean below = node.getParent() != null;
+            parentId = parentId.thenCompose(id -> {
+                String known = knownCategories.get(node.getFullName());
+                if (known != null) {
+                    return CompletableFuture.completedFuture(known);
                 }
-                return createKbCategory(c.getLabel(), p, c.getParent() == null ? "kb_knowledge_base" : "kb_category");
+                boolean parentCreated = below && createdCategories.contains(node.getParent().getFullName())
+                        || missingCategories.contains(node.getFullName());
+                return resolveCategoryAsync(node, id, parentCreated);
+            });
+        }
+        return parentId;
+    }
+
+    private CompletableFuture<String> resolveCategoryAsync(KbCategory node, String parentId, boolean parentCreated) {
+        String fullName = node.getFullName();
+        return categoryCreation.executeAsync(fullName, () -> {
+            // resolved by the flight this caller just missed
+            String known = knownCategories.get(fullName);
+            if (known != null) {
+                return CompletableFuture.completedFuture(known);
+            }
+
+            if (registry == null) {
+                return lookUpOrCreateAsync(node, parentId, parentCreated);
+            }
+
+            // created by another process, its id is all this one needs
+            return registry.resolveAsync(KbJournal.CATEGORY, fullName,
+                    () -> lookUpOrCreateAsync(node, parentId, parentCreated)).thenApply(id -> {
+                        if (id != null && !id.isEmpty()) {
+                            knownCategories.putIfAbsent(fullName, id);
+                        }
+                        return id;
+                    });
+        });
+    }
+
+    private CompletableFuture<String> lookUpOrCreateAsync(KbCategory node, String parentId, boolean parentCreated) {
+        String fullName = node.getFullName();
+
+        CompletableFuture<String> existing = parentCreated ? CompletableFuture.completedFuture(null)
+                : getKbCategoryIdByNameAsync(fullName);
+
+        return existing.thenCompose(id -> {
+            if (id != null && !id.isEmpty()) {
+                knownCategories.put(fullName, id);
+                return CompletableFuture.completedFuture(id);
+            }
+
+            CompletableFuture<String> created = node.getParent() == null
+                    ? getKbIdByNameAsync(node.getLabel())
+                            .thenCompose(kbId -> createKbCategoryAsync(node.getLabel(), kbId, "kb_knowledge_base"))
+                    : createKbCategoryAsync(node.getLabel(), parentId, "kb_category");
+
+            return created.thenApply(newId -> {
+                forgetLookup(fullName);
+                if (newId != null && !newId.isEmpty()) {
+                    createdCategories.add(fullName);
+                }
+                rememberCategory(fullName, newId);
+                return newId;
+            });
+        }).whenComplete((id, e) -> {
+            if (e != null || id == null || id.isEmpty()) {
+                forgetMissing(fullName);
+            }
+        });
+    }
+
+    private String lookUpOrCreate(KbCategory node, String parentId, boolean parentCreated) {
+        String fullName = node.getFullName();
+        String id = null;
+        try {
+            id = parentCreated ? null : getKbCategoryIdByName(fullName);
+            if (id != null && !id.isEmpty()) {
+                knownCategories.put(fullName, id);
+                return id;
+            }
+
+            if (node.getParent() == null) {
+                id = createKbCategory(node.getLabel(), getKbIdByName(node.getLabel()), "kb_knowledge_base");
+            } else {
+                id = createKbCategory(node.getLabel(), parentId, "kb_category");
             }
+            forgetLookup(fullName);
+
+            if (id != null && !id.isEmpty()) {
+                createdCategories.add(fullName);
+            }
+            rememberCategory(fullName, id);
             return id;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            if (id == null || id.isEmpty()) {
+                forgetMissing(fullName);
+            }
+        }
+    }
+
+    /**
+     * A create that failed or timed out may have gone through, the next
+     * article looks the category up again before creating it.
+     */
+    private void forgetMissing(String fullName) {
+        missingCategories.remove(fullName);
+        forgetLookup(fullName);
+    }
+
+    /**
+     * Drops the cached lookup of one category, a miss is stale once it was
+     * created. Lookups of other categories and tables stay cached.
+     */
+    private void forgetLookup(String fullName) {
+        if (lookupCache != null) {
+            lookupCache.invalidateKey(categoryQuery(fullName));
+        }
+    }
+
+    /**
+     * Keeps a category created by this run, or by an earlier one when replayed
+     * from the journal, so it is never looked up or created again.
+     */
+    void rememberCategory(String fullCategory, String sysId) {
+        if (fullCategory == null || sysId == null || sysId.isEmpty()) {
+            return;
+        }
+
+        knownCategories.put(fullCategory, sysId);
+
+        if (hierarchyIndex != null) {
+            hierarchyIndex.putCategory(fullCategory, sysId);
+        }
+
+        if (journal != null) {
+            journal.record(KbJournal.CATEGORY, fullCategory, sysId);
         }
     }
 
     String createKbCategory(String label, String parentSysId, String parentTable) throws Exception {
 
-        Map<String, Object> params = new HashMap<>();
+        HttpResponse response = execute(categoryRequest(label, parentSysId, parentTable));
+        log.info("Response status: {}", response.getStatusLine().getStatusCode());
+
+        return categoryCreated(response);
 
-        params.put("parent_id", parentSysId);
-        params.put("parent_table", parentTable);
-        params.put("label", label);
-        params.put("value", Math.abs(hashCode()));
+    }
+
+    CompletableFuture<String> createKbCategoryAsync(String label, String parentSysId, String parentTable) {
+
+        HttpPost request;
+        try {
+            if (!isAsync()) {
+                return CompletableFuture.completedFuture(createKbCategory(label, parentSysId, parentTable));
+            }
 
-        String payload = mapper.writeValueAsString(params);
+            request = categoryRequest(label, parentSysId, parentTable);
+        } catch (Exception e) {
+            return KbKnowledgeAPI.failed(e);
+        }
 
-        log.debug("Creating category from data: {}", payload);
+        return retryPolicy.execute(request, transport).thenApply(response -> {
+            try {
+                return categoryCreated(response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
 
-        StringEntity entity = new StringEntity(payload, ContentType.APPLICATION_JSON);
+    private HttpPost categoryRequest(String label, String parentSysId, String parentTable) throws IOException {
+
+        KbJsonCodec.CategoryRecord record = new KbJsonCodec.CategoryRecord(parentSysId, parentTable, label,
+                Math.abs(hashCode()));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Creating category from data: {}", KbJsonCodec.toString(record));
+        }
+
+        HttpEntity entity = KbJsonCodec.entity(record);
 
         HttpPost request = new HttpPost(instance + "/api/now/table/kb_category");
 
         request.setEntity(entity);
 
-        if (this.httpClient == null) {
-            log.error("HttpClient not set");
-            throw new IllegalStateException("HttpClient not set");
-        }
+        return request;
+    }
 
-        HttpResponse response = httpClient.execute(request);
-        log.info("Response status: {}", response.getStatusLine().getStatusCode());
+    private String categoryCreated(HttpResponse response) throws IOException {
 
         handleTableApiResponse(response);
 
         return getSysId(response, "/result/sys_id");
-
     }
 
     String extractLowestLevel(Document doc) {
@@ -0,0 +1,119 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Holds requests back while the {@link KbAdaptiveLimiter} has as many in
+ * flight as the instance currently takes, and feeds it the latency and the
+ * throttling of every response.
+ */
+class KbLimitedTransport implements KbTransport {
+
+    private static final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(KbImportPipeline.daemonThreads("kb-limiter"));
+
+    private final KbTransport delegate;
+
+    private final KbAdaptiveLimiter limiter;
+
+    KbLimitedTransport(KbTransport delegate, KbAdaptiveLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+        return limiter.acquireAsync().thenCompose(v -> {
+            long delay = limiter.reserveSlot();
+            if (delay == 0) {
+                return send(request);
+            }
+
+            CompletableFuture<HttpResponse> f = new CompletableFuture<>();
+            timer.schedule(() -> send(request).whenComplete((response, e) -> {
+                if (e != null) {
+                    f.completeExceptionally(e);
+                } else {
+                    f.complete(response);
+                }
+            }), delay, TimeUnit.NANOSECONDS);
+            return f;
+        });
+    }
+
+    private CompletableFuture<HttpResponse> send(HttpUriRequest request) {
+        long start = System.nanoTime();
+
+        CompletableFuture<HttpResponse> f;
+        try {
+            f = delegate.execute(request);
+        } catch (RuntimeException e) {
+            f = KbKnowledgeAPI.failed(e);
+        }
+
+        return f.whenComplete((response, e) -> limiter.release(start, throttled(response, e)));
+    }
+
+    @Override
+    public HttpResponse executeAndWait(HttpUriRequest request) throws IOException {
+        limiter.acquire();
+
+        long start = System.nanoTime();
+        HttpResponse response = null;
+        Throwable error = null;
+        try {
+            long delay = limiter.reserveSlot();
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a rate slot");
+                }
+                start = System.nanoTime();
+            }
+
+            response = delegate.executeAndWait(request);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            limiter.release(start, throttled(response, error));
+        }
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return delegate.isBlocking();
+    }
+
+    /**
+     * 429 and 503 responses and timeouts, the instance is at its limit.
+     */
+    static boolean throttled(HttpResponse response, Throwable e) {
+        if (e != null) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            return cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException;
+        }
+
+        int status = response.getStatusLine().getStatusCode();
+        return status == 429 || status == 503;
+    }
+
+    KbAdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.plane.files.demo;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Links between the articles of an import, an edge from a file to every
+ * file it links to. Files are imported in the order of
+ * {@link #components()} so the records a file links to exist before it is
+ * rewritten, only files linking to each other in a cycle have to create a
+ * record ahead of its turn.
+ */
+class KbLinkGraph {
+
+    private final Map<Path, Set<Path>> links = new LinkedHashMap<>();
+
+    void addFile(Path path) {
+        links.computeIfAbsent(path, p -> new LinkedHashSet<>());
+    }
+
+    void addLink(Path from, Path to) {
+        addFile(to);
+        links.computeIfAbsent(from, p -> new LinkedHashSet<>()).add(to);
+    }
+
+    boolean contains(Path path) {
+        return links.containsKey(path);
+    }
+
+    Set<Path> getLinks(Path path) {
+        return links.getOrDefault(path, Collections.emptySet());
+    }
+
+    int size() {
+        return links.size();
+    }
+
+    /**
+     * Strongly connected components, every component listed after all the
+     * components it links to. A component of more than one file is a cycle
+     * of links.
+     */
+    List<List<Path>> components() {
+        // Tarjan's algorithm with an explicit stack, long link chains would overflow the call stack
+        Map<Path, Integer> index = new HashMap<>();
+        Map<Path, Integer> low = new HashMap<>();
+        Deque<Path> stack = new ArrayDeque<>();
+        Set<Path> onStack = new HashSet<>();
+        List<List<Path>> components = new ArrayList<>();
+
+        for (Path root : links.keySet()) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+
+            Deque<Visit> visits = new ArrayDeque<>();
+            visits.push(visit(root, index, low, stack, onStack));
+
+            while (!visits.isEmpty()) {
+                Visit v = visits.peek();
+
+                if (v.next.hasNext()) {
+                    Path w = v.next.next();
+                    if (!index.containsKey(w)) {
+                        visits.push(visit(w, index, low, stack, onStack));
+                    } else if (onStack.contains(w)) {
+                        low.put(v.path, Math.min(low.get(v.path), index.get(w)));
+                    }
+                    continue;
+                }
+
+                visits.pop();
+                if (!visits.isEmpty()) {
+                    Path parent = visits.peek().path;
+                    low.put(parent, Math.min(low.get(parent), low.get(v.path)));
+                }
+
+                if (low.get(v.path).equals(index.get(v.path))) {
+                    List<Path> component = new ArrayList<>();
+                    Path w;
+                    do {
+                        w = stack.pop();
+                        onStack.remove(w);
+                        component.add(w);
+                    } while (!w.equals(v.path));
+                    Collections.reverse(component);
+                    components.add(component);
+                }
+            }
+        }
+
+        return components;
+    }
+
+    private Visit visit(Path path, Map<Path, Integer> index, Map<Path, Integer> low, Deque<Path> stack,
+            Set<Path> onStack) {
+        index.put(path, index.size());
+        low.put(path, index.get(path));
+        stack.push(path);
+        onStack.add(path);
+        return new Visit(path, getLinks(path).iterator());
+    }
+
+    private static class Visit {
+
+        private final Path path;
+
+        private final Iterator<Path> next;
+
+        Visit(Path path, Iterator<Path> next) {
+            this.path = path;
+            this.next = next;
+        }
+    }
+
+}
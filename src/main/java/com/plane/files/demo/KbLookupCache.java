@@ -0,0 +1,191 @@
+package com.plane.files.demo;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Memoizes Table API lookups keyed by table and query. Empty results are
+ * cached as well so a missing record is not asked for again. Entries are
+ * evicted least recently used first once the cache is full and, when a TTL
+ * is set, after they expire.
+ */
+class KbLookupCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final Map<String, Entry> entries;
+
+    private final KbSingleFlight<String, String> loads = new KbSingleFlight<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** the running load of each key, an invalidation of the key drops it so its result is not kept */
+    private final Map<String, Object> pending = new HashMap<>();
+
+    /**
+     * @param maxSize   number of entries kept
+     * @param ttlMillis time an entry stays valid, 0 keeps entries until evicted
+     */
+    KbLookupCache(int maxSize, long ttlMillis) {
+        if (maxSize < 1 || ttlMillis < 0) {
+            throw new IllegalArgumentException("Cache size must be positive and TTL not negative");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > KbLookupCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached sys_id for the key or loads it. A null result means
+     * the lookup failed and is not cached, an empty one that no record matched.
+     */
+    String get(String key, Supplier<String> loader) {
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        misses.incrementAndGet();
+
+        return loads.execute(key, () -> {
+            Entry loaded = lookup(key);
+            if (loaded != null) {
+                return loaded.value;
+            }
+
+            Object load = begin(key);
+            String value = null;
+            try {
+                value = loader.get();
+                return value;
+            } finally {
+                end(key, value, load);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #get(String, Supplier)} for lookups that complete later.
+     */
+    CompletableFuture<String> getAsync(String key, Supplier<CompletableFuture<String>> loader) {
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(entry.value);
+        }
+
+        misses.incrementAndGet();
+
+        return loads.executeAsync(key, () -> {
+            Entry loaded = lookup(key);
+            if (loaded != null) {
+                return CompletableFuture.completedFuture(loaded.value);
+            }
+
+            Object load = begin(key);
+            CompletableFuture<String> result;
+            try {
+                result = loader.get();
+            } catch (RuntimeException e) {
+                end(key, null, load);
+                throw e;
+            }
+            return result.whenComplete((v, e) -> end(key, e == null ? v : null, load));
+        });
+    }
+
+    private synchronized Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized Object begin(String key) {
+        Object load = new Object();
+        pending.put(key, load);
+        return load;
+    }
+
+    private synchronized void end(String key, String value, Object load) {
+        // an invalidation of the key while the lookup was running makes its result stale
+        if (pending.remove(key, load) && value != null) {
+            entries.put(key, new Entry(value));
+        }
+    }
+
+    /**
+     * Drops the entry of one key, e.g. the lookup of a record just added. Other
+     * keys and their running lookups are left alone.
+     */
+    synchronized void invalidateKey(String key) {
+        entries.remove(key);
+        pending.remove(key);
+    }
+
+    /**
+     * Drops every entry whose key starts with the prefix, e.g. all lookups of
+     * one table after records were added to it.
+     */
+    synchronized void invalidate(String prefix) {
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+        pending.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class Entry {
+
+        private final String value;
+
+        private final long created = System.nanoTime();
+
+        Entry(String value) {
+            this.value = value;
+        }
+    }
+
+}
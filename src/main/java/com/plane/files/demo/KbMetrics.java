@@ -0,0 +1,748 @@
+package com.plane.files.demo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timers and counters of one import.
+ *
+ * Stages are timed where the import runs them, a lookup is part of the create
+ * that needed it and, when importing one file at a time, resolving
+ * references is part of the rewrite. Endpoints are timed per attempt from
+ * sending a call to its response, including the wait for a connection, the
+ * concurrency limit or a batch.
+ *
+ * Latencies go into log-linear histograms with 8 buckets per power of two,
+ * percentiles are within 12.5% of the recorded value.
+ */
+class KbMetrics implements KbMetricsMXBean {
+
+    protected static Logger log = LoggerFactory.getLogger(KbMetrics.class);
+
+    public static final long DEFAULT_PROGRESS_SECONDS = 10;
+
+    static final String PARSE = "parse";
+
+    static final String PRUNE = "prune";
+
+    static final String REWRITE = "rewrite";
+
+    static final String CREATE = "create";
+
+    static final String PATCH = "patch";
+
+    static final String ATTACHMENT = "attachment";
+
+    static final String LOOKUP = "lookup";
+
+    static final String DOMAIN = "com.plane.files.demo";
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private static final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(KbImportPipeline.daemonThreads("kb-progress"));
+
+    private final Map<String, Timer> stages = new ConcurrentHashMap<>();
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, LongSupplier[]> caches = new ConcurrentHashMap<>();
+
+    private final LongAdder articlesDone = new LongAdder();
+
+    private final LongAdder articlesFailed = new LongAdder();
+
+    private final LongAdder articlesSkipped = new LongAdder();
+
+    private volatile long articlesTotal;
+
+    private volatile long startNanos = System.nanoTime();
+
+    private volatile Instant started = Instant.now();
+
+    private volatile long elapsedNanos = -1;
+
+    private ScheduledFuture<?> progress;
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    private MBeanServer server;
+
+    /**
+     * Restarts the clock, registers the MXBeans and logs progress every
+     * progressSeconds, 0 logs none.
+     */
+    synchronized void start(long progressSeconds) {
+        startNanos = System.nanoTime();
+        started = Instant.now();
+        elapsedNanos = -1;
+
+        server = ManagementFactory.getPlatformMBeanServer();
+        register(DOMAIN + ":type=Import", this, KbMetricsMXBean.class);
+        stages.forEach((name, t) -> register(stageName(name), t, TimerMXBean.class));
+        endpoints.forEach((name, e) -> register(endpointName(name), e, EndpointMXBean.class));
+
+        if (progressSeconds > 0) {
+            progress = timer.scheduleAtFixedRate(this::logProgress, progressSeconds, progressSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the clock, the progress line and unregisters the MXBeans.
+     */
+    synchronized void stop() {
+        elapsedNanos = System.nanoTime() - startNanos;
+
+        if (progress != null) {
+            progress.cancel(false);
+            progress = null;
+        }
+
+        if (server != null) {
+            for (ObjectName name : registered) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    log.debug("Can not unregister {}", name, e);
+                }
+            }
+            registered.clear();
+            server = null;
+        }
+    }
+
+    private synchronized <T> void register(String name, T bean, Class<T> type) {
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(name);
+            server.registerMBean(new StandardMBean(bean, type, true), objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            // another import in the same JVM holds the name
+            log.debug("Can not register {}", name, e);
+        }
+    }
+
+    private static String stageName(String stage) {
+        return DOMAIN + ":type=Stage,name=" + ObjectName.quote(stage);
+    }
+
+    private static String endpointName(String endpoint) {
+        return DOMAIN + ":type=Endpoint,name=" + ObjectName.quote(endpoint);
+    }
+
+    Timer stage(String name) {
+        Timer t = stages.get(name);
+        if (t == null) {
+            t = stages.computeIfAbsent(name, n -> new Timer());
+            register(stageName(name), t, TimerMXBean.class);
+        }
+        return t;
+    }
+
+    Endpoint endpoint(String name) {
+        Endpoint e = endpoints.get(name);
+        if (e == null) {
+            e = endpoints.computeIfAbsent(name, n -> new Endpoint());
+            register(endpointName(name), e, EndpointMXBean.class);
+        }
+        return e;
+    }
+
+    /**
+     * Records the time since startNanos against the stage.
+     */
+    void record(String stage, long startNanos) {
+        stage(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the stage when the future completes, successfully or not.
+     */
+    <T> CompletableFuture<T> time(String stage, long startNanos, CompletableFuture<T> f) {
+        return f.whenComplete((v, e) -> record(stage, startNanos));
+    }
+
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Reports the hit rate of a cache that counts its own hits and misses.
+     */
+    void cache(String name, LongSupplier hits, LongSupplier misses) {
+        caches.put(name, new LongSupplier[] { hits, misses });
+    }
+
+    void setArticlesTotal(long articlesTotal) {
+        this.articlesTotal = articlesTotal;
+    }
+
+    void articleDone(boolean failed) {
+        articlesDone.increment();
+        if (failed) {
+            articlesFailed.increment();
+        }
+    }
+
+    /**
+     * Done by an earlier run, counts towards the total but not the rate.
+     */
+    void articleSkipped() {
+        articlesSkipped.increment();
+    }
+
+    /**
+     * Sends calls through the transport and records them against their
+     * endpoint. A blocking call stays blocking, so a transport below that
+     * waits in the calling thread, as the limiter does, keeps doing so.
+     */
+    KbTransport meter(KbTransport transport) {
+        return new Metered(transport);
+    }
+
+    private class Metered implements KbTransport {
+
+        private final KbTransport delegate;
+
+        Metered(KbTransport delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse> execute(HttpUriRequest request) {
+            Endpoint endpoint = endpoint(endpointOf(request));
+            endpoint.sent(request);
+
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse> f;
+            try {
+                f = delegate.execute(request);
+            } catch (RuntimeException e) {
+                f = KbKnowledgeAPI.failed(e);
+            }
+
+            return f.whenComplete((response, e) -> {
+                endpoint.record(System.nanoTime() - start);
+                if (e != null) {
+                    endpoint.failures.increment();
+                }
+            }).thenApply(response -> {
+                endpoint.received(response);
+                return response;
+            });
+        }
+
+        @Override
+        public HttpResponse executeAndWait(HttpUriRequest request) throws IOException {
+            Endpoint endpoint = endpoint(endpointOf(request));
+            endpoint.sent(request);
+
+            long start = System.nanoTime();
+            HttpResponse response;
+            try {
+                response = delegate.executeAndWait(request);
+            } catch (IOException | RuntimeException e) {
+                endpoint.record(System.nanoTime() - start);
+                endpoint.failures.increment();
+                throw e;
+            }
+
+            endpoint.record(System.nanoTime() - start);
+            endpoint.received(response);
+            return response;
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return delegate.isBlocking();
+        }
+    }
+
+    void retried(HttpUriRequest request) {
+        endpoint(endpointOf(request)).retries.increment();
+    }
+
+    /**
+     * Method and API path without the sys_id or query, e.g. PATCH
+     * table/kb_knowledge.
+     */
+    static String endpointOf(HttpUriRequest request) {
+        String path = request.getURI().getPath();
+        if (path == null) {
+            path = "";
+        }
+        if (path.startsWith(KbKnowledgeAPI.API_PATH)) {
+            path = path.substring(KbKnowledgeAPI.API_PATH.length());
+        }
+        if (path.startsWith("table/")) {
+            int slash = path.indexOf('/', "table/".length());
+            if (slash > 0) {
+                path = path.substring(0, slash);
+            }
+        }
+        return request.getMethod() + " " + path;
+    }
+
+    private double elapsedSeconds() {
+        long elapsed = elapsedNanos;
+        return (elapsed >= 0 ? elapsed : System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public long getArticlesTotal() {
+        return articlesTotal;
+    }
+
+    @Override
+    public long getArticlesDone() {
+        return articlesDone.sum();
+    }
+
+    @Override
+    public long getArticlesFailed() {
+        return articlesFailed.sum();
+    }
+
+    @Override
+    public long getArticlesSkipped() {
+        return articlesSkipped.sum();
+    }
+
+    @Override
+    public double getArticlesPerSecond() {
+        double seconds = elapsedSeconds();
+        return seconds > 0 ? getArticlesDone() / seconds : 0;
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        double rate = getArticlesPerSecond();
+        if (rate <= 0 || articlesTotal <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, articlesTotal - getArticlesDone() - getArticlesSkipped()) / rate);
+    }
+
+    @Override
+    public long getCalls() {
+        return endpoints.values().stream().mapToLong(Endpoint::getCount).sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return endpoints.values().stream().mapToLong(Endpoint::getRetries).sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return endpoints.values().stream().mapToLong(Endpoint::getBytesSent).sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return endpoints.values().stream().mapToLong(Endpoint::getBytesReceived).sum();
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        Map<String, Double> rates = new TreeMap<>();
+        caches.forEach((name, c) -> rates.put(name, hitRate(c[0].getAsLong(), c[1].getAsLong())));
+        return rates;
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+    }
+
+    void logProgress() {
+        long eta = getEtaSeconds();
+        log.info("Imported {}/{} articles, {} failed, {} skipped, {} articles/s, {} calls/s, ETA {}",
+                getArticlesDone(), articlesTotal > 0 ? String.valueOf(articlesTotal) : "?", getArticlesFailed(),
+                getArticlesSkipped(), String.format("%.1f", getArticlesPerSecond()),
+                String.format("%.1f", getCalls() / Math.max(elapsedSeconds(), 1e-9)),
+                eta < 0 ? "unknown" : String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+    }
+
+    /**
+     * Logs count, mean and p99 of every stage and endpoint.
+     */
+    void logSummary() {
+        StringBuilder summary = new StringBuilder();
+        new TreeMap<>(stages).forEach((name, t) -> summary.append(String.format(
+                "\n\t%s: %d, mean %.1f ms, p99 %.1f ms", name, t.getCount(), t.getMeanMillis(), t.getP99Millis())));
+        new TreeMap<>(endpoints).forEach((name, e) -> summary.append(String.format(
+                "\n\t%s: %d, mean %.1f ms, p99 %.1f ms, %d retries, %d bytes sent, %d received", name, e.getCount(),
+                e.getMeanMillis(), e.getP99Millis(), e.getRetries(), e.getBytesSent(), e.getBytesReceived())));
+        getCacheHitRates().forEach(
+                (name, rate) -> summary.append(String.format("\n\t%s cache hit rate: %.3f", name, rate)));
+
+        log.info("\nTimings:{}", summary);
+    }
+
+    /**
+     * Writes the run as JSON so runs can be compared.
+     */
+    void writeReport(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file);
+                JsonGenerator json = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+
+            json.writeStringField("started", started.toString());
+            json.writeNumberField("seconds", elapsedSeconds());
+
+            json.writeObjectFieldStart("articles");
+            json.writeNumberField("total", articlesTotal);
+            json.writeNumberField("done", getArticlesDone());
+            json.writeNumberField("failed", getArticlesFailed());
+            json.writeNumberField("skipped", getArticlesSkipped());
+            json.writeNumberField("perSecond", getArticlesPerSecond());
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("calls");
+            json.writeNumberField("count", getCalls());
+            json.writeNumberField("retries", getRetries());
+            json.writeNumberField("bytesSent", getBytesSent());
+            json.writeNumberField("bytesReceived", getBytesReceived());
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("stages");
+            for (Map.Entry<String, Timer> e : new TreeMap<>(stages).entrySet()) {
+                json.writeObjectFieldStart(e.getKey());
+                e.getValue().write(json);
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("endpoints");
+            for (Map.Entry<String, Endpoint> e : new TreeMap<>(endpoints).entrySet()) {
+                json.writeObjectFieldStart(e.getKey());
+                e.getValue().write(json);
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("caches");
+            for (Map.Entry<String, LongSupplier[]> e : new TreeMap<>(caches).entrySet()) {
+                long hits = e.getValue()[0].getAsLong();
+                long misses = e.getValue()[1].getAsLong();
+                json.writeObjectFieldStart(e.getKey());
+                json.writeNumberField("hits", hits);
+                json.writeNumberField("misses", misses);
+                json.writeNumberField("hitRate", hitRate(hits, misses));
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("counters");
+            for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+                json.writeNumberField(e.getKey(), e.getValue().sum());
+            }
+            json.writeEndObject();
+
+            json.writeEndObject();
+        }
+
+        log.info("Wrote performance report to {}", file);
+    }
+
+    Map<String, Timer> getStages() {
+        return stages;
+    }
+
+    Map<String, Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Count, total and a latency histogram, safe to record from any thread.
+     */
+    static class Timer implements TimerMXBean {
+
+        /** exact below 8 µs, then 8 buckets per power of two up to about 12 days */
+        static final int SUB_BUCKETS = 8;
+
+        static final int BUCKETS = SUB_BUCKETS + 38 * SUB_BUCKETS;
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets.incrementAndGet(bucket(nanos / 1000));
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int mantissa = (int) (micros >>> (exponent - 3)) - SUB_BUCKETS;
+            return Math.min(SUB_BUCKETS + (exponent - 3) * SUB_BUCKETS + mantissa, BUCKETS - 1);
+        }
+
+        /**
+         * Highest value in microseconds that falls into the bucket.
+         */
+        static long bucketMax(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 3;
+            int mantissa = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + mantissa + 1) << (exponent - 3)) - 1;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         */
+        double percentileMillis(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                n += snapshot[i];
+            }
+            if (n == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(bucketMax(i) / 1e3, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return totalNanos.sum() / 1e6;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n > 0 ? totalNanos.sum() / 1e6 / n : 0;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentileMillis(50);
+        }
+
+        @Override
+        public double getP90Millis() {
+            return percentileMillis(90);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentileMillis(99);
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        void write(JsonGenerator json) throws IOException {
+            json.writeNumberField("count", getCount());
+            json.writeNumberField("totalMillis", getTotalMillis());
+            json.writeNumberField("meanMillis", getMeanMillis());
+            json.writeNumberField("p50Millis", getP50Millis());
+            json.writeNumberField("p90Millis", getP90Millis());
+            json.writeNumberField("p99Millis", getP99Millis());
+            json.writeNumberField("maxMillis", getMaxMillis());
+        }
+    }
+
+    /**
+     * Calls to one endpoint, with the bytes of the bodies sent and received
+     * and the responses by status.
+     */
+    static class Endpoint extends Timer implements EndpointMXBean {
+
+        private final LongAdder bytesSent = new LongAdder();
+
+        private final LongAdder bytesReceived = new LongAdder();
+
+        private final LongAdder retries = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void sent(HttpUriRequest request) {
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (entity != null && entity.getContentLength() > 0) {
+                    bytesSent.add(entity.getContentLength());
+                }
+            }
+        }
+
+        void received(HttpResponse response) {
+            statuses.computeIfAbsent(response.getStatusLine().getStatusCode(), s -> new LongAdder()).increment();
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return;
+            }
+            if (entity.getContentLength() >= 0) {
+                bytesReceived.add(entity.getContentLength());
+            } else {
+                // chunked, counted as it is read
+                response.setEntity(new CountingEntity(entity, bytesReceived));
+            }
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        @Override
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public Map<String, Long> getStatuses() {
+            Map<String, Long> byStatus = new TreeMap<>();
+            statuses.forEach((status, n) -> byStatus.put(String.valueOf(status), n.sum()));
+            return byStatus;
+        }
+
+        @Override
+        void write(JsonGenerator json) throws IOException {
+            super.write(json);
+            json.writeNumberField("bytesSent", getBytesSent());
+            json.writeNumberField("bytesReceived", getBytesReceived());
+            json.writeNumberField("retries", getRetries());
+            json.writeNumberField("failures", getFailures());
+            json.writeObjectFieldStart("statuses");
+            for (Map.Entry<String, Long> e : getStatuses().entrySet()) {
+                json.writeNumberField(e.getKey(), e.getValue());
+            }
+            json.writeEndObject();
+        }
+    }
+
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        private final LongAdder bytes;
+
+        CountingEntity(HttpEntity entity, LongAdder bytes) {
+            super(entity);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes.increment();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        bytes.add(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.plane.files.demo;
+
+import java.util.Map;
+
+/**
+ * Progress of a running import over JMX, registered as
+ * com.plane.files.demo:type=Import while it runs. Stages and endpoints are
+ * registered next to it as type=Stage and type=Endpoint.
+ */
+public interface KbMetricsMXBean {
+
+    long getArticlesTotal();
+
+    long getArticlesDone();
+
+    long getArticlesFailed();
+
+    /**
+     * Done by an earlier run according to the journal or the sync state.
+     */
+    long getArticlesSkipped();
+
+    double getArticlesPerSecond();
+
+    /**
+     * Seconds left at the current rate, -1 before the first article is done
+     * or the folder is counted.
+     */
+    long getEtaSeconds();
+
+    long getCalls();
+
+    long getRetries();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * Share of hits per cache, between 0 and 1.
+     */
+    Map<String, Double> getCacheHitRates();
+
+    /**
+     * Latency of a stage or of the calls to one endpoint.
+     */
+    interface TimerMXBean {
+
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+    }
+
+    interface EndpointMXBean extends TimerMXBean {
+
+        long getBytesSent();
+
+        long getBytesReceived();
+
+        long getRetries();
+
+        long getFailures();
+
+        /**
+         * Responses by HTTP status.
+         */
+        Map<String, Long> getStatuses();
+    }
+
+}
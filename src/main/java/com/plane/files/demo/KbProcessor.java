@@ -12,16 +12,32 @@ public class KbProcessor {
 
 final static String[] DELETE_PATTERNS = {"#main-header","#footer",".page-metadata"};
 
+/** removes the same elements from files too large to parse while they stream */
+final static KbHtmlRewriter STREAMING = new KbHtmlRewriter(DELETE_PATTERNS);
+
 static String processText(Path html) throws IOException{
 
-    return deleteElements(html);
+    Document doc = Jsoup.parse(html.toFile(), "UTF-8");
+
+    deleteElements(doc);
+
+    return doc.toString();
     
 
 }
 
-private static String deleteElements(Path html) throws IOException{
+static void processDocument(KbArticleContext ctx) throws IOException{
 
-    Document doc = Jsoup.parse(html.toFile(), "UTF-8");
+    // a streamed file is pruned on its way into the update body
+    if (ctx.isStreamed()) {
+        return;
+    }
+
+    deleteElements(ctx.getDocument());
+
+}
+
+private static void deleteElements(Document doc) {
 
     Stream.of(DELETE_PATTERNS).forEach(s-> doc.select(s).remove());
 /*
@@ -29,10 +45,9 @@ private static String deleteElements(Path html) throws IOException{
         fw.write(doc.toString());
     }
 */
-    return doc.toString();
 
 }
 
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,255 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a request again when the instance is busy or the call failed on the
+ * way, waiting a jittered exponential backoff or as long as Retry-After asks.
+ *
+ * 429 and 503 are retried for every method, the instance did not run the
+ * call. Other gateway errors and I/O errors are retried only for idempotent
+ * methods, a POST that timed out may have created the record already. A
+ * POST that never reached the instance is retried.
+ */
+class KbRetryPolicy {
+
+    protected static Logger log = LoggerFactory.getLogger(KbRetryPolicy.class);
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30_000;
+
+    /** longest Retry-After that is waited for */
+    static final long MAX_RETRY_AFTER_MILLIS = 300_000;
+
+    private static final Set<String> IDEMPOTENT = new HashSet<>(
+            Arrays.asList("GET", "HEAD", "PUT", "PATCH", "DELETE", "OPTIONS"));
+
+    private static final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(KbImportPipeline.daemonThreads("kb-retry"));
+
+    private final int maxAttempts;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private volatile KbMetrics metrics;
+
+    KbRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Attempts must be positive and delays ordered");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    static KbRetryPolicy defaults() {
+        return new KbRetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Records every attempt against its endpoint, and every retry.
+     */
+    void setMetrics(KbMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private KbTransport metered(KbTransport transport) {
+        KbMetrics m = metrics;
+        return m != null ? m.meter(transport) : transport;
+    }
+
+    private void retried(HttpUriRequest request) {
+        KbMetrics m = metrics;
+        if (m != null) {
+            m.retried(request);
+        }
+    }
+
+    /**
+     * Sends the request in the calling thread and sleeps between attempts.
+     */
+    HttpResponse executeAndWait(HttpUriRequest request, KbTransport transport) throws IOException {
+        transport = metered(transport);
+        for (int attempt = 1;; attempt++) {
+            HttpResponse response;
+            try {
+                response = transport.executeAndWait(request);
+            } catch (IOException e) {
+                if (!shouldRetry(request, e, attempt)) {
+                    throw e;
+                }
+                sleep(request, e.toString(), backoff(attempt), attempt);
+                continue;
+            }
+
+            if (!shouldRetry(request, response, attempt)) {
+                return response;
+            }
+
+            long delay = delay(response, attempt);
+            KbHttpClients.release(response);
+            sleep(request, String.valueOf(response.getStatusLine().getStatusCode()), delay, attempt);
+        }
+    }
+
+    /**
+     * Sends the request through the transport and sends it again from a timer
+     * thread, no thread waits out the backoff.
+     */
+    CompletableFuture<HttpResponse> execute(HttpUriRequest request, KbTransport transport) {
+        CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        attempt(request, metered(transport), 1, result);
+        return result;
+    }
+
+    private void attempt(HttpUriRequest request, KbTransport transport, int attempt,
+            CompletableFuture<HttpResponse> result) {
+        transport.execute(request).whenComplete((response, e) -> {
+            long delay;
+            String cause;
+            if (e != null) {
+                Throwable error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (!(error instanceof IOException) || !shouldRetry(request, (IOException) error, attempt)) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                delay = backoff(attempt);
+                cause = error.toString();
+            } else {
+                if (!shouldRetry(request, response, attempt)) {
+                    result.complete(response);
+                    return;
+                }
+                delay = delay(response, attempt);
+                cause = String.valueOf(response.getStatusLine().getStatusCode());
+                KbHttpClients.release(response);
+            }
+
+            log.warn("Retrying {} {} in {} ms after {}, attempt {} of {}", request.getMethod(), request.getURI(),
+                    delay, cause, attempt + 1, maxAttempts);
+            retried(request);
+
+            timer.schedule(() -> attempt(request, transport, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    boolean shouldRetry(HttpUriRequest request, HttpResponse response, int attempt) {
+        if (attempt >= maxAttempts) {
+            return false;
+        }
+
+        int status = response.getStatusLine().getStatusCode();
+        if (status == 429 || status == 503) {
+            return true;
+        }
+
+        return (status == 502 || status == 504) && isIdempotent(request);
+    }
+
+    boolean shouldRetry(HttpUriRequest request, IOException e, int attempt) {
+        if (attempt >= maxAttempts || e instanceof KbApiException) {
+            return false;
+        }
+
+        // not connected, the request was not sent
+        if (e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+            return true;
+        }
+
+        if (e instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+
+        return isIdempotent(request);
+    }
+
+    static boolean isIdempotent(HttpUriRequest request) {
+        return IDEMPOTENT.contains(request.getMethod());
+    }
+
+    /**
+     * Retry-After when the response has one, the backoff otherwise.
+     */
+    long delay(HttpResponse response, int attempt) {
+        long retryAfter = retryAfterMillis(response.getFirstHeader("Retry-After"), System.currentTimeMillis());
+        return retryAfter >= 0 ? retryAfter : backoff(attempt);
+    }
+
+    /**
+     * Full jitter, a random wait up to the exponential bound so clients
+     * throttled together do not come back together.
+     */
+    long backoff(int attempt) {
+        long bound = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (bound <= 0 || bound > maxDelayMillis) {
+            bound = maxDelayMillis;
+        }
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound + 1) : 0;
+    }
+
+    /**
+     * Retry-After in delay seconds or as an HTTP date, -1 when missing or not
+     * readable.
+     */
+    static long retryAfterMillis(Header header, long now) {
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+
+        String value = header.getValue().trim();
+        long millis;
+        try {
+            millis = Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if (date == null) {
+                return -1;
+            }
+            millis = date.getTime() - now;
+        }
+
+        return Math.max(0, Math.min(millis, MAX_RETRY_AFTER_MILLIS));
+    }
+
+    private void sleep(HttpUriRequest request, String cause, long delay, int attempt) throws IOException {
+        log.warn("Retrying {} {} in {} ms after {}, attempt {} of {}", request.getMethod(), request.getURI(), delay,
+                cause, attempt + 1, maxAttempts);
+        retried(request);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+}
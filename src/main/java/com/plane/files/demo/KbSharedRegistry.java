@@ -0,0 +1,308 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sys_ids shared by the processes of a sharded import through a folder on a
+ * shared volume, so a record one of them needs is created by exactly one.
+ * The process that creates the claim file of a key first creates the record
+ * and publishes its sys_id to the key's id file, the others wait for the id
+ * file. Claims rely on exclusive file creation, which local disks, NFSv3 and
+ * later and SMB shares provide.
+ *
+ * A process that fails to create the record removes its claim and one of
+ * the waiting processes claims the key in turn. The claimer touches its
+ * claim while the create runs, a claim untouched for staleMillis is left by
+ * a process that died. A waiting process takes it over by renaming it away,
+ * only the one whose rename succeeds on the claim it found stale goes on.
+ * Published sys_ids stay in the folder, a later run reuses them.
+ */
+class KbSharedRegistry {
+
+    protected static Logger log = LoggerFactory.getLogger(KbSharedRegistry.class);
+
+    public static final long DEFAULT_STALE_MILLIS = 300_000;
+
+    static final String CLAIM = ".claim";
+
+    static final String ID = ".id";
+
+    private static final long MAX_POLL_MILLIS = 1000;
+
+    /** the async resolve reads, writes and polls on these instead of the HTTP client threads */
+    private static final ExecutorService waiters = Executors
+            .newCachedThreadPool(KbImportPipeline.daemonThreads("kb-registry"));
+
+    private static final ScheduledExecutorService heartbeats = Executors
+            .newSingleThreadScheduledExecutor(KbImportPipeline.daemonThreads("kb-registry-heartbeat"));
+
+    private final Path dir;
+
+    private final long staleMillis;
+
+    private final String owner = UUID.randomUUID().toString();
+
+    /** tells the claims of this process apart, a claim is taken over only as found */
+    private final AtomicLong claims = new AtomicLong();
+
+    KbSharedRegistry(Path dir, long staleMillis) throws IOException {
+        if (staleMillis < 1) {
+            throw new IllegalArgumentException("Stale claim timeout must be positive");
+        }
+        this.dir = Files.createDirectories(dir);
+        this.staleMillis = staleMillis;
+    }
+
+    /**
+     * Returns the sys_id published for the key, creating the record with
+     * create when no process has. A create returning null or an empty id
+     * publishes nothing.
+     */
+    String resolve(String type, String key, Supplier<String> create) {
+        for (;;) {
+            String sysId = get(type, key);
+            if (sysId != null) {
+                return sysId;
+            }
+
+            if (claim(type, key)) {
+                String created;
+                ScheduledFuture<?> heartbeat = heartbeat(type, key);
+                try {
+                    created = create.get();
+                } catch (RuntimeException | Error e) {
+                    release(type, key);
+                    throw e;
+                } finally {
+                    heartbeat.cancel(false);
+                }
+                publish(type, key, created);
+                return created;
+            }
+
+            sysId = await(type, key);
+            if (sysId != null) {
+                return sysId;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #resolve(String, String, Supplier)} for records created
+     * asynchronously. The files of the registry are read and written on a
+     * thread of the registry, not on the thread that calls or completes the
+     * create, which may be an HTTP client thread a slow share must not block.
+     */
+    CompletableFuture<String> resolveAsync(String type, String key, Supplier<CompletableFuture<String>> create) {
+        return CompletableFuture.supplyAsync(() -> {
+            String sysId = get(type, key);
+            if (sysId != null) {
+                return CompletableFuture.completedFuture(sysId);
+            }
+
+            if (claim(type, key)) {
+                return createClaimed(type, key, create);
+            }
+
+            sysId = await(type, key);
+            return sysId != null ? CompletableFuture.completedFuture(sysId) : resolveAsync(type, key, create);
+        }, waiters).thenCompose(f -> f);
+    }
+
+    private CompletableFuture<String> createClaimed(String type, String key,
+            Supplier<CompletableFuture<String>> create) {
+        CompletableFuture<String> created;
+        ScheduledFuture<?> heartbeat = heartbeat(type, key);
+        try {
+            created = create.get();
+        } catch (RuntimeException | Error e) {
+            heartbeat.cancel(false);
+            release(type, key);
+            throw e;
+        }
+        return created.whenCompleteAsync((id, e) -> {
+            heartbeat.cancel(false);
+            if (e != null) {
+                release(type, key);
+            } else {
+                publish(type, key, id);
+            }
+        }, waiters);
+    }
+
+    /**
+     * The sys_id published for the key, null when there is none yet.
+     */
+    String get(String type, String key) {
+        try {
+            String sysId = new String(Files.readAllBytes(file(type, key, ID)), StandardCharsets.UTF_8);
+            return sysId.isEmpty() ? null : sysId;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not read registry " + dir, e);
+        }
+    }
+
+    private boolean claim(String type, String key) {
+        Path claim = file(type, key, CLAIM);
+        try {
+            Files.createDirectories(claim.getParent());
+            String token = owner + ":" + claims.incrementAndGet();
+            Files.write(claim, token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            // published between the read and the claim
+            if (get(type, key) != null) {
+                Files.deleteIfExists(claim);
+                return false;
+            }
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not claim " + type + " " + key + " in " + dir, e);
+        }
+    }
+
+    private void publish(String type, String key, String sysId) {
+        try {
+            if (sysId != null && !sysId.isEmpty()) {
+                Path id = file(type, key, ID);
+                Path tmp = file(type, key, "." + owner);
+                Files.write(tmp, sysId.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, id, StandardCopyOption.ATOMIC_MOVE);
+                log.debug("Published {} {} {}", type, key, sysId);
+            }
+            Files.deleteIfExists(file(type, key, CLAIM));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not publish " + type + " " + key + " in " + dir, e);
+        }
+    }
+
+    /**
+     * Keeps the claim fresh while its record is created, however long an
+     * upload takes.
+     */
+    private ScheduledFuture<?> heartbeat(String type, String key) {
+        Path claim = file(type, key, CLAIM);
+        long period = Math.max(1, staleMillis / 3);
+        return heartbeats.scheduleWithFixedDelay(() -> {
+            try {
+                Files.setLastModifiedTime(claim, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (NoSuchFileException e) {
+                log.warn("The claim of {} {} was taken over", type, key);
+            } catch (IOException e) {
+                log.error("Can not touch the claim of {} {} in {}", type, key, dir, e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void release(String type, String key) {
+        try {
+            Files.deleteIfExists(file(type, key, CLAIM));
+        } catch (IOException e) {
+            log.error("Can not release the claim of {} {} in {}", type, key, dir, e);
+        }
+    }
+
+    /**
+     * Waits for the process holding the claim, returns the sys_id it
+     * published or null when the key can be claimed again.
+     */
+    private String await(String type, String key) {
+        Path claim = file(type, key, CLAIM);
+        long pollMillis = 10;
+        try {
+            for (;;) {
+                String sysId = get(type, key);
+                if (sysId != null) {
+                    return sysId;
+                }
+
+                long modified;
+                String token;
+                try {
+                    modified = Files.getLastModifiedTime(claim).toMillis();
+                    token = new String(Files.readAllBytes(claim), StandardCharsets.UTF_8);
+                } catch (NoSuchFileException e) {
+                    // released without an id, or published since the read above
+                    sysId = get(type, key);
+                    return sysId;
+                }
+
+                if (System.currentTimeMillis() - modified > staleMillis) {
+                    takeOver(type, key, claim, token);
+                    return null;
+                }
+
+                Thread.sleep(pollMillis);
+                pollMillis = Math.min(MAX_POLL_MILLIS, pollMillis * 2);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + type + " " + key, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not read registry " + dir, e);
+        }
+    }
+
+    /**
+     * Renames the stale claim away so no other waiter can remove a claim made
+     * after it. A claim made since it was found stale is put back, the key is
+     * then claimed as usual by whoever gets there first.
+     */
+    void takeOver(String type, String key, Path claim, String token) throws IOException {
+        Path taken = file(type, key, "." + owner + "-" + claims.incrementAndGet());
+        try {
+            Files.move(claim, taken, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // taken over by another waiter, or released
+            return;
+        }
+
+        if (new String(Files.readAllBytes(taken), StandardCharsets.UTF_8).equals(token)) {
+            log.warn("Took over the stale claim of {} {}", type, key);
+            Files.delete(taken);
+            return;
+        }
+
+        try {
+            Files.move(taken, claim);
+        } catch (FileAlreadyExistsException e) {
+            log.warn("The claim of {} {} changed hands while it was taken over", type, key);
+            Files.delete(taken);
+        }
+    }
+
+    /**
+     * One folder per record type, files named by the SHA-256 of the key so
+     * any key is a valid file name.
+     */
+    private Path file(String type, String key, String suffix) {
+        MessageDigest digest = KbHashes.newDigest();
+        return dir.resolve(type).resolve(KbHashes.hex(digest.digest(key.getBytes(StandardCharsets.UTF_8))) + suffix);
+    }
+
+}
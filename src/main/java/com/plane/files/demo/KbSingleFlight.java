@@ -0,0 +1,74 @@
+package com.plane.files.demo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into one execution, callers
+ * arriving while a call is in flight wait for its result instead of repeating
+ * it.
+ */
+class KbSingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = calls.putIfAbsent(key, mine);
+
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            V value = call.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, mine);
+        }
+    }
+
+    /**
+     * Same as {@link #execute(Object, Supplier)} for calls that complete
+     * later, callers share the future of the call in flight.
+     */
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = calls.putIfAbsent(key, mine);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            call.get().whenComplete((value, e) -> {
+                calls.remove(key, mine);
+                if (e != null) {
+                    mine.completeExceptionally(e);
+                } else {
+                    mine.complete(value);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            calls.remove(key, mine);
+            mine.completeExceptionally(e);
+        }
+
+        return mine;
+    }
+
+}
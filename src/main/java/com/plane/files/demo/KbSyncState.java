@@ -0,0 +1,162 @@
+package com.plane.files.demo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What the last sync imported, per file name the kb_knowledge sys_id and the
+ * hashes of the source HTML and of the text that was written to the record.
+ * A file whose source hash did not change is not imported again, one whose
+ * rewritten text did not change is not patched again. Uploaded attachments
+ * are kept by content hash so they are not uploaded again either.
+ *
+ * The state is one tab separated line per file and per attachment, replaced
+ * as a whole when it is saved.
+ */
+class KbSyncState {
+
+    protected static Logger log = LoggerFactory.getLogger(KbSyncState.class);
+
+    private static final String KB = "kb";
+
+    private static final String CONTENT = "content";
+
+    static class Entry {
+
+        private final String sysId;
+
+        private final String sourceHash;
+
+        private final String outputHash;
+
+        Entry(String sysId, String sourceHash, String outputHash) {
+            this.sysId = sysId;
+            this.sourceHash = sourceHash;
+            this.outputHash = outputHash;
+        }
+
+        String getSysId() {
+            return sysId;
+        }
+
+        String getSourceHash() {
+            return sourceHash;
+        }
+
+        String getOutputHash() {
+            return outputHash;
+        }
+    }
+
+    private final Path file;
+
+    private final Map<String, Entry> previous;
+
+    private final Map<String, Entry> current;
+
+    private final Map<String, String> attachments;
+
+    private final Set<String> previousAttachments;
+
+    private KbSyncState(Path file, Map<String, Entry> previous, Map<String, String> attachments) {
+        this.file = file;
+        this.previous = previous;
+        this.current = new ConcurrentHashMap<>(previous);
+        this.attachments = attachments;
+        this.previousAttachments = new HashSet<>(attachments.keySet());
+    }
+
+    static KbSyncState load(Path file) throws IOException {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        Map<String, String> attachments = new ConcurrentHashMap<>();
+
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 5 && KB.equals(fields[0])) {
+                        entries.put(fields[1], new Entry(fields[2], fields[3], fields[4]));
+                    } else if (fields.length == 3 && CONTENT.equals(fields[0])) {
+                        attachments.put(fields[1], fields[2]);
+                    } else {
+                        log.warn("Skipping sync state line [{}]", line);
+                    }
+                }
+            }
+        }
+
+        log.info("Sync state of {} files and {} attachments from {}", entries.size(), attachments.size(), file);
+
+        return new KbSyncState(file, entries, attachments);
+    }
+
+    /**
+     * @return the entry the last sync saved for the file or null
+     */
+    Entry get(String fileName) {
+        return previous.get(fileName);
+    }
+
+    Map<String, Entry> getPrevious() {
+        return previous;
+    }
+
+    void put(String fileName, Entry entry) {
+        current.put(fileName, entry);
+    }
+
+    /**
+     * Attachment sys_ids by content hash.
+     */
+    Map<String, String> getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * @return whether the last sync saved an attachment with the content
+     */
+    boolean hadAttachment(String contentHash) {
+        return previousAttachments.contains(contentHash);
+    }
+
+    void putAttachment(String contentHash, String sysId) {
+        attachments.put(contentHash, sysId);
+    }
+
+    /**
+     * Writes the state next to the old one and moves it over, a crash while
+     * saving leaves the old state.
+     */
+    void save() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : new TreeMap<>(current).entrySet()) {
+                Entry entry = e.getValue();
+                out.write(KB + "\t" + e.getKey() + "\t" + entry.sysId + "\t" + entry.sourceHash + "\t"
+                        + entry.outputHash + "\n");
+            }
+            for (Map.Entry<String, String> e : new TreeMap<>(attachments).entrySet()) {
+                out.write(CONTENT + "\t" + e.getKey() + "\t" + e.getValue() + "\n");
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.info("Saved sync state of {} files and {} attachments to {}", current.size(), attachments.size(), file);
+    }
+
+}
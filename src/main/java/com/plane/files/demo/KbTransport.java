@@ -0,0 +1,43 @@
+package com.plane.files.demo;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Sends Table and Attachment API requests and completes a future with the
+ * response.
+ */
+interface KbTransport {
+
+    CompletableFuture<HttpResponse> execute(HttpUriRequest request);
+
+    /**
+     * Waits for a response from a thread that is allowed to block.
+     */
+    default HttpResponse executeAndWait(HttpUriRequest request) throws IOException {
+        try {
+            return execute(request).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Whether execute waits for the response in the calling thread, such a
+     * transport is only sent through with executeAndWait.
+     */
+    default boolean isBlocking() {
+        return false;
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class KbAdaptiveLimiterTest {
+
+	private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+	@Test
+	void testWhenLatencyStaysFlatThenLimitGrows() {
+
+		KbAdaptiveLimiter limiter = new KbAdaptiveLimiter(2, 10, 0);
+
+		for (int round = 0; round < 20; round++) {
+			int limit = limiter.getLimit();
+			for (int i = 0; i < limit; i++) {
+				assertTrue(limiter.acquireAsync().isDone());
+			}
+			for (int i = 0; i < limit; i++) {
+				limiter.release(System.nanoTime() - RTT, false);
+			}
+		}
+
+		assertEquals(10, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	void testWhenThrottledThenLimitIsHalvedOncePerRoundTrip() {
+
+		KbAdaptiveLimiter limiter = new KbAdaptiveLimiter(8, 8, 0);
+
+		List<Long> starts = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			limiter.acquireAsync();
+			starts.add(System.nanoTime());
+		}
+
+		// every call of the round trip is throttled, the limit is cut once
+		starts.forEach(start -> limiter.release(start, true));
+
+		assertEquals(4, limiter.getLimit());
+		assertEquals(8, limiter.getThrottled());
+
+		limiter.acquireAsync();
+		limiter.release(System.nanoTime(), true);
+
+		assertEquals(2, limiter.getLimit());
+		assertEquals(2, limiter.getLowestLimit());
+		assertEquals(8, limiter.getHighestLimit());
+	}
+
+	@Test
+	void testWhenAtLimitThenCallWaitsForRelease() {
+
+		KbAdaptiveLimiter limiter = new KbAdaptiveLimiter(1, 1, 0);
+
+		CompletableFuture<Void> first = limiter.acquireAsync();
+		CompletableFuture<Void> second = limiter.acquireAsync();
+
+		assertTrue(first.isDone());
+		assertFalse(second.isDone());
+
+		limiter.release(System.nanoTime() - RTT, false);
+
+		assertTrue(second.isDone());
+		assertEquals(1, limiter.getInFlight());
+	}
+
+	@Test
+	void testWhenRateIsCappedThenCallsAreSpacedOut() {
+
+		KbAdaptiveLimiter limiter = new KbAdaptiveLimiter(1, 1, 10);
+
+		long interval = TimeUnit.MILLISECONDS.toNanos(100);
+
+		assertEquals(0, limiter.reserveSlot());
+
+		long second = limiter.reserveSlot();
+		long third = limiter.reserveSlot();
+
+		assertTrue(second > interval / 2 && second <= interval);
+		assertTrue(third > interval && third <= 2 * interval);
+	}
+
+}
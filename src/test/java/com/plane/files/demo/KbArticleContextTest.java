@@ -0,0 +1,85 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class KbArticleContextTest {
+
+	@Test
+	void testWhenReferencesFoundThenTheyAreInDocumentOrder(@TempDir Path dir) throws IOException {
+
+		Path file = dir.resolve("a.html");
+		Files.write(file, ("<html><head><link href=\"style.css\"></head><body><a href=\"b.html\">b</a>"
+				+ "<script src=\"app.js\"></script><img src=\"logo.png\"><img alt=\"\"><p>img src=\"x.png\"</p>"
+				+ "</body></html>").getBytes());
+
+		KbArticleContext ctx = new KbArticleContext(file);
+
+		assertEquals(Arrays.asList("style.css", "b.html", "logo.png"), ctx.getReferences().stream()
+				.map(KbArticleContext.Reference::getValue).collect(Collectors.toList()));
+	}
+
+	@Test
+	void testWhenManyReferencesOnOneLineThenEachIsRewrittenOnce(@TempDir Path dir) throws IOException {
+
+		StringBuilder html = new StringBuilder("<html><body><p>");
+		for (int i = 0; i < 20_000; i++) {
+			html.append("<a href=\"").append(i).append(".html\">").append(i).append("</a><img src=\"").append(i)
+					.append(".png\">");
+		}
+		html.append("</p></body></html>");
+
+		Path file = dir.resolve("a.html");
+		Files.write(file, html.toString().getBytes());
+
+		KbArticleContext ctx = new KbArticleContext(file);
+
+		List<KbArticleContext.Reference> references = ctx.getReferences();
+		assertEquals(40_000, references.size());
+
+		references.forEach(r -> r.rewrite("x" + r.getValue()));
+
+		String out = ctx.getDocument().outerHtml();
+		assertTrue(out.contains("href=\"x0.html\""));
+		assertTrue(out.contains("src=\"x19999.png\""));
+		assertFalse(out.contains("\"0.html\""));
+	}
+
+	@Test
+	void testWhenStreamedThenDocumentHoldsTitleAndBreadcrumbsOnly(@TempDir Path dir) throws IOException {
+
+		Path file = dir.resolve("a.html");
+		Files.write(file, ("<html><head><title>Space : Page</title></head><body><div id=\"main-header\">"
+				+ "<div id=\"breadcrumbs\"><li><span><a href=\"index.html\">Space</a></span></li>"
+				+ "<li><span><a href=\"parent.html\">Parent</a></span></li></div></div>"
+				+ "<a href=\"b.html\">b</a><img src=\"logo.png\"><a href=\"b.html\">again</a></body></html>")
+				.getBytes());
+
+		KbArticleContext ctx = new KbArticleContext(file, true);
+
+		assertEquals("Space : Page", ctx.getDocument().title());
+		assertEquals(2, ctx.getDocument().select("#breadcrumbs").first().children().size());
+		assertTrue(ctx.getDocument().select("a[href=b.html]").isEmpty());
+
+		// the breadcrumbs are pruned with the header, each value is rewritten once
+		List<KbArticleContext.Reference> references = ctx.getReferences();
+		assertEquals(Arrays.asList("b.html", "logo.png"),
+				references.stream().map(KbArticleContext.Reference::getValue).collect(Collectors.toList()));
+
+		references.get(0).rewrite("kb_view.do?sys_kb_id=1");
+		assertEquals("kb_view.do?sys_kb_id=1", ctx.getRewrites().get("b.html"));
+		assertFalse(ctx.getRewrites().containsKey("logo.png"));
+	}
+
+}
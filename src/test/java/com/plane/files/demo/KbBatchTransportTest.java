@@ -0,0 +1,233 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+public class KbBatchTransportTest {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	void testWhenBatchIsFullThenEachCallGetsItsOwnResponse() throws IOException {
+
+		List<HttpUriRequest> sent = new ArrayList<>();
+
+		// answers every request in reverse order with its own url as sys_id
+		KbTransport delegate = request -> {
+			sent.add(request);
+			try {
+				JsonNode batch = mapper.readTree(EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()));
+				ObjectNode root = mapper.createObjectNode();
+				ArrayNode serviced = root.putArray("serviced_requests");
+				for (int i = batch.path("rest_requests").size() - 1; i >= 0; i--) {
+					JsonNode r = batch.path("rest_requests").get(i);
+					String body = "{\"result\":{\"sys_id\":\"" + r.path("url").asText() + "\"}}";
+					serviced.addObject().put("id", r.path("id").asText()).put("status_code", 201)
+							.put("status_text", "Created")
+							.put("body", Base64.getEncoder().encodeToString(body.getBytes(StandardCharsets.UTF_8)));
+				}
+				return CompletableFuture.completedFuture(response(200, mapper.writeValueAsString(root)));
+			} catch (IOException e) {
+				return KbKnowledgeAPI.failed(e);
+			}
+		};
+
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 2, 60_000);
+
+		CompletableFuture<HttpResponse> a = transport.execute(post("/api/now/table/kb_knowledge"));
+		CompletableFuture<HttpResponse> b = transport.execute(new HttpGet("http://instance/api/now/table/kb_category?name=A"));
+
+		assertEquals(1, sent.size());
+		assertEquals("http://instance" + KbBatchTransport.BATCH_API_PATH, sent.get(0).getURI().toString());
+
+		assertEquals(201, a.join().getStatusLine().getStatusCode());
+		assertTrue(EntityUtils.toString(a.join().getEntity()).contains("/api/now/table/kb_knowledge"));
+		assertTrue(EntityUtils.toString(b.join().getEntity()).contains("/api/now/table/kb_category?name=A"));
+
+		transport.close();
+	}
+
+	@Test
+	void testWhenBodyIsLargeOrReadOnceThenItIsSentOnItsOwn() {
+
+		List<HttpUriRequest> sent = new ArrayList<>();
+		KbTransport delegate = request -> {
+			sent.add(request);
+			return CompletableFuture.completedFuture(response(200, "{\"result\":{}}"));
+		};
+
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 10, 60_000);
+
+		HttpPatch large = new HttpPatch("http://instance/api/now/table/kb_knowledge/0123");
+		char[] text = new char[(int) KbBatchTransport.MAX_BODY_BYTES + 1];
+		Arrays.fill(text, 'x');
+		large.setEntity(new StringEntity(new String(text), ContentType.APPLICATION_JSON));
+
+		HttpPatch streamed = new HttpPatch("http://instance/api/now/table/kb_knowledge/4567");
+		streamed.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[] { '{', '}' }), 2));
+
+		assertEquals(200, transport.execute(large).join().getStatusLine().getStatusCode());
+		assertEquals(200, transport.execute(streamed).join().getStatusLine().getStatusCode());
+		assertEquals(Arrays.asList(large, streamed), sent);
+
+		// a small one still waits for its batch
+		CompletableFuture<HttpResponse> small = transport.execute(post("/api/now/table/kb_knowledge"));
+		assertEquals(2, sent.size());
+		assertFalse(small.isDone());
+
+		transport.close();
+	}
+
+	@Test
+	void testWhenRequestIsNotServicedThenItFails() {
+
+		KbTransport delegate = request -> CompletableFuture
+				.completedFuture(response(200, "{\"serviced_requests\":[],\"unserviced_requests\":[\"1\"]}"));
+
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 10, 60_000);
+
+		CompletableFuture<HttpResponse> a = transport.execute(post("/api/now/table/kb_knowledge"));
+
+		transport.flush();
+
+		CompletionException e = assertThrows(CompletionException.class, a::join);
+		assertTrue(e.getCause() instanceof IOException);
+
+		transport.close();
+	}
+
+	@Test
+	void testWhenBatchIsThrottledThenEachCallGetsTheStatus() {
+
+		KbTransport delegate = request -> {
+			HttpResponse throttled = response(429, "{}");
+			throttled.addHeader("Retry-After", "2");
+			return CompletableFuture.completedFuture(throttled);
+		};
+
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 10, 60_000);
+
+		CompletableFuture<HttpResponse> a = transport.execute(post("/api/now/table/kb_knowledge"));
+		CompletableFuture<HttpResponse> b = transport.execute(post("/api/now/table/kb_category"));
+
+		transport.flush();
+
+		assertEquals(429, a.join().getStatusLine().getStatusCode());
+		assertEquals(429, b.join().getStatusLine().getStatusCode());
+		assertEquals("2", b.join().getFirstHeader("Retry-After").getValue());
+
+		transport.close();
+	}
+
+	@Test
+	void testWhenCallIsWaitedForThenItIsNotBatched() throws IOException {
+
+		List<HttpUriRequest> sent = new ArrayList<>();
+
+		KbTransport delegate = request -> {
+			sent.add(request);
+			return CompletableFuture.completedFuture(response(201, "{}"));
+		};
+
+		// a linger the call would otherwise wait out
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 10, 60_000);
+
+		HttpPost create = post("/api/now/table/kb_knowledge");
+		assertEquals(201, transport.executeAndWait(create).getStatusLine().getStatusCode());
+
+		assertEquals(1, sent.size());
+		assertEquals(create, sent.get(0));
+
+		transport.close();
+	}
+
+	@Test
+	void testWhenLingerEndsThenBatchIsSentOffTheTimerThread() {
+
+		List<String> threads = new ArrayList<>();
+
+		KbTransport delegate = request -> {
+			threads.add(Thread.currentThread().getName());
+			return CompletableFuture.completedFuture(response(429, "{}"));
+		};
+
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 10, 1);
+
+		assertEquals(429, transport.execute(post("/api/now/table/kb_knowledge")).join().getStatusLine()
+				.getStatusCode());
+
+		assertEquals(1, threads.size());
+		assertTrue(threads.get(0).startsWith("kb-batch-send"));
+
+		transport.close();
+	}
+
+	@Test
+	void testWhenNotTableAPIThenRequestIsNotBatched() {
+
+		List<HttpUriRequest> sent = new ArrayList<>();
+
+		KbTransport delegate = request -> {
+			sent.add(request);
+			return CompletableFuture.completedFuture(response(201, "{}"));
+		};
+
+		KbBatchTransport transport = new KbBatchTransport("http://instance", delegate, 10, 60_000);
+
+		HttpPost upload = post("/api/now/attachment/upload");
+		transport.execute(upload).join();
+
+		assertEquals(1, sent.size());
+		assertEquals(upload, sent.get(0));
+
+		transport.close();
+	}
+
+	private HttpPost post(String path) {
+
+		HttpPost post = new HttpPost("http://instance" + path);
+		post.setEntity(new StringEntity("{}", ContentType.APPLICATION_JSON));
+
+		return post;
+	}
+
+	private HttpResponse response(int status, String body) {
+
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+		response.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+
+		return response;
+	}
+
+}
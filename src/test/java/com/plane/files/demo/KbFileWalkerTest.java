@@ -0,0 +1,91 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class KbFileWalkerTest {
+
+	@Test
+	void testWhenFoldersAreNestedThenMatchingFilesOfEveryLevelArrive(@TempDir Path dir) throws IOException {
+
+		write(dir, "index.html", "a/page.html", "a/b/c/deep.html", "a/image.png", "a/page.html.1",
+				"archive/old.html", "a/archive/kept.html", "a/draft-1.html");
+
+		KbFileWalker.Filter filter = new KbFileWalker.Filter(Collections.singletonList(KbFileWalker.DEFAULT_INCLUDE),
+				Arrays.asList("archive", "**/draft-*"));
+
+		List<String> found = new ArrayList<>();
+		try (KbFileWalker walker = new KbFileWalker(dir, filter, 1)) {
+			walker.forEachRemaining(file -> found.add(dir.relativize(file).toString().replace('\\', '/')));
+
+			assertEquals(4, walker.getFound());
+		}
+
+		assertEquals(Arrays.asList("a/archive/kept.html", "a/b/c/deep.html", "a/page.html", "index.html"),
+				found.stream().sorted().collect(Collectors.toList()));
+		assertEquals(4, KbFileWalker.count(dir, filter));
+	}
+
+	@Test
+	void testWhenCountIsInterruptedThenItStops(@TempDir Path dir) throws IOException {
+
+		for (int i = 0; i < 10; i++) {
+			Files.write(dir.resolve("page" + i + ".html"), new byte[0]);
+		}
+
+		KbFileWalker.Filter filter = new KbFileWalker.Filter(Collections.singletonList(KbFileWalker.DEFAULT_INCLUDE),
+				Collections.emptyList());
+
+		Thread.currentThread().interrupt();
+		try {
+			assertEquals(1, KbFileWalker.count(dir, filter));
+		} finally {
+			Thread.interrupted();
+		}
+	}
+
+	@Test
+	void testWhenSplitIntoShardsThenEachFileBelongsToOneShard(@TempDir Path dir) throws IOException {
+
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			names.add("space" + i % 4 + "/page" + i + ".html");
+		}
+		write(dir, names.toArray(new String[0]));
+
+		List<String> found = new ArrayList<>();
+		for (int shard = 0; shard < 3; shard++) {
+			List<String> inShard = new ArrayList<>();
+			KbFileWalker.walk(dir, KbFileWalker.Filter.defaults().shard(shard, 3),
+					file -> inShard.add(dir.relativize(file).toString().replace('\\', '/')));
+
+			assertTrue(inShard.size() > 0 && inShard.size() < names.size(), inShard::toString);
+			found.addAll(inShard);
+		}
+
+		assertEquals(names.stream().sorted().collect(Collectors.toList()),
+				found.stream().sorted().collect(Collectors.toList()));
+	}
+
+	private void write(Path dir, String... names) throws IOException {
+
+		for (String name : names) {
+			Path file = dir.resolve(name);
+			Files.createDirectories(file.getParent());
+			Files.write(file, "<html></html>".getBytes());
+		}
+	}
+
+}
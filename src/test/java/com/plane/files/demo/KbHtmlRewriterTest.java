@@ -0,0 +1,85 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.jupiter.api.Test;
+
+public class KbHtmlRewriterTest {
+
+	@Test
+	void testWhenElementsMatchPatternsThenTheyAreDroppedWithWhatIsInside() throws IOException {
+
+		String html = "<html><head><title>a < b</title></head><body>"
+				+ "<div id=\"main-header\"><div><a href=\"header.html\">h</a></div><img src=\"header.png\"></div>"
+				+ "<!-- <div id=\"footer\"> --><p title='x > y' class=\"lead\">kept</p>"
+				+ "<div class=\"page-metadata extra\">meta <a href=\"meta.html\">m</a></div>"
+				+ "<script>if (a </div> b) { x = \"<a href='s.html'>\"; }</script>"
+				+ "<a href=b.html>b</a><img alt=\"\" src=\"logo.png\"/><br>"
+				+ "<DIV ID=\"footer\"><div>f</div><a href=\"footer.html\">f</a></DIV><p>end</p></body></html>";
+
+		StringWriter out = new StringWriter();
+		KbProcessor.STREAMING.rewrite(new StringReader(html), out,
+				value -> value.endsWith(".png") ? "sys_attachment.do?sys_id=1&x=\"2\"" : null);
+
+		assertEquals("<html><head><title>a < b</title></head><body>"
+				+ "<!-- <div id=\"footer\"> --><p title='x > y' class=\"lead\">kept</p>"
+				+ "<script>if (a </div> b) { x = \"<a href='s.html'>\"; }</script>"
+				+ "<a href=b.html>b</a><img alt=\"\" src=\"sys_attachment.do?sys_id=1&amp;x=&quot;2&quot;\"/><br>"
+				+ "<p>end</p></body></html>", out.toString());
+
+		List<String> references = new ArrayList<>();
+		KbProcessor.STREAMING.scan(new StringReader(html), references::add);
+		assertEquals(Arrays.asList("b.html", "logo.png"), references);
+
+		assertThrows(IllegalArgumentException.class, () -> new KbHtmlRewriter("div > p"));
+	}
+
+	@Test
+	void testWhenPageIsLargerThanTheBufferThenReferencesMatchTheParsedDocument() throws IOException {
+
+		StringBuilder html = new StringBuilder("<html><head><title>Large</title></head><body>");
+		html.append("<div id=\"main-header\"><a href=\"header.html\">h</a></div><table>");
+		for (int i = 0; i < 5_000; i++) {
+			html.append("<tr><td class=\"c\" data-row=\"").append(i).append("\"><a href=\"p").append(i)
+					.append(".html?a=1&amp;b=2\">").append(i).append("</a></td><td><img src=\"i").append(i)
+					.append(".png\"></td>").append(i % 100 == 0 ? "<!-- row -->" : "").append("</tr>\n");
+		}
+		html.append("</table><div class=\"page-metadata\"><a href=\"meta.html\">m</a></div></body></html>");
+		assertTrue(html.length() > 4 * KbHtmlRewriter.BUFFER_SIZE);
+
+		Document doc = Jsoup.parse(html.toString());
+		Arrays.stream(KbProcessor.DELETE_PATTERNS).forEach(p -> doc.select(p).remove());
+		List<String> parsed = doc.select("[href], img[src]").stream()
+				.map(e -> e.hasAttr("href") ? e.attr("href") : e.attr("src")).collect(Collectors.toList());
+
+		List<String> streamed = new ArrayList<>();
+		KbProcessor.STREAMING.scan(new StringReader(html.toString()), streamed::add);
+
+		assertEquals(10_000, streamed.size());
+		assertEquals(parsed, streamed);
+		assertEquals("p0.html?a=1&b=2", streamed.get(0));
+
+		StringWriter out = new StringWriter();
+		KbProcessor.STREAMING.rewrite(new StringReader(html.toString()), out, value -> "x");
+
+		Document rewritten = Jsoup.parse(out.toString());
+		assertEquals(5_000, rewritten.select("tr").size());
+		assertTrue(rewritten.select("[href], img[src]").stream()
+				.allMatch(e -> "x".equals(e.hasAttr("href") ? e.attr("href") : e.attr("src"))));
+		assertFalse(out.toString().contains("header.html") || out.toString().contains("meta.html"));
+	}
+
+}
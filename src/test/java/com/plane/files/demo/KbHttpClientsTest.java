@@ -0,0 +1,81 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.jupiter.api.Test;
+
+public class KbHttpClientsTest {
+
+	@Test
+	void testWhenRequestsAreSentThenCredentialsGoWithTheFirstAttemptOverOneConnection() throws Exception {
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(4).withThrottling(0.5, 0).start()) {
+
+			HttpClient client = KbHttpClients.basicAuth("user", "pass", 1, 30, 30);
+			String expected = "Basic "
+					+ Base64.getEncoder().encodeToString("user:pass".getBytes(StandardCharsets.UTF_8));
+
+			// every other answer is a 429 with a body, released it still hands the connection back
+			for (int i = 0; i < 20; i++) {
+				HttpGet get = new HttpGet(stub.getUrl() + KbServiceNowStub.TABLE_PATH
+						+ KbServiceNowStub.KB_KNOWLEDGE_BASE + "?sysparm_query=title%3DIT");
+				KbHttpClients.release(client.execute(get));
+			}
+
+			// no request went out without the header to be answered with a 401 first
+			assertEquals(20, stub.getRequests());
+			assertEquals(10, stub.getThrottled());
+			assertEquals(0, stub.getUnauthorized());
+			assertEquals(Collections.singleton(expected), stub.getAuthorizations());
+			assertEquals(1, stub.getConnections());
+		}
+	}
+
+	@Test
+	void testWhenRequestsRunSideBySideThenConnectionsStayWithinThePool() throws Exception {
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(16).withLatency(5, 10).start()) {
+
+			HttpClient client = KbHttpClients.basicAuth("user", "pass", 3, 30, 30);
+
+			ExecutorService pool = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<Integer>> statuses = new ArrayList<>();
+				for (int i = 0; i < 40; i++) {
+					statuses.add(pool.submit(() -> {
+						HttpResponse response = client.execute(new HttpGet(stub.getUrl()
+								+ KbServiceNowStub.TABLE_PATH + KbServiceNowStub.SYS_USER_GROUP));
+						try {
+							return response.getStatusLine().getStatusCode();
+						} finally {
+							KbHttpClients.release(response);
+						}
+					}));
+				}
+				for (Future<Integer> status : statuses) {
+					assertEquals(200, (int) status.get());
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+
+			assertEquals(40, stub.getRequests());
+			assertEquals(0, stub.getUnauthorized());
+			assertTrue(stub.getConnections() <= 3, String.valueOf(stub.getConnections()));
+		}
+	}
+
+}
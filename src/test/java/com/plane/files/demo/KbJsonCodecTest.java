@@ -0,0 +1,67 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+public class KbJsonCodecTest {
+
+	@Test
+	void testWhenReadingSysIdThenOtherFieldsAreSkipped() throws IOException {
+
+		StringEntity entity = json("{\"result\":{\"text\":\"<p>{\\\"sys_id\\\":\\\"no\\\"}</p>\","
+				+ "\"kb_category\":{\"link\":\"x\",\"value\":\"cat\"},\"tags\":[1,[2],{\"sys_id\":\"no\"}],"
+				+ "\"sys_id\":\"kb1\",\"number\":\"KB001\"}}");
+
+		assertEquals("kb1", KbJsonCodec.readText(entity, "/result/sys_id"));
+	}
+
+	@Test
+	void testWhenReadingArrayElementThenIndexIsFollowed() throws IOException {
+
+		assertEquals("b", KbJsonCodec.readText(json("{\"result\":[{\"sys_id\":\"a\"},{\"sys_id\":\"b\"}]}"),
+				"/result/1/sys_id"));
+		assertEquals("", KbJsonCodec.readText(json("{\"result\":[]}"), "/result/0/sys_id"));
+		assertEquals("", KbJsonCodec.readText(json("{\"error\":{\"message\":\"x\"}}"), "/result/sys_id"));
+		assertNull(KbJsonCodec.readText(null, "/result/sys_id"));
+	}
+
+	@Test
+	void testWhenReadingResultsThenEachRecordIsHandedOver() throws IOException {
+
+		Map<String, String> records = new LinkedHashMap<>();
+
+		int count = KbJsonCodec.readResults(json("{\"result\":[{\"sys_id\":\"cat1\",\"full_category\":\"X / Y\"},"
+				+ "{\"full_category\":\"Z\",\"parent\":{\"value\":\"cat1\"},\"sys_id\":\"cat2\"}]}"), "full_category",
+				records::put);
+
+		assertEquals(2, count);
+		assertEquals("cat1", records.get("X / Y"));
+		assertEquals("cat2", records.get("Z"));
+	}
+
+	@Test
+	void testWhenFieldsAreNullThenTheyAreNotSent() throws IOException {
+
+		KbJsonCodec.KnowledgeRecord record = new KbJsonCodec.KnowledgeRecord();
+		record.setText("<p>a</p>");
+
+		assertEquals("{\"text\":\"<p>a</p>\"}", EntityUtils.toString(KbJsonCodec.entity(record)));
+
+		assertEquals("{\"parent_id\":\"kb1\",\"parent_table\":\"kb_knowledge_base\",\"label\":\"A\",\"value\":1}",
+				KbJsonCodec.toString(new KbJsonCodec.CategoryRecord("kb1", "kb_knowledge_base", "A", 1)));
+	}
+
+	private StringEntity json(String body) {
+		return new StringEntity(body, ContentType.APPLICATION_JSON);
+	}
+
+}
@@ -1,13 +1,39 @@
 package com.plane.files.demo;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -15,11 +41,18 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
 import org.assertj.core.internal.bytebuddy.utility.RandomString;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 
 public class KbKnowledgeAPITest {
     
@@ -59,6 +92,907 @@ public class KbKnowledgeAPITest {
 		}
 	}
 
+	@Test
+	void testWhenPipelineEnabledThenEachFileAndAttachmentIsCreatedOnce(@TempDir Path dir) throws IOException {
+
+		assertEachFileAndAttachmentIsCreatedOnce(dir, true);
+	}
+
+	@Test
+	void testWhenSequentialThenEachFileAndAttachmentIsCreatedOnce(@TempDir Path dir) throws IOException {
+
+		assertEachFileAndAttachmentIsCreatedOnce(dir, false);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testWhenAsyncTransportThenEachRequestIsSentOnce(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+
+		HttpResponse httpResponse = mockResponse(SYS_ID);
+
+		CloseableHttpAsyncClient asyncClient = mock(CloseableHttpAsyncClient.class);
+		when(asyncClient.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(invocation -> {
+			invocation.getArgument(1, FutureCallback.class).completed(httpResponse);
+			return null;
+		});
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+
+		kb.setTransport(new KbAsyncTransport(asyncClient));
+
+		kb.withOutputFiles().withPipeline(2, 4, 2);
+
+		kb.createResourceReferences();
+
+		// three kb_knowledge records, one attachment and three patches
+		verify(asyncClient, times(7)).execute(any(HttpUriRequest.class), any(FutureCallback.class));
+
+		String a = new String(Files.readAllBytes(dir.resolve("a.html.1")));
+		assertTrue(a.contains(KbKnowledgeAPI.KB_SRC_PREFIX + SYS_ID));
+		assertTrue(a.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + SYS_ID));
+	}
+
+	@Test
+	void testWhenClientSysIdsThenEachFileIsPostedOnceWithoutPatch(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+
+		kb.setHttpClient(httpClient);
+
+		kb.withClientSysIds().withOutputFiles().withPipeline(2, 4, 2);
+
+		kb.createResourceReferences();
+
+		// three kb_knowledge inserts with their text and one attachment
+		verify(httpClient, times(4)).execute(any(HttpPost.class));
+		verify(httpClient, times(0)).execute(any(HttpPatch.class));
+
+		String bSysId = kb.clientSysId(dir.resolve("b.html"));
+		assertEquals(32, bSysId.length());
+		assertEquals(bSysId, new KbKnowledgeAPI("user", "pass", "instance", dir).clientSysId(dir.resolve("b.html")));
+
+		String a = new String(Files.readAllBytes(dir.resolve("a.html.1")));
+		assertTrue(a.contains(KbKnowledgeAPI.KB_SRC_PREFIX + bSysId));
+		assertTrue(a.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + SYS_ID));
+	}
+
+	@Test
+	void testWhenSameContentUnderOtherNameThenAttachmentIsUploadedOnce(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+
+		Files.createDirectories(dir.resolve("img"));
+		Files.write(dir.resolve("img").resolve("copy.png"), new byte[] { 1, 2, 3 });
+		Files.write(dir.resolve("c.html"), "<html><body><img src=\"img/copy.png\"></body></html>".getBytes());
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+
+		kb.setHttpClient(httpClient);
+
+		kb.withAttachmentWorkers(2).withOutputFiles().createResourceReferences();
+
+		// three kb_knowledge records and one attachment for both names
+		verify(httpClient, times(4)).execute(any(HttpPost.class));
+
+		String c = new String(Files.readAllBytes(dir.resolve("c.html.1")));
+		assertTrue(c.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + SYS_ID));
+		assertFalse(c.contains("copy.png"));
+	}
+
+	@Test
+	void testWhenAttachmentSysIdIsEmptyThenItIsNotKept(@TempDir Path dir) throws IOException {
+
+		Files.write(dir.resolve("logo.png"), new byte[] { 1, 2, 3 });
+		Files.write(dir.resolve("copy.png"), new byte[] { 1, 2, 3 });
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+
+		AtomicInteger uploads = new AtomicInteger();
+		kb.createAttachment = (sysId, path) -> {
+			uploads.incrementAndGet();
+			return "";
+		};
+
+		assertEquals("", kb.resolveAttachment("k1", "logo.png").join());
+		assertEquals("", kb.resolveAttachment("k1", "copy.png").join());
+		assertEquals("", kb.resolveAttachment("k1", "logo.png").join());
+
+		// neither the path nor the content is taken as uploaded
+		assertEquals(3, uploads.get());
+		assertEquals(0, kb.getMetrics().counter(KbKnowledgeAPI.ATTACHMENT_PATHS).sum());
+	}
+
+	@Test
+	void testWhenLinkedFileFailedInPipelineThenItsContextIsReleased(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		Files.write(dir.resolve("a.html"), "<html><body>a</body></html>".getBytes());
+		Files.write(dir.resolve("b.html"), "<html><body><a href=\"a.html\">a</a></body></html>".getBytes());
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		kb.setHttpClient(mockAPICalls(SYS_ID));
+
+		// the first create of a.html fails, b.html links to it once that import is over
+		AtomicInteger aCreates = new AtomicInteger();
+		Function<KbArticleContext, String> createKb = kb.createKb;
+		kb.createKb = ctx -> {
+			if (ctx.getPath().endsWith("a.html") && aCreates.incrementAndGet() == 1) {
+				throw new IllegalStateException("down");
+			}
+			if (ctx.getPath().endsWith("b.html")) {
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+				while (kb.getMetrics().getArticlesFailed() == 0 && System.nanoTime() < deadline) {
+					Thread.yield();
+				}
+			}
+			return createKb.apply(ctx);
+		};
+
+		kb.withPipeline(2, 2, 4);
+
+		assertThrows(IOException.class, kb::createResourceReferences);
+
+		assertEquals(2, aCreates.get());
+		assertEquals(0, kb.getOpenContexts());
+	}
+
+	@Test
+	void testWhenLinkedFileIsBeingPatchedThenTheContextOfTheLinkIsReleased(@TempDir Path dir) throws Exception {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		Files.write(dir.resolve("a.html"), "<html><body>a</body></html>".getBytes());
+		Files.write(dir.resolve("b.html"), "<html><body><a href=\"a.html\">a</a></body></html>".getBytes());
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		kb.setHttpClient(mockAPICalls(SYS_ID));
+
+		CountDownLatch patching = new CountDownLatch(1);
+		CountDownLatch linked = new CountDownLatch(1);
+
+		// a.html gets no sys_id, so b.html links to it through a new context while a.html is patched
+		AtomicInteger aCreates = new AtomicInteger();
+		Function<KbArticleContext, String> createKb = kb.createKb;
+		kb.createKb = ctx -> {
+			if (ctx.getPath().endsWith("a.html")) {
+				if (aCreates.incrementAndGet() == 2) {
+					linked.countDown();
+				}
+				return null;
+			}
+			await(patching);
+			return createKb.apply(ctx);
+		};
+		Function<KbArticleContext, String> patchKb = kb.patchKb;
+		kb.patchKb = ctx -> {
+			if (ctx.getPath().endsWith("a.html")) {
+				patching.countDown();
+				await(linked);
+				return null;
+			}
+			return patchKb.apply(ctx);
+		};
+
+		kb.withPipeline(2, 2, 4);
+
+		kb.createResourceReferences();
+
+		assertEquals(2, aCreates.get());
+		assertEquals(0, kb.getOpenContexts());
+	}
+
+	@Test
+	void testWhenSequentialLinksAheadThenTheLinkedFileIsParsedOnce(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		Files.write(dir.resolve("a.html"), "<html><body><a href=\"b.html\">b</a></body></html>".getBytes());
+		Files.write(dir.resolve("b.html"), "<html><body><a href=\"a.html\">a</a></body></html>".getBytes());
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		kb.setHttpClient(mockAPICalls(SYS_ID));
+
+		// the file imported second is created for the link of the first
+		List<KbArticleContext> created = Collections.synchronizedList(new ArrayList<>());
+		Function<KbArticleContext, String> createKb = kb.createKb;
+		kb.createKb = ctx -> {
+			created.add(ctx);
+			return createKb.apply(ctx);
+		};
+		List<KbArticleContext> patched = Collections.synchronizedList(new ArrayList<>());
+		Function<KbArticleContext, String> patchKb = kb.patchKb;
+		kb.patchKb = ctx -> {
+			patched.add(ctx);
+			return patchKb.apply(ctx);
+		};
+
+		kb.createResourceReferences();
+
+		assertEquals(2, patched.size());
+		KbArticleContext linked = created.stream().filter(c -> c.getPath().equals(patched.get(1).getPath()))
+				.findFirst().get();
+		assertTrue(linked == patched.get(1));
+		assertEquals(0, kb.getOpenContexts());
+	}
+
+	@Test
+	void testWhenLinkedFilesFloodThePipelineThenEachStageRunsOnItsOwnPool(@TempDir Path dir) throws IOException {
+
+		// every page links to every other, the linked ones are submitted past the intake
+		for (int i = 0; i < 24; i++) {
+			StringBuilder html = new StringBuilder("<html><body>");
+			for (int j = 0; j < 24; j++) {
+				html.append("<a href=\"p").append(j).append(".html\">").append(j).append("</a>");
+			}
+			Files.write(dir.resolve("p" + i + ".html"), html.append("</body></html>").toString().getBytes());
+		}
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		kb.setHttpClient(mockAPICalls(new RandomString(32).nextString()));
+
+		Set<String> createThreads = ConcurrentHashMap.newKeySet();
+		Function<KbArticleContext, String> createKb = kb.createKb;
+		kb.createKb = ctx -> {
+			createThreads.add(Thread.currentThread().getName().replaceAll("-\\d+$", ""));
+			return createKb.apply(ctx);
+		};
+		Set<String> patchThreads = ConcurrentHashMap.newKeySet();
+		Function<KbArticleContext, String> patchKb = kb.patchKb;
+		kb.patchKb = ctx -> {
+			patchThreads.add(Thread.currentThread().getName().replaceAll("-\\d+$", ""));
+			return patchKb.apply(ctx);
+		};
+
+		kb.withPipeline(1, 1, 2).createResourceReferences();
+
+		// links create records from the resolve stage, which runs on the I/O pool as well
+		assertEquals(Collections.singleton("kb-io"), createThreads);
+		assertEquals(Collections.singleton("kb-io"), patchThreads);
+		assertEquals(24, kb.getMetrics().getArticlesDone());
+	}
+
+	@Test
+	void testWhenLinkOrderInPipelineThenComponentsWaitForTheirLinksOnly(@TempDir Path dir)
+			throws IOException {
+
+		// two chains that do not link to each other
+		Files.write(dir.resolve("a1.html"), "<html><body><a href=\"a2.html\">a2</a></body></html>".getBytes());
+		Files.write(dir.resolve("a2.html"), "<html><body><p>a2</p></body></html>".getBytes());
+		Files.write(dir.resolve("b1.html"), "<html><body><a href=\"b2.html\">b2</a></body></html>".getBytes());
+		Files.write(dir.resolve("b2.html"), "<html><body><p>b2</p></body></html>".getBytes());
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		kb.setHttpClient(mockAPICalls(new RandomString(32).nextString()));
+
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch b2Created = new CountDownLatch(1);
+		Function<KbArticleContext, String> createKb = kb.createKb;
+		kb.createKb = ctx -> {
+			String name = ctx.getPath().getFileName().toString();
+			events.add("create " + name);
+			if (name.equals("b2.html")) {
+				b2Created.countDown();
+			}
+			return createKb.apply(ctx);
+		};
+		Function<KbArticleContext, String> patchKb = kb.patchKb;
+		kb.patchKb = ctx -> {
+			String name = ctx.getPath().getFileName().toString();
+			if (name.equals("a2.html")) {
+				// the other chain goes on while this one waits
+				try {
+					assertTrue(b2Created.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			String sysId = patchKb.apply(ctx);
+			events.add("patch " + name);
+			return sysId;
+		};
+
+		kb.withPipeline(2, 2, 4).withLinkOrder().createResourceReferences();
+
+		assertEquals(4, kb.getMetrics().getArticlesDone());
+		assertEquals(0, kb.getMetrics().getArticlesFailed());
+		assertTrue(events.indexOf("patch a2.html") < events.indexOf("create a1.html"), events.toString());
+		assertTrue(events.indexOf("patch b2.html") < events.indexOf("create b1.html"), events.toString());
+	}
+
+	@Test
+	void testWhenReferencesRepeatThenEachIsResolvedOnceAndAFailedUploadIsNotRetried(@TempDir Path dir)
+			throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		Files.write(dir.resolve("a.html"), ("<html><body><a href=\"b.html\">b</a><img src=\"logo.png\">"
+				+ "<a href=\"b.html\">b again</a><img src=\"logo.png\"></body></html>").getBytes());
+		Files.write(dir.resolve("b.html"), "<html><body><p>b</p></body></html>".getBytes());
+		Files.write(dir.resolve("logo.png"), new byte[] { 1, 2, 3 });
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		kb.setHttpClient(mockAPICalls(SYS_ID));
+
+		AtomicInteger uploads = new AtomicInteger();
+		kb.createAttachment = (sysId, name) -> {
+			uploads.incrementAndGet();
+			return null;
+		};
+		List<String> texts = Collections.synchronizedList(new ArrayList<>());
+		kb.patchKb = ctx -> {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				ctx.getText().writeTo(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			texts.add(new String(out.toByteArray(), StandardCharsets.UTF_8));
+			return ctx.getSysId();
+		};
+
+		kb.createResourceReferences();
+
+		assertEquals(1, uploads.get());
+
+		String a = texts.stream().filter(t -> t.contains("b again")).findFirst().get();
+		assertEquals(2, a.split(Pattern.quote(KbKnowledgeAPI.KB_SRC_PREFIX.concat(SYS_ID)), -1).length - 1, a);
+		// the failed upload keeps the original src
+		assertTrue(a.contains("logo.png"), a);
+	}
+
+	@Test
+	void testWhenNoOutputFilesThenRewrittenTextIsSentInPatch(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+		Files.write(dir.resolve("c.html"),
+				"<html><body><p class=\"x\">\"quoted\" \\ \u00e6</p><img src=\"logo.png\"></body></html>"
+						.getBytes(StandardCharsets.UTF_8));
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+
+		kb.setHttpClient(httpClient);
+
+		kb.createResourceReferences();
+
+		ArgumentCaptor<HttpUriRequest> requests = ArgumentCaptor.forClass(HttpUriRequest.class);
+		verify(httpClient, times(7)).execute(requests.capture());
+
+		assertFalse(Files.exists(dir.resolve("c.html.1")));
+
+		List<String> texts = new ArrayList<>();
+		for (HttpUriRequest request : requests.getAllValues()) {
+			if (request instanceof HttpPatch) {
+				JsonNode body = new ObjectMapper()
+						.readTree(EntityUtils.toString(((HttpPatch) request).getEntity(), StandardCharsets.UTF_8));
+				assertEquals(1, body.size());
+				texts.add(body.path("text").asText());
+			}
+		}
+
+		assertEquals(3, texts.size());
+
+		String c = texts.stream().filter(t -> t.contains("quoted")).findFirst().get();
+		assertTrue(c.contains("<p class=\"x\">\"quoted\" \\ \u00e6</p>"));
+		assertTrue(c.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + SYS_ID));
+	}
+
+	@Test
+	void testWhenRestartedWithJournalThenNothingIsCreatedAgain(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+
+		Path journal = dir.resolve("import.journal");
+
+		KbKnowledgeAPI first = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		first.setHttpClient(mockAPICalls(SYS_ID));
+		first.withJournal(journal).createResourceReferences();
+
+		// c.html is left as if the first run died before patching it
+		List<String> lines = Files.readAllLines(journal).stream().filter(l -> !l.startsWith("done\tc.html"))
+				.collect(Collectors.toList());
+		Files.write(journal, lines);
+		Files.write(journal, "done\ttorn".getBytes(), StandardOpenOption.APPEND);
+
+		KbKnowledgeAPI second = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+		second.setHttpClient(httpClient);
+		second.withJournal(journal).createResourceReferences();
+
+		// only the patch of c.html, its record and attachment are reused
+		verify(httpClient, times(0)).execute(any(HttpPost.class));
+		verify(httpClient, times(1)).execute(any(HttpPatch.class));
+	}
+
+	@Test
+	void testWhenSyncedAgainThenOnlyChangedFilesArePatched(@TempDir Path dir) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+
+		Path state = dir.resolve("sync.state");
+
+		KbKnowledgeAPI first = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		first.setHttpClient(mockAPICalls(SYS_ID));
+		first.withSync(state).createResourceReferences();
+
+		KbKnowledgeAPI unchanged = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		HttpClient noCalls = mockAPICalls(SYS_ID);
+		unchanged.setHttpClient(noCalls);
+		unchanged.withSync(state).createResourceReferences();
+
+		verify(noCalls, times(0)).execute(any(HttpPost.class));
+		verify(noCalls, times(0)).execute(any(HttpPatch.class));
+
+		Files.write(dir.resolve("c.html"), "<html><body><p>new</p><img src=\"logo.png\"></body></html>".getBytes());
+
+		KbKnowledgeAPI changed = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+		changed.setHttpClient(httpClient);
+		changed.withSync(state).createResourceReferences();
+
+		// the record and the attachment of c.html exist, only its text is patched
+		verify(httpClient, times(0)).execute(any(HttpPost.class));
+		verify(httpClient, times(1)).execute(any(HttpPatch.class));
+	}
+
+	@Test
+	void testWhenAttachmentChangedSinceSyncThenArticlesReferringToItArePatched(@TempDir Path dir)
+			throws IOException {
+
+		writeLinkedFiles(dir);
+
+		Path state = dir.resolve("sync.state");
+
+		KbKnowledgeAPI first = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		first.setHttpClient(mockAPICalls(new RandomString(32).nextString()));
+		first.withSync(state).createResourceReferences();
+
+		Files.write(dir.resolve("logo.png"), new byte[] { 4, 5, 6 });
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		KbKnowledgeAPI changed = new KbKnowledgeAPI("user", "pass", "instance", dir);
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+		changed.setHttpClient(httpClient);
+		changed.withOutputFiles().withSync(state).createResourceReferences();
+
+		// the new content is uploaded and a.html and c.html point to it, b.html is left alone
+		verify(httpClient, times(1)).execute(any(HttpPost.class));
+		verify(httpClient, times(2)).execute(any(HttpPatch.class));
+
+		String c = new String(Files.readAllBytes(dir.resolve("c.html.1")));
+		assertTrue(c.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + SYS_ID));
+		assertFalse(Files.exists(dir.resolve("b.html.1")));
+	}
+
+	@Test
+	void testWhenImportedOverHttpThenRecordsAndLinksArrive(@TempDir Path dir) throws IOException {
+
+		writeLinkedArticles(dir);
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(2).withLatency(2, 20).withThrottling(0.2, 0)
+				.withErrors(0.25, 503).start()) {
+
+			String kbSysId = stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+
+			kb.withConnectionPool(4, 30).withDefaultHttpClient().withKbKnowledgeBase().withRetries(20, 1)
+					.withPipeline(2, 4, 2);
+
+			kb.createResourceReferences();
+
+			assertStubHoldsLinkedFiles(stub, kbSysId);
+			assertTrue(stub.getThrottled() > 0);
+			assertTrue(stub.getFailed() > 0);
+		}
+	}
+
+	@Test
+	void testWhenImportedOverAsyncBatchesThenRecordsAndLinksArrive(@TempDir Path dir) throws IOException {
+
+		writeLinkedArticles(dir);
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(4).withLatency(2, 20).withThrottling(0.2, 0).start()) {
+
+			String kbSysId = stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+
+			kb.withConnectionPool(4, 30).withKbKnowledgeBase().withRetries(20, 1).withAsyncHttpClient()
+					.withBatching(3, 5).withPipeline(2, 4, 2);
+
+			kb.createResourceReferences();
+
+			assertStubHoldsLinkedFiles(stub, kbSysId);
+			assertTrue(stub.getThrottled() > 0);
+
+			// closing the import shuts the batch timer and senders down
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (hasThreads("kb-batch") && System.nanoTime() < deadline) {
+				Thread.yield();
+			}
+			assertFalse(hasThreads("kb-batch"));
+		}
+	}
+
+	@Test
+	void testWhenLimitedOverBlockingClientThenPipelineSendsCallsSideBySide(@TempDir Path dir) throws IOException {
+
+		writeLinkedArticles(dir);
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(8).withLatency(20, 40).withThrottling(0.2, 0).start()) {
+
+			String kbSysId = stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+
+			kb.withConnectionPool(8, 30).withDefaultHttpClient().withKbKnowledgeBase().withRetries(20, 1)
+					.withAdaptiveConcurrency(4, 8, 500).withPipeline(2, 4, 2);
+
+			// the limiter sits over the blocking client, each call blocks its own thread
+			assertFalse(kb.isAsync());
+
+			kb.createResourceReferences();
+
+			assertStubHoldsLinkedFiles(stub, kbSysId);
+			assertTrue(stub.getThrottled() > 0);
+			assertTrue(stub.getPeakServing() > 1);
+		}
+	}
+
+	@Test
+	void testWhenPagesAreStreamedThenRecordsAreSentPrunedAndRewritten(@TempDir Path dir) throws IOException {
+
+		writeLinkedArticles(dir);
+
+		Path a = dir.resolve("a.html");
+		Files.write(a, new String(Files.readAllBytes(a), StandardCharsets.UTF_8)
+				.replace("</body>", "<div id=\"footer\"><a href=\"c.html\">footer</a></div></body>")
+				.getBytes(StandardCharsets.UTF_8));
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(4).withLatency(2, 20).withErrors(0.25, 503).start()) {
+
+			String kbSysId = stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+
+			kb.withConnectionPool(4, 30).withKbKnowledgeBase().withRetries(20, 1).withAsyncHttpClient()
+					.withPipeline(2, 4, 2).withStreamingThreshold(0);
+
+			kb.createResourceReferences();
+
+			assertStubHoldsLinkedFiles(stub, kbSysId);
+			assertEquals(3, kb.getMetrics().counter(KbKnowledgeAPI.STREAMED_ARTICLES).sum());
+
+			for (JsonNode record : stub.records(KbServiceNowStub.KB_KNOWLEDGE)) {
+				assertFalse(record.path("text").asText().contains("footer"));
+				assertTrue(record.path("short_description").asText().endsWith(".html"));
+			}
+		}
+	}
+
+	@Test
+	void testWhenImportedWithMetricsReportThenStagesAndEndpointsAreReported(@TempDir Path dir) throws IOException {
+
+		writeLinkedArticles(dir);
+		Path report = dir.resolve("report.json");
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(4).withThrottling(0.2, 0).start()) {
+
+			stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+
+			kb.withConnectionPool(4, 30).withDefaultHttpClient().withKbKnowledgeBase().withRetries(20, 1)
+					.withPipeline(2, 4, 2).withProgress(0).withMetricsReport(report);
+
+			kb.createResourceReferences();
+		}
+
+		JsonNode json = new ObjectMapper().readTree(report.toFile());
+
+		assertEquals(3, json.path("articles").path("total").asInt());
+		assertEquals(3, json.path("articles").path("done").asInt());
+		assertEquals(0, json.path("articles").path("failed").asInt());
+
+		for (String stage : new String[] { KbMetrics.PARSE, KbMetrics.CREATE, KbMetrics.PRUNE, KbMetrics.REWRITE,
+				KbMetrics.PATCH }) {
+			assertEquals(3, json.path("stages").path(stage).path("count").asInt(), stage);
+		}
+		assertEquals(1, json.path("stages").path(KbMetrics.ATTACHMENT).path("count").asInt());
+		assertTrue(json.path("stages").path(KbMetrics.LOOKUP).path("count").asInt() > 0);
+
+		JsonNode patch = json.path("endpoints").path("PATCH table/kb_knowledge");
+		assertTrue(patch.path("count").asInt() >= 3);
+		assertTrue(patch.path("bytesSent").asLong() > 0);
+		assertTrue(patch.path("bytesReceived").asLong() > 0);
+		assertTrue(json.path("endpoints").has("POST attachment/file"));
+
+		assertTrue(json.path("calls").path("retries").asInt() > 0);
+		assertEquals(1, json.path("caches").path(KbMetrics.ATTACHMENT).path("misses").asInt());
+		assertEquals(0, json.path("caches").path(KbMetrics.ATTACHMENT).path("hits").asInt());
+		assertTrue(json.path("caches").has("lookup"));
+	}
+
+	@Test
+	void testWhenDryRunThenPlanCountsCallsWithoutSendingThem(@TempDir Path dir) throws IOException {
+
+		writeLinkedArticles(dir);
+		Path planFile = dir.resolve("plan.json");
+
+		CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+		CloseableHttpAsyncClient asyncClient = mock(CloseableHttpAsyncClient.class);
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "http://instance.invalid", dir) {
+
+			@Override
+			protected HttpClient basicAuthHttpClient() {
+				return httpClient;
+			}
+
+			@Override
+			protected KbAsyncTransport basicAuthAsyncTransport() {
+				return new KbAsyncTransport(asyncClient);
+			}
+		};
+
+		kb.withDefaultHttpClient().withKbKnowledgeBase().withAsyncHttpClient().withDryRun(planFile, 5, 2, 100)
+				.withBatching(10, 1).withPipeline(2, 4, 2).withProgress(0);
+
+		// the async client the dry run replaces is closed right away
+		verify(asyncClient).close();
+
+		kb.createResourceReferences();
+
+		verify(httpClient, times(0)).execute(any(HttpUriRequest.class));
+		verify(httpClient).close();
+
+		JsonNode plan = new ObjectMapper().readTree(planFile.toFile());
+
+		assertEquals(3, plan.path("articles").path("planned").asInt());
+		assertEquals(3, plan.path("links").asInt());
+		assertEquals(1, plan.path("attachments").path("unique").asInt());
+		assertEquals(3, plan.path("attachments").path("bytes").asInt());
+		assertEquals(1, plan.path("calls").path("POST attachment/file").path("count").asInt());
+		assertEquals(3, plan.path("calls").path("POST table/kb_knowledge").path("count").asInt());
+
+		// Table API calls go out in batches, attachments one by one
+		JsonNode requests = plan.path("requests");
+		assertFalse(requests.has("POST table/kb_knowledge"));
+		assertEquals(1, requests.path("POST attachment/file").path("count").asInt());
+		assertTrue(requests.path("POST v1/batch").path("count").asInt() > 0);
+
+		long sent = kb.getPlan().getTransport().getRequests();
+		assertEquals(sent, plan.path("projection").path("requests").asLong());
+		assertEquals(Math.max(sent / 5.0, sent * 0.1 / 2), plan.path("projection").path("seconds").asDouble(), 1e-9);
+	}
+
+	@Test
+	void testWhenPipelineImportsNestedFoldersThenLinksResolvePerFolder(@TempDir Path dir) throws IOException {
+
+		assertNestedFoldersAreImported(dir, true, false);
+	}
+
+	@Test
+	void testWhenSequentialImportsNestedFoldersThenLinksResolvePerFolder(@TempDir Path dir) throws IOException {
+
+		assertNestedFoldersAreImported(dir, false, false);
+	}
+
+	@Test
+	void testWhenLinkOrderImportsNestedFoldersThenLinksResolvePerFolder(@TempDir Path dir) throws IOException {
+
+		assertNestedFoldersAreImported(dir, true, true);
+	}
+
+	/**
+	 * Two spaces with an index.html each, links relative to their folder, an
+	 * excluded folder and an excluded file that is still linked to.
+	 */
+	private void assertNestedFoldersAreImported(Path dir, boolean pipeline, boolean linkOrder) throws IOException {
+
+		writeArticle(dir, "space1/index.html",
+				"<a href=\"page.html\">p</a><img src=\"images/logo.png\"><a href=\"../shared/common.html\">c</a>");
+		writeArticle(dir, "space1/page.html", "<a href=\"index.html\">i</a>");
+		writeArticle(dir, "space2/index.html", "<a href=\"../space1/page.html\">p</a>");
+		writeArticle(dir, "shared/common.html", "<p>common</p>");
+		writeArticle(dir, "archive/old.html", "<p>old</p>");
+		Files.createDirectories(dir.resolve("space1/images"));
+		Files.write(dir.resolve("space1/images/logo.png"), new byte[] { 1, 2, 3 });
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(4).start()) {
+
+			stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", stub.getUrl(), dir);
+
+			kb.withDefaultHttpClient().withKbKnowledgeBase().withProgress(0).withFileFilter(
+					Arrays.asList(KbFileWalker.DEFAULT_INCLUDE), Arrays.asList("archive", "shared/**"));
+			if (pipeline) {
+				kb.withPipeline(2, 4, 2);
+			}
+			if (linkOrder) {
+				kb.withLinkOrder();
+			}
+
+			kb.createResourceReferences();
+
+			// the shared file is imported because space1/index.html links to it
+			assertEquals(4, stub.records(KbServiceNowStub.KB_KNOWLEDGE).size());
+			assertEquals(1, stub.records(KbServiceNowStub.SYS_ATTACHMENT).size());
+
+			for (JsonNode record : stub.records(KbServiceNowStub.KB_KNOWLEDGE)) {
+				String text = record.path("text").asText();
+				assertFalse(text.contains(".html\""), text);
+				assertFalse(text.contains("logo.png"), text);
+				assertFalse(text.contains("old"), text);
+			}
+
+			assertEquals(4, kb.getMetrics().getArticlesDone());
+		}
+	}
+
+	private void writeArticle(Path dir, String name, String body) throws IOException {
+
+		Path file = dir.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, ("<html><head><title>Space : " + name + "</title></head><body>" + body + "</body></html>")
+				.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean hasThreads(String prefix) {
+		return Thread.getAllStackTraces().keySet().stream()
+				.anyMatch(t -> t.isAlive() && t.getName().startsWith(prefix));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void assertStubHoldsLinkedFiles(KbServiceNowStub stub, String kbSysId) {
+
+		assertEquals(3, stub.records(KbServiceNowStub.KB_KNOWLEDGE).size());
+		assertEquals(1, stub.records(KbServiceNowStub.SYS_ATTACHMENT).size());
+
+		String attachmentSysId = stub.records(KbServiceNowStub.SYS_ATTACHMENT).iterator().next().path("sys_id")
+				.asText();
+		assertEquals(3, stub.attachmentContent(attachmentSysId).length);
+
+		for (JsonNode record : stub.records(KbServiceNowStub.KB_KNOWLEDGE)) {
+			assertEquals(kbSysId, record.path("kb_knowledge_base").asText());
+
+			String text = record.path("text").asText();
+			assertFalse(text.contains("logo.png"));
+			assertFalse(text.contains("href=\"a.html\"") || text.contains("href=\"b.html\"")
+					|| text.contains("href=\"c.html\""));
+			if (text.contains("<img")) {
+				assertTrue(text.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + attachmentSysId));
+			}
+		}
+	}
+
+	/**
+	 * The linked files with the title the knowledge base reads the short
+	 * description from.
+	 */
+	private void writeLinkedArticles(Path dir) throws IOException {
+
+		writeLinkedFiles(dir);
+
+		for (String name : new String[] { "a.html", "b.html", "c.html" }) {
+			Path file = dir.resolve(name);
+			String html = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			Files.write(file, html.replace("<html>", "<html><head><title>Space : " + name + "</title></head>")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private void writeLinkedFiles(Path dir) throws IOException {
+
+		Files.write(dir.resolve("a.html"),
+				"<html><body><a href=\"b.html\">b</a><img src=\"logo.png\"></body></html>".getBytes());
+		Files.write(dir.resolve("b.html"),
+				"<html><body><a href=\"a.html\">a</a><a href=\"c.html\">c</a></body></html>".getBytes());
+		Files.write(dir.resolve("c.html"), "<html><body><img src=\"logo.png\"></body></html>".getBytes());
+		Files.write(dir.resolve("logo.png"), new byte[] { 1, 2, 3 });
+	}
+
+	private void assertEachFileAndAttachmentIsCreatedOnce(Path dir, boolean pipeline) throws IOException {
+
+		final String SYS_ID = new RandomString(32).nextString();
+
+		writeLinkedFiles(dir);
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", dir);
+
+		HttpClient httpClient = mockAPICalls(SYS_ID);
+
+		kb.setHttpClient(httpClient);
+
+		kb.withOutputFiles();
+
+		if (pipeline) {
+			kb.withPipeline(2, 4, 2);
+		}
+
+		kb.createResourceReferences();
+
+		// three kb_knowledge records and one attachment, patches are not posts
+		verify(httpClient, times(4)).execute(any(HttpPost.class));
+		verify(httpClient, times(3)).execute(any(HttpPatch.class));
+
+		String a = new String(Files.readAllBytes(dir.resolve("a.html.1")));
+		assertTrue(a.contains(KbKnowledgeAPI.KB_SRC_PREFIX + SYS_ID));
+		assertTrue(a.contains(KbKnowledgeAPI.SYS_ATTACHMENT_SRC_PREFIX + SYS_ID));
+		assertFalse(a.contains("logo.png"));
+
+		String b = new String(Files.readAllBytes(dir.resolve("b.html.1")));
+		assertFalse(b.contains("c.html"));
+	}
+
+	private HttpResponse mockResponse(String sysId) {
+
+		StringEntity entity = new StringEntity("{\"result\":{\"sys_id\": \"" + sysId + "\"}}",
+				ContentType.APPLICATION_JSON);
+
+		HttpResponse httpResponse = mock(HttpResponse.class);
+
+		StatusLine statusLine = mock(StatusLine.class);
+
+		when(statusLine.getStatusCode()).thenReturn(200);
+		when(statusLine.getReasonPhrase()).thenReturn("");
+		when(httpResponse.getStatusLine()).thenReturn(statusLine);
+		when(httpResponse.getEntity()).thenReturn(entity);
+
+		return httpResponse;
+	}
+
+	private HttpClient mockAPICalls(String sysId) throws IOException {
+
+		HttpClient httpClient = mock(HttpClient.class);
+		HttpResponse httpResponse = mockResponse(sysId);
+
+		when(httpClient.execute(any(HttpPost.class))).thenReturn(httpResponse);
+		when(httpClient.execute(any(HttpPatch.class))).thenReturn(httpResponse);
+		when(httpClient.execute(any(HttpGet.class))).thenReturn(httpResponse);
+
+		return httpClient;
+	}
+
 	@AfterAll
 	public static void deleteOutputFiles() throws IOException {
 
@@ -1,16 +1,37 @@
 package com.plane.files.demo;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.plane.files.demo.KbKnowledgeBase.KbCategory;
 import com.plane.files.demo.KbKnowledgeBase.KbKnowledge;
 
 import org.apache.http.HttpResponse;
@@ -23,6 +44,7 @@ import org.apache.http.entity.StringEntity;
 import org.assertj.core.internal.bytebuddy.utility.RandomString;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class KbKnowledgeBaseTest {
 
@@ -192,6 +214,210 @@ public class KbKnowledgeBaseTest {
 
 	}
 
+	@Test
+	void testWhenCategoriesResolvedConcurrentlyThenEachIsCreatedOnce() throws Exception {
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(8).withLatency(5, 20).start()) {
+
+			String kbSysId = stub.knowledgeBase("Handbook");
+
+			KbKnowledgeBase kbl = new KbKnowledgeBase(stub.getUrl());
+			kbl.setHttpClient(KbHttpClients.basicAuth("user", "pass", 8, 30, 30));
+
+			ExecutorService pool = Executors.newFixedThreadPool(8);
+			List<Future<String>> bonus = new ArrayList<>();
+			List<Future<String>> discounts = new ArrayList<>();
+			try {
+				for (int i = 0; i < 16; i++) {
+					String label = i % 2 == 0 ? "Bonus" : "Discounts";
+					Future<String> id = pool.submit(() -> {
+						KbCategory root = new KbCategory(null, "Handbook");
+						return kbl.createIfNotExist(new KbCategory(new KbCategory(root, "Offers"), label));
+					});
+					(i % 2 == 0 ? bonus : discounts).add(id);
+				}
+
+				for (Future<String> id : bonus) {
+					assertEquals(bonus.get(0).get(), id.get());
+				}
+				for (Future<String> id : discounts) {
+					assertEquals(discounts.get(0).get(), id.get());
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+
+			// the root category under the knowledge base, Offers below it, Bonus and Discounts below that
+			assertEquals(4, stub.records(KbServiceNowStub.KB_CATEGORY).size());
+
+			ObjectNode offers = stub.record(KbServiceNowStub.KB_CATEGORY,
+					stub.record(KbServiceNowStub.KB_CATEGORY, bonus.get(0).get()).path("parent_id").asText());
+			assertEquals("Offers", offers.path("label").asText());
+			assertEquals(offers.path("sys_id").asText(),
+					stub.record(KbServiceNowStub.KB_CATEGORY, discounts.get(0).get()).path("parent_id").asText());
+			assertEquals(kbSysId, stub.record(KbServiceNowStub.KB_CATEGORY, offers.path("parent_id").asText())
+					.path("parent_id").asText());
+
+			// one lookup of each leaf, of the root category and of the knowledge base, nothing below a new node
+			assertEquals(8, stub.getRequests());
+		}
+	}
+
+	@Test
+	void testWhenLeafCategoryExistsThenCategoriesAboveItAreNotLookedUp() throws Exception {
+
+		KbKnowledgeBase kbl = new KbKnowledgeBase("instance");
+
+		HttpClient httpClient = mock(HttpClient.class);
+		when(httpClient.execute(any(HttpGet.class))).thenAnswer(invocation -> mockResponse(
+				new StringEntity("{\"result\":[{\"sys_id\":\"cat4\"}]}", ContentType.APPLICATION_JSON)));
+		kbl.setHttpClient(httpClient);
+
+		KbCategory leaf = new KbCategory(
+				new KbCategory(new KbCategory(new KbCategory(null, "Handbook"), "Offers"), "Bonus"), "Cars");
+
+		assertEquals("cat4", kbl.createIfNotExist(leaf));
+		assertEquals("cat4", kbl.createIfNotExistAsync(leaf).get(10, TimeUnit.SECONDS));
+
+		// the leaf alone, and then from what this run knows
+		verify(httpClient, times(1)).execute(any(HttpGet.class));
+		verify(httpClient, never()).execute(any(HttpPost.class));
+	}
+
+	@Test
+	void testWhenLookupOrCreateFailsThenCategoryIsLookedUpAgain() throws Exception {
+
+		KbKnowledgeBase kbl = new KbKnowledgeBase("instance");
+		kbl.setRetryPolicy(new KbRetryPolicy(1, 1, 1));
+
+		// the leaf lookup fails twice and then finds the category the failed create made after all
+		AtomicInteger leafLookups = new AtomicInteger();
+		HttpClient httpClient = mock(HttpClient.class);
+		when(httpClient.execute(any(HttpGet.class))).thenAnswer(invocation -> {
+			String uri = invocation.getArgument(0, HttpGet.class).getURI().toString();
+			if (!uri.contains("Bonus")) {
+				return mockResponse(new StringEntity("{\"result\":[{\"sys_id\":\"cat1\"}]}",
+						ContentType.APPLICATION_JSON));
+			}
+			if (leafLookups.incrementAndGet() < 3) {
+				throw new IOException("connection reset");
+			}
+			return mockResponse(
+					new StringEntity("{\"result\":[{\"sys_id\":\"cat3\"}]}", ContentType.APPLICATION_JSON));
+		});
+		when(httpClient.execute(any(HttpPost.class))).thenThrow(new IOException("read timed out"));
+		kbl.setHttpClient(httpClient);
+
+		KbCategory leaf = new KbCategory(new KbCategory(new KbCategory(null, "Handbook"), "Offers"), "Bonus");
+
+		assertThrows(IOException.class, () -> kbl.createIfNotExist(leaf));
+		assertEquals("cat3", kbl.createIfNotExist(leaf));
+
+		assertEquals(3, leafLookups.get());
+		verify(httpClient, times(1)).execute(any(HttpPost.class));
+	}
+
+	@Test
+	void testWhenPageResolvedOverAsyncTransportThenLookupsAndCreatesAreComposed(@TempDir Path dir) throws Exception {
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(8).withLatency(20, 40).start();
+				KbAsyncTransport transport = KbAsyncTransport.basicAuth("user", "pass", 8)) {
+
+			String kbSysId = stub.knowledgeBase("Handbook");
+			String groupSysId = stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			KbKnowledgeBase kbl = new KbKnowledgeBase(stub.getUrl());
+			kbl.setTransport(transport);
+
+			// Dashboard / Handbook / Offers / Bonus, Discounts
+			List<CompletableFuture<KbKnowledge>> pages = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				Path page = dir.resolve("page" + i + ".html");
+				Files.write(page, ("<html><head><title>Space : Page " + i + "</title></head><body>"
+						+ "<ol id=\"breadcrumbs\">" + crumb("Dashboard") + crumb("Space") + crumb("Handbook")
+						+ crumb("Offers") + crumb(i % 2 == 0 ? "Bonus" : "Discounts") + "</ol></body></html>")
+								.getBytes(StandardCharsets.UTF_8));
+				pages.add(kbl.getKbKnowledgeAsync(new KbArticleContext(page)));
+			}
+
+			// sent from this thread, answered later
+			assertFalse(pages.get(0).isDone());
+
+			Set<String> categories = new HashSet<>();
+			for (CompletableFuture<KbKnowledge> page : pages) {
+				KbKnowledge kb = page.get(10, TimeUnit.SECONDS);
+				assertEquals(kbSysId, kb.getKnowledgeBaseId());
+				assertEquals(groupSysId, kb.getAssignmentGroupId());
+				assertTrue(kb.getCategoryFullName().startsWith("Offers / "), kb.getCategoryFullName());
+				assertTrue(stub.record(KbServiceNowStub.KB_CATEGORY, kb.getCategoryId()).path("full_category").asText()
+						.endsWith(kb.getCategoryFullName()));
+				categories.add(kb.getCategoryId());
+			}
+
+			// the root category under the knowledge base, Offers below it, Bonus and Discounts below that
+			assertEquals(2, categories.size());
+			assertEquals(4, stub.records(KbServiceNowStub.KB_CATEGORY).size());
+		}
+	}
+
+	private static String crumb(String label) {
+		return "<li><span><a href=\"#\">" + label + "</a></span></li>";
+	}
+
+	@Test
+	void testWhenHierarchyPreloadedThenLookupsAreAnsweredFromMemory() throws Exception {
+
+		KbKnowledgeBase kbl = new KbKnowledgeBase("instance");
+
+		HttpClient httpClient = mock(HttpClient.class);
+
+		when(httpClient.execute(any(HttpGet.class))).thenAnswer(invocation -> {
+			String uri = invocation.getArgument(0, HttpGet.class).getURI().toString();
+
+			String body;
+			if (uri.contains("kb_knowledge_base") && uri.contains("sysparm_offset=0")) {
+				body = "{\"result\":[{\"sys_id\":\"kb1\",\"title\":\"A\"},{\"sys_id\":\"kb2\",\"title\":\"B\"}]}";
+			} else if (uri.contains("kb_knowledge_base")) {
+				body = "{\"result\":[{\"sys_id\":\"kb3\",\"title\":\"C\"}]}";
+			} else {
+				body = "{\"result\":[{\"sys_id\":\"cat1\",\"full_category\":\"X / Y\"}]}";
+			}
+
+			return mockResponse(new StringEntity(body, ContentType.APPLICATION_JSON));
+		});
+
+		kbl.setHttpClient(httpClient);
+
+		KbHierarchyIndex index = kbl.preloadHierarchy(2);
+
+		assertEquals(3, index.getKnowledgeBaseCount());
+		assertEquals(1, index.getCategoryCount());
+
+		// two pages of kb_knowledge_base, one of kb_category
+		verify(httpClient, times(3)).execute(any(HttpGet.class));
+
+		assertEquals("kb3", kbl.getKbIdByName("C"));
+		assertEquals("", kbl.getKbIdByName("D"));
+		assertEquals("cat1", kbl.getKbCategoryIdByName("X / Y"));
+		assertEquals("", kbl.getKbCategoryIdByName("X"));
+
+		verify(httpClient, times(3)).execute(any(HttpGet.class));
+	}
+
+	private HttpResponse mockResponse(StringEntity entity) {
+
+		HttpResponse httpResponse = mock(HttpResponse.class);
+
+		StatusLine statusLine = mock(StatusLine.class);
+
+		when(statusLine.getStatusCode()).thenReturn(200);
+		when(statusLine.getReasonPhrase()).thenReturn("");
+		when(httpResponse.getStatusLine()).thenReturn(statusLine);
+		when(httpResponse.getEntity()).thenReturn(entity);
+
+		return httpResponse;
+	}
+
 	private HttpClient mockAPICalls(StringEntity entity) throws IOException {
 
 		HttpClient httpClient = mock(HttpClient.class);
@@ -0,0 +1,84 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class KbLinkGraphTest {
+
+	private final Path a = Paths.get("a.html");
+	private final Path b = Paths.get("b.html");
+	private final Path c = Paths.get("c.html");
+	private final Path d = Paths.get("d.html");
+
+	@Test
+	void testWhenFilesLinkInChainThenLinkedFilesComeFirst() {
+
+		KbLinkGraph graph = new KbLinkGraph();
+		graph.addLink(a, b);
+		graph.addLink(b, c);
+		graph.addFile(d);
+
+		assertEquals(Arrays.asList(Arrays.asList(c), Arrays.asList(b), Arrays.asList(a), Arrays.asList(d)),
+				graph.components());
+	}
+
+	@Test
+	void testWhenFilesLinkInCycleThenCycleIsOneComponent() {
+
+		KbLinkGraph graph = new KbLinkGraph();
+		graph.addLink(a, b);
+		graph.addLink(b, a);
+		graph.addLink(b, c);
+		graph.addLink(a, a);
+
+		List<List<Path>> components = graph.components();
+
+		assertEquals(2, components.size());
+		assertEquals(Arrays.asList(c), components.get(0));
+		assertEquals(new HashSet<>(Arrays.asList(a, b)), new HashSet<>(components.get(1)));
+	}
+
+	@Test
+	void testWhenChainIsLongThenNoStackOverflow() {
+
+		KbLinkGraph graph = new KbLinkGraph();
+
+		List<Path> chain = new ArrayList<>();
+		for (int i = 0; i < 100_000; i++) {
+			chain.add(Paths.get(i + ".html"));
+		}
+		for (int i = 1; i < chain.size(); i++) {
+			graph.addLink(chain.get(i - 1), chain.get(i));
+		}
+
+		List<List<Path>> components = graph.components();
+
+		assertEquals(chain.size(), components.size());
+		assertEquals(chain.get(chain.size() - 1), components.get(0).get(0));
+	}
+
+	@Test
+	void testWhenScanningThenHrefAndImgSrcOutsidePrunedElementsAreFound() throws IOException {
+
+		List<String> refs = new ArrayList<>();
+
+		// the links the graph is built from, the same the rewrite resolves
+		KbProcessor.STREAMING.scan(new StringReader("<!DOCTYPE html><html><head><script src=\"app.js\">"
+				+ "var s = '<a href=\"x.html\">';</script></head><body><div id=\"main-header\"><a href=\"h.html\">h"
+				+ "</a></div><!-- <a href=\"old.html\"> --><a class=x HREF='b.html?a=1&amp;b=2'>b</a>"
+				+ "<img alt=\"\" src=logo.png><iframe src=\"frame.html\"></iframe></body></html>"), refs::add);
+
+		assertEquals(Arrays.asList("b.html?a=1&b=2", "logo.png"), refs);
+	}
+
+}
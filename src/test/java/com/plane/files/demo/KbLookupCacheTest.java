@@ -0,0 +1,127 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class KbLookupCacheTest {
+
+	@Test
+	void testWhenSameQueryRepeatedThenLoaderIsCalledOnce() {
+
+		KbLookupCache cache = new KbLookupCache(10, 0);
+
+		AtomicInteger calls = new AtomicInteger();
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals("sys_id", cache.get("table/sys_user_group?name=HR", () -> {
+				calls.incrementAndGet();
+				return "sys_id";
+			}));
+		}
+
+		assertEquals(1, calls.get());
+		assertEquals(4, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	void testWhenNoRecordFoundThenMissIsCachedAndErrorIsNot() {
+
+		KbLookupCache cache = new KbLookupCache(10, 0);
+
+		AtomicInteger calls = new AtomicInteger();
+
+		cache.get("table/kb_category?full_category=A", () -> {
+			calls.incrementAndGet();
+			return "";
+		});
+		assertEquals("", cache.get("table/kb_category?full_category=A", () -> {
+			calls.incrementAndGet();
+			return "other";
+		}));
+
+		assertNull(cache.get("table/kb_category?full_category=B", () -> null));
+		assertEquals("found", cache.get("table/kb_category?full_category=B", () -> "found"));
+
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	void testWhenFullThenLeastRecentlyUsedIsEvicted() {
+
+		KbLookupCache cache = new KbLookupCache(2, 0);
+
+		cache.get("a", () -> "1");
+		cache.get("b", () -> "2");
+		cache.get("a", () -> "x");
+		cache.get("c", () -> "3");
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertEquals("1", cache.get("a", () -> "x"));
+		assertEquals("y", cache.get("b", () -> "y"));
+	}
+
+	@Test
+	void testWhenInvalidatedThenTableIsReloaded() {
+
+		KbLookupCache cache = new KbLookupCache(10, 0);
+
+		cache.get("table/kb_category?full_category=A", () -> "");
+		cache.get("table/kb_knowledge_base?title=A", () -> "kb");
+
+		cache.invalidate("table/kb_category?");
+
+		assertEquals("new", cache.get("table/kb_category?full_category=A", () -> "new"));
+		assertEquals("kb", cache.get("table/kb_knowledge_base?title=A", () -> "x"));
+	}
+
+	@Test
+	void testWhenKeyIsInvalidatedThenOnlyItsLookupIsDropped() {
+
+		KbLookupCache cache = new KbLookupCache(10, 0);
+
+		cache.get("table/kb_category?full_category=A", () -> "");
+		cache.get("table/kb_category?full_category=B", () -> "");
+
+		// a lookup running on another key while A is invalidated is still kept
+		assertEquals("c", cache.get("table/kb_category?full_category=C", () -> {
+			cache.invalidateKey("table/kb_category?full_category=A");
+			return "c";
+		}));
+
+		assertEquals("new", cache.get("table/kb_category?full_category=A", () -> "new"));
+		assertEquals("", cache.get("table/kb_category?full_category=B", () -> "x"));
+		assertEquals("c", cache.get("table/kb_category?full_category=C", () -> "x"));
+	}
+
+	@Test
+	void testWhenKeyIsInvalidatedWhileLoadingThenTheResultIsNotKept() {
+
+		KbLookupCache cache = new KbLookupCache(10, 0);
+
+		assertEquals("", cache.get("table/kb_category?full_category=A", () -> {
+			cache.invalidateKey("table/kb_category?full_category=A");
+			return "";
+		}));
+
+		assertEquals("new", cache.get("table/kb_category?full_category=A", () -> "new"));
+	}
+
+	@Test
+	void testWhenExpiredThenQueryIsReloaded() throws InterruptedException {
+
+		KbLookupCache cache = new KbLookupCache(10, 1);
+
+		cache.get("a", () -> "1");
+
+		Thread.sleep(5);
+
+		assertEquals("2", cache.get("a", () -> "2"));
+	}
+
+}
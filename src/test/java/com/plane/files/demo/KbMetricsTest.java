@@ -0,0 +1,161 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+public class KbMetricsTest {
+
+	@Test
+	void testWhenLatenciesRecordedThenPercentilesAreWithinABucket() {
+
+		KbMetrics.Timer timer = new KbMetrics.Timer();
+
+		// 1 ms to 1000 ms
+		for (int i = 1; i <= 1000; i++) {
+			timer.record(TimeUnit.MILLISECONDS.toNanos(i));
+		}
+
+		assertEquals(1000, timer.getCount());
+		assertEquals(500.5, timer.getMeanMillis(), 0.001);
+		assertEquals(1000, timer.getMaxMillis(), 0.001);
+		assertEquals(500, timer.getP50Millis(), 500 * 0.125);
+		assertEquals(990, timer.getP99Millis(), 990 * 0.125);
+		assertTrue(timer.getP50Millis() <= timer.getP90Millis() && timer.getP90Millis() <= timer.getP99Millis());
+
+		for (long micros = 0; micros < 1_000_000; micros += 997) {
+			int bucket = KbMetrics.Timer.bucket(micros);
+			assertTrue(micros <= KbMetrics.Timer.bucketMax(bucket));
+			assertTrue(bucket == 0 || micros > KbMetrics.Timer.bucketMax(bucket - 1));
+		}
+	}
+
+	@Test
+	void testWhenCallsMeteredThenEndpointCountsBytesAndStatuses() {
+
+		KbMetrics metrics = new KbMetrics();
+
+		KbTransport transport = metrics.meter(request -> {
+			BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+			response.setEntity(new StringEntity("{\"result\":[]}", "UTF-8"));
+			return CompletableFuture.completedFuture(response);
+		});
+
+		HttpPatch patch = new HttpPatch("http://instance/api/now/table/kb_knowledge/0123?sysparm_fields=sys_id");
+		patch.setEntity(new StringEntity("{}", "UTF-8"));
+
+		HttpResponse response = transport.execute(patch).join();
+		transport.execute(new HttpGet("http://instance/api/now/table/kb_category?full_category=A")).join();
+		metrics.retried(patch);
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+
+		KbMetrics.Endpoint endpoint = metrics.getEndpoints().get("PATCH table/kb_knowledge");
+		assertEquals(1, endpoint.getCount());
+		assertEquals(2, endpoint.getBytesSent());
+		assertEquals(13, endpoint.getBytesReceived());
+		assertEquals(1, endpoint.getRetries());
+		assertEquals(Long.valueOf(1), endpoint.getStatuses().get("200"));
+
+		assertTrue(metrics.getEndpoints().containsKey("GET table/kb_category"));
+		assertEquals(2, metrics.getCalls());
+	}
+
+	@Test
+	void testWhenStartedThenProgressIsReadableOverJmx() throws Exception {
+
+		KbMetrics metrics = new KbMetrics();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(KbMetrics.DOMAIN + ":type=Import");
+
+		metrics.start(0);
+		try {
+			metrics.setArticlesTotal(4);
+			metrics.articleDone(false);
+			metrics.articleDone(true);
+			metrics.record(KbMetrics.PARSE, System.nanoTime());
+
+			assertEquals(4L, server.getAttribute(name, "ArticlesTotal"));
+			assertEquals(2L, server.getAttribute(name, "ArticlesDone"));
+			assertEquals(1L, server.getAttribute(name, "ArticlesFailed"));
+			assertTrue((Long) server.getAttribute(name, "EtaSeconds") >= 0);
+			assertEquals(1L, server.getAttribute(
+					new ObjectName(KbMetrics.DOMAIN + ":type=Stage,name=" + ObjectName.quote(KbMetrics.PARSE)),
+					"Count"));
+		} finally {
+			metrics.stop();
+		}
+
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	void testWhenBlockingCallsMeteredThroughTheLimiterThenTheyOverlapOnTheCallingThreads() throws Exception {
+
+		KbMetrics metrics = new KbMetrics();
+		KbRetryPolicy retryPolicy = KbRetryPolicy.defaults();
+		retryPolicy.setMetrics(metrics);
+
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+
+		// completes before it returns, as the blocking client does
+		KbTransport blocking = request -> {
+			threads.add(Thread.currentThread().getName());
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(30);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				inFlight.decrementAndGet();
+			}
+			return CompletableFuture.completedFuture(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+		};
+		KbTransport limited = new KbLimitedTransport(blocking, new KbAdaptiveLimiter(4, 4, 200));
+
+		ExecutorService callers = Executors.newFixedThreadPool(4, r -> new Thread(r, "caller"));
+		try {
+			List<Future<HttpResponse>> calls = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				calls.add(callers.submit(() -> retryPolicy.executeAndWait(
+						new HttpGet("http://instance/api/now/table/kb_category"), limited)));
+			}
+			for (Future<HttpResponse> call : calls) {
+				assertEquals(200, call.get(10, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+
+		assertEquals(Collections.singleton("caller"), threads);
+		assertTrue(maxInFlight.get() > 1, String.valueOf(maxInFlight.get()));
+		assertEquals(20, metrics.getEndpoints().get("GET table/kb_category").getCount());
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+public class KbRetryPolicyTest {
+
+	private final KbRetryPolicy policy = new KbRetryPolicy(3, 1, 10);
+
+	@Test
+	void testWhenThrottledThenRequestIsSentAgain() throws IOException {
+
+		Deque<Integer> statuses = new ArrayDeque<>(Arrays.asList(429, 503, 201));
+		AtomicInteger sent = new AtomicInteger();
+
+		KbTransport transport = request -> {
+			sent.incrementAndGet();
+			BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statuses.poll(), "");
+			response.addHeader("Retry-After", "0");
+			return CompletableFuture.completedFuture(response);
+		};
+
+		HttpResponse response = policy.executeAndWait(new HttpPost("https://instance/api/now/table/kb_knowledge"),
+				transport);
+
+		assertEquals(201, response.getStatusLine().getStatusCode());
+		assertEquals(3, sent.get());
+	}
+
+	@Test
+	void testWhenAsyncAndThrottledThenRequestIsSentAgain() {
+
+		Deque<Integer> statuses = new ArrayDeque<>(Arrays.asList(503, 200));
+		AtomicInteger sent = new AtomicInteger();
+
+		KbTransport transport = request -> {
+			sent.incrementAndGet();
+			return CompletableFuture.completedFuture(new BasicHttpResponse(HttpVersion.HTTP_1_1, statuses.poll(), ""));
+		};
+
+		HttpResponse response = policy.execute(new HttpGet("https://instance/api/now/table/kb_category"), transport)
+				.join();
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals(2, sent.get());
+	}
+
+	@Test
+	void testWhenPostTimesOutThenItIsNotSentAgain() {
+
+		AtomicInteger sent = new AtomicInteger();
+
+		KbTransport transport = request -> {
+			sent.incrementAndGet();
+			return KbKnowledgeAPI.failed(new SocketTimeoutException("Read timed out"));
+		};
+
+		assertThrows(SocketTimeoutException.class, () -> policy
+				.executeAndWait(new HttpPost("https://instance/api/now/table/kb_knowledge"), transport));
+		assertEquals(1, sent.get());
+
+		assertThrows(SocketTimeoutException.class, () -> policy
+				.executeAndWait(new HttpGet("https://instance/api/now/table/kb_knowledge"), transport));
+		assertEquals(4, sent.get());
+	}
+
+	@Test
+	void testWhenRetryAfterThenItIsUsedAndCapped() {
+
+		assertEquals(2000, KbRetryPolicy.retryAfterMillis(new BasicHeader("Retry-After", "2"), 0));
+		assertEquals(KbRetryPolicy.MAX_RETRY_AFTER_MILLIS,
+				KbRetryPolicy.retryAfterMillis(new BasicHeader("Retry-After", "86400"), 0));
+		assertEquals(-1, KbRetryPolicy.retryAfterMillis(new BasicHeader("Retry-After", "soon"), 0));
+
+		long now = 1_600_000_000_000L;
+		assertEquals(30_000, KbRetryPolicy
+				.retryAfterMillis(new BasicHeader("Retry-After", DateUtils.formatDate(new Date(now + 30_000))), now));
+
+		for (int attempt = 1; attempt < 40; attempt++) {
+			long backoff = policy.backoff(attempt);
+			assertTrue(backoff >= 0 && backoff <= 10);
+		}
+	}
+
+	@Test
+	void testWhenNotSuccessfulThenTypedExceptionIsThrown() {
+
+		KbKnowledgeAPI kb = new KbKnowledgeAPI("user", "pass", "instance", null);
+
+		KbApiException e = assertThrows(KbApiException.class, () -> kb
+				.handleTableApiResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, 403, "Forbidden")));
+
+		assertEquals(403, e.getStatusCode());
+	}
+
+}
@@ -0,0 +1,579 @@
+package com.plane.files.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for the Table, Attachment and Batch API calls of the import on the
+ * JDK HTTP server, with the records in memory. Lookups match on the query
+ * fields, kb_category records get their full_category from the parent chain
+ * and created records echo back with their sys_id. Latency, throttling, errors
+ * and the requests served at once can be set to run the real clients against
+ * something that behaves like a busy instance.
+ */
+class KbServiceNowStub implements Closeable {
+
+	static final String KB_KNOWLEDGE = "kb_knowledge";
+
+	static final String KB_KNOWLEDGE_BASE = "kb_knowledge_base";
+
+	static final String KB_CATEGORY = "kb_category";
+
+	static final String SYS_USER_GROUP = "sys_user_group";
+
+	static final String SYS_ATTACHMENT = "sys_attachment";
+
+	static final String TABLE_PATH = "/api/now/table/";
+
+	static final String ATTACHMENT_PATH = "/api/now/attachment/file";
+
+	static final String BATCH_PATH = "/api/now/v1/batch";
+
+	/**
+	 * The 99th percentile of a standard normal distribution.
+	 */
+	private static final double Z_99 = 2.3263;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final Map<String, Map<String, ObjectNode>> tables = new ConcurrentHashMap<>();
+
+	private final Map<String, byte[]> attachmentContent = new ConcurrentHashMap<>();
+
+	private final int maxConcurrentRequests;
+
+	private final Semaphore slots;
+
+	private HttpServer server;
+
+	private ExecutorService workers;
+
+	private double medianMillis;
+
+	private double sigma;
+
+	private double throttleRate;
+
+	private long retryAfterSeconds;
+
+	private double errorRate;
+
+	private int errorStatus = 503;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong throttled = new AtomicLong();
+
+	private final AtomicLong passed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong unauthorized = new AtomicLong();
+
+	private final AtomicInteger serving = new AtomicInteger();
+
+	private final AtomicInteger peakServing = new AtomicInteger();
+
+	/** client ends of the connections requests came in on */
+	private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+	private final Set<String> authorizations = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param maxConcurrentRequests requests served at the same time, any
+	 *                              request beyond that is answered with 429
+	 *                              as an instance out of semaphores would
+	 */
+	KbServiceNowStub(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("Concurrent requests must be positive");
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.slots = new Semaphore(maxConcurrentRequests);
+	}
+
+	/**
+	 * Holds every request for a log-normal time with the given median and
+	 * 99th percentile, 0 answers at once.
+	 */
+	KbServiceNowStub withLatency(double medianMillis, double p99Millis) {
+		if (medianMillis < 0 || p99Millis < medianMillis) {
+			throw new IllegalArgumentException("Latency median must not be negative or above the 99th percentile");
+		}
+		this.medianMillis = medianMillis;
+		this.sigma = medianMillis > 0 ? Math.log(p99Millis / medianMillis) / Z_99 : 0;
+		return this;
+	}
+
+	/**
+	 * Answers this share of the requests with 429, every 1/rate-th request
+	 * so a run is repeatable. A Retry-After header is sent when
+	 * retryAfterSeconds is above 0.
+	 */
+	KbServiceNowStub withThrottling(double rate, long retryAfterSeconds) {
+		this.throttleRate = rate;
+		this.retryAfterSeconds = retryAfterSeconds;
+		return this;
+	}
+
+	/**
+	 * Answers this share of the requests that are not throttled with the
+	 * given 5xx status, every 1/rate-th request.
+	 */
+	KbServiceNowStub withErrors(double rate, int status) {
+		this.errorRate = rate;
+		this.errorStatus = status;
+		return this;
+	}
+
+	KbServiceNowStub start() throws IOException {
+		workers = Executors.newCachedThreadPool(KbImportPipeline.daemonThreads("kb-stub"));
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				maxConcurrentRequests * 2);
+		server.setExecutor(workers);
+		server.createContext("/", this::handle);
+		server.start();
+		return this;
+	}
+
+	@Override
+	public void close() {
+		if (server != null) {
+			server.stop(0);
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * The instance URL to hand to the import.
+	 */
+	String getUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+	}
+
+	String insert(String table, Map<String, String> fields) {
+		ObjectNode record = mapper.createObjectNode();
+		fields.forEach(record::put);
+		return create(table, record).path("sys_id").asText();
+	}
+
+	String knowledgeBase(String title) {
+		return insert(KB_KNOWLEDGE_BASE, singleField("title", title));
+	}
+
+	String userGroup(String name) {
+		return insert(SYS_USER_GROUP, singleField("name", name));
+	}
+
+	private static Map<String, String> singleField(String name, String value) {
+		Map<String, String> fields = new LinkedHashMap<>();
+		fields.put(name, value);
+		return fields;
+	}
+
+	Collection<ObjectNode> records(String table) {
+		return table(table).values();
+	}
+
+	ObjectNode record(String table, String sysId) {
+		return table(table).get(sysId);
+	}
+
+	byte[] attachmentContent(String sysId) {
+		return attachmentContent.get(sysId);
+	}
+
+	long getRequests() {
+		return requests.get();
+	}
+
+	long getThrottled() {
+		return throttled.get();
+	}
+
+	long getFailed() {
+		return failed.get();
+	}
+
+	long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * The most requests served at the same time.
+	 */
+	int getPeakServing() {
+		return peakServing.get();
+	}
+
+	/**
+	 * Requests answered with 401 for coming without credentials.
+	 */
+	long getUnauthorized() {
+		return unauthorized.get();
+	}
+
+	/**
+	 * Connections the requests came in on, a client that keeps them alive
+	 * opens fewer than it sends requests.
+	 */
+	int getConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * The distinct Authorization headers requests came with.
+	 */
+	Set<String> getAuthorizations() {
+		return authorizations;
+	}
+
+	private Map<String, ObjectNode> table(String name) {
+		return tables.computeIfAbsent(name, t -> new ConcurrentHashMap<>());
+	}
+
+	private static class Response {
+
+		private final int status;
+
+		private final String reason;
+
+		private final byte[] body;
+
+		Response(int status, String reason, byte[] body) {
+			this.status = status;
+			this.reason = reason;
+			this.body = body;
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = readBody(exchange.getRequestBody());
+			long n = requests.incrementAndGet();
+			connections.add(exchange.getRemoteAddress());
+
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			if (authorization == null) {
+				unauthorized.incrementAndGet();
+				send(exchange, error(401, "Unauthorized", "User Not Authenticated"));
+				return;
+			}
+			authorizations.add(authorization);
+
+			if (!slots.tryAcquire()) {
+				rejected.incrementAndGet();
+				send(exchange, error(429, "Too Many Requests", "Maximum concurrent requests exceeded"));
+				return;
+			}
+
+			peakServing.accumulateAndGet(serving.incrementAndGet(), Math::max);
+			try {
+				sleep(latencyMillis());
+
+				if (every(n, throttleRate)) {
+					throttled.incrementAndGet();
+					if (retryAfterSeconds > 0) {
+						exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+					}
+					send(exchange, error(429, "Too Many Requests", "Rate limit exceeded"));
+					return;
+				}
+
+				// counted apart so throttling does not hide the errors
+				if (every(passed.incrementAndGet(), errorRate)) {
+					failed.incrementAndGet();
+					send(exchange, error(errorStatus, "Injected", "Injected failure"));
+					return;
+				}
+
+				send(exchange, serve(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+						exchange.getRequestURI().getRawQuery(), body));
+			} finally {
+				serving.decrementAndGet();
+				slots.release();
+			}
+		} catch (RuntimeException e) {
+			send(exchange, error(500, "Internal Server Error", String.valueOf(e.getMessage())));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * True for every 1/rate-th request, spread evenly instead of at random.
+	 */
+	private static boolean every(long n, double rate) {
+		return rate > 0 && (long) (n * rate) != (long) ((n - 1) * rate);
+	}
+
+	private long latencyMillis() {
+		if (medianMillis <= 0) {
+			return 0;
+		}
+		return Math.round(medianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Response serve(String method, String path, String query, byte[] body) {
+		Map<String, String> params = parseQuery(query);
+
+		if (path.equals(BATCH_PATH) && "POST".equals(method)) {
+			return batch(body);
+		}
+
+		if (path.equals(ATTACHMENT_PATH) && "POST".equals(method)) {
+			return attachment(params, body);
+		}
+
+		if (path.startsWith(TABLE_PATH)) {
+			String[] segments = path.substring(TABLE_PATH.length()).split("/");
+			String table = segments[0];
+			String sysId = segments.length > 1 ? segments[1] : null;
+
+			if ("GET".equals(method) && sysId == null) {
+				return list(table, params);
+			}
+			if ("POST".equals(method) && sysId == null) {
+				return created(create(table, readObject(body)));
+			}
+			if ("PATCH".equals(method) && sysId != null) {
+				return update(table, sysId, readObject(body));
+			}
+		}
+
+		return error(400, "Bad Request", "Unsupported " + method + " " + path);
+	}
+
+	private Response list(String table, Map<String, String> params) {
+		List<ObjectNode> found = new ArrayList<>();
+		for (ObjectNode record : table(table).values()) {
+			boolean matches = true;
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				if (!param.getKey().startsWith("sysparm_")
+						&& !param.getValue().equals(record.path(param.getKey()).asText())) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) {
+				found.add(record);
+			}
+		}
+
+		if (params.getOrDefault("sysparm_query", "").contains("ORDERBYsys_id")) {
+			found.sort(Comparator.comparing(r -> r.path("sys_id").asText()));
+		}
+
+		int offset = Integer.parseInt(params.getOrDefault("sysparm_offset", "0"));
+		int limit = Integer.parseInt(params.getOrDefault("sysparm_limit", "10000"));
+		String fields = params.get("sysparm_fields");
+
+		ObjectNode root = mapper.createObjectNode();
+		ArrayNode result = root.putArray("result");
+		found.stream().skip(offset).limit(limit).forEach(record -> result.add(project(record, fields)));
+
+		return new Response(200, "OK", write(root));
+	}
+
+	private ObjectNode project(ObjectNode record, String fields) {
+		if (fields == null) {
+			return record;
+		}
+		ObjectNode projected = mapper.createObjectNode();
+		for (String field : fields.split(",")) {
+			if (record.has(field)) {
+				projected.set(field, record.get(field));
+			}
+		}
+		return projected;
+	}
+
+	private ObjectNode create(String table, ObjectNode record) {
+		if (!record.hasNonNull("sys_id") || record.path("sys_id").asText().isEmpty()) {
+			record.put("sys_id", UUID.randomUUID().toString().replace("-", ""));
+		}
+
+		if (KB_CATEGORY.equals(table)) {
+			ObjectNode parent = KB_CATEGORY.equals(record.path("parent_table").asText())
+					? table(KB_CATEGORY).get(record.path("parent_id").asText())
+					: null;
+			String label = record.path("label").asText();
+			record.put("full_category",
+					parent != null ? parent.path("full_category").asText() + " / " + label : label);
+		}
+
+		if (table(table).putIfAbsent(record.path("sys_id").asText(), record) != null) {
+			throw new IllegalStateException("Record " + record.path("sys_id").asText() + " exists in " + table);
+		}
+		return record;
+	}
+
+	private Response update(String table, String sysId, ObjectNode fields) {
+		ObjectNode record = table(table).get(sysId);
+		if (record == null) {
+			return error(404, "Not Found", "No Record found");
+		}
+		synchronized (record) {
+			fields.fields().forEachRemaining(field -> record.set(field.getKey(), field.getValue()));
+			return new Response(200, "OK", write(mapper.createObjectNode().set("result", record)));
+		}
+	}
+
+	private Response attachment(Map<String, String> params, byte[] body) {
+		ObjectNode record = mapper.createObjectNode();
+		record.put("table_name", params.get("table_name"));
+		record.put("table_sys_id", params.get("table_sys_id"));
+		record.put("file_name", params.get("file_name"));
+		record.put("size_bytes", String.valueOf(body.length));
+
+		create(SYS_ATTACHMENT, record);
+		attachmentContent.put(record.path("sys_id").asText(), body);
+
+		return created(record);
+	}
+
+	/**
+	 * Serves each request of the batch as it would be served on its own, the
+	 * bodies going both ways are base64.
+	 */
+	private Response batch(byte[] body) {
+		JsonNode batch = readObject(body);
+
+		ObjectNode root = mapper.createObjectNode();
+		root.put("batch_request_id", batch.path("batch_request_id").asText());
+		ArrayNode serviced = root.putArray("serviced_requests");
+
+		for (JsonNode request : batch.path("rest_requests")) {
+			String url = request.path("url").asText();
+			int q = url.indexOf('?');
+			byte[] requestBody = request.hasNonNull("body") ? Base64.getDecoder().decode(request.path("body").asText())
+					: new byte[0];
+
+			Response response = serve(request.path("method").asText(), q < 0 ? url : url.substring(0, q),
+					q < 0 ? null : url.substring(q + 1), requestBody);
+
+			ObjectNode item = serviced.addObject();
+			item.put("id", request.path("id").asText());
+			item.put("status_code", response.status);
+			item.put("status_text", response.reason);
+			item.put("body", Base64.getEncoder().encodeToString(response.body));
+		}
+
+		root.putArray("unserviced_requests");
+
+		return new Response(200, "OK", write(root));
+	}
+
+	private Response created(ObjectNode record) {
+		return new Response(201, "Created", write(mapper.createObjectNode().set("result", record)));
+	}
+
+	private Response error(int status, String reason, String message) {
+		ObjectNode root = mapper.createObjectNode();
+		root.putObject("error").put("message", message).put("detail", reason);
+		root.put("status", "failure");
+		return new Response(status, reason, write(root));
+	}
+
+	private ObjectNode readObject(byte[] body) {
+		try {
+			JsonNode node = mapper.readTree(body);
+			if (node == null || !node.isObject()) {
+				throw new IllegalArgumentException("Body is not a JSON object");
+			}
+			return (ObjectNode) node;
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private byte[] write(JsonNode node) {
+		try {
+			return mapper.writeValueAsBytes(node);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		if (query == null || query.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		return Arrays.stream(query.split("&")).map(p -> p.split("=", 2)).collect(Collectors.toMap(
+				p -> decode(p[0]), p -> p.length > 1 ? decode(p[1]) : "", (a, b) -> b, LinkedHashMap::new));
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static void send(HttpExchange exchange, Response response) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+		exchange.sendResponseHeaders(response.status, response.body.length > 0 ? response.body.length : -1);
+		if (response.body.length > 0) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response.body);
+			}
+		}
+	}
+
+}
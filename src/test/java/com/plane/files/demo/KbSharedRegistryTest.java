@@ -0,0 +1,266 @@
+package com.plane.files.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class KbSharedRegistryTest {
+
+	private static final int PAGES = 12;
+
+	private static final int SHARDS = 3;
+
+	@Test
+	void testWhenProcessesResolveTheSameKeyThenOneCreatesIt(@TempDir Path dir) throws Exception {
+
+		// one registry per process, sharing the folder
+		List<KbSharedRegistry> registries = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			registries.add(new KbSharedRegistry(dir, KbSharedRegistry.DEFAULT_STALE_MILLIS));
+		}
+
+		AtomicInteger created = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> ids = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				KbSharedRegistry registry = registries.get(i % registries.size());
+				ids.add(pool.submit(() -> registry.resolve(KbJournal.CATEGORY, "Handbook/Offers", () -> {
+					created.incrementAndGet();
+					sleep(50);
+					return "c1";
+				})));
+			}
+			for (Future<String> id : ids) {
+				assertEquals("c1", id.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(1, created.get());
+
+		// a failed create leaves the key to the next process
+		KbSharedRegistry registry = registries.get(0);
+		assertThrows(IllegalStateException.class, () -> registry.resolve(KbJournal.KB, "a.html", () -> {
+			throw new IllegalStateException("down");
+		}));
+		assertNull(registry.get(KbJournal.KB, "a.html"));
+		assertEquals("k1", registries.get(1).resolveAsync(KbJournal.KB, "a.html",
+				() -> CompletableFuture.completedFuture("k1")).get(10, TimeUnit.SECONDS));
+
+		// a claim left by a process that died is taken over
+		Path claim = Files.createDirectories(dir.resolve(KbJournal.CONTENT)).resolve(
+				KbHashes.hex(KbHashes.newDigest().digest("hash".getBytes(StandardCharsets.UTF_8)))
+						+ KbSharedRegistry.CLAIM);
+		Files.write(claim, new byte[0]);
+		Files.setLastModifiedTime(claim, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+		assertEquals("a1", new KbSharedRegistry(dir, 30_000).resolve(KbJournal.CONTENT, "hash", () -> "a1"));
+		assertFalse(Files.exists(claim));
+	}
+
+	@Test
+	void testWhenCreateOutlastsTheStaleTimeoutThenTheClaimIsKept(@TempDir Path dir) throws Exception {
+
+		KbSharedRegistry slow = new KbSharedRegistry(dir, 150);
+		KbSharedRegistry waiting = new KbSharedRegistry(dir, 150);
+
+		AtomicInteger created = new AtomicInteger();
+		CompletableFuture<String> upload = CompletableFuture.supplyAsync(() -> slow.resolve(KbJournal.CONTENT, "big",
+				() -> {
+					created.incrementAndGet();
+					sleep(800);
+					return "a1";
+				}));
+		sleep(50);
+
+		assertEquals("a1", waiting.resolve(KbJournal.CONTENT, "big", () -> {
+			created.incrementAndGet();
+			return "a2";
+		}));
+		assertEquals("a1", upload.get(10, TimeUnit.SECONDS));
+		assertEquals(1, created.get());
+	}
+
+	@Test
+	void testWhenResolvedAsyncThenRegistryFilesAreUsedOffTheCallingThreads(@TempDir Path dir) throws Exception {
+
+		KbSharedRegistry registry = new KbSharedRegistry(dir, KbSharedRegistry.DEFAULT_STALE_MILLIS);
+
+		// stands in for the HTTP call, completed from this thread as an I/O reactor would
+		CompletableFuture<String> response = new CompletableFuture<>();
+		CompletableFuture<String> creating = new CompletableFuture<>();
+		CompletableFuture<String> id = registry.resolveAsync(KbJournal.KB, "a.html", () -> {
+			creating.complete(Thread.currentThread().getName());
+			return response;
+		});
+
+		// the lookup and the claim ran before the create
+		assertTrue(creating.get(10, TimeUnit.SECONDS).startsWith("kb-registry"));
+
+		CompletableFuture<String> published = id.thenApply(sysId -> {
+			assertEquals("k1", registry.get(KbJournal.KB, "a.html"));
+			return Thread.currentThread().getName();
+		});
+		response.complete("k1");
+
+		assertTrue(published.get(10, TimeUnit.SECONDS).startsWith("kb-registry"));
+
+		// published before, read without creating it again
+		assertEquals("k1", registry.resolveAsync(KbJournal.KB, "a.html", () -> {
+			throw new IllegalStateException("created again");
+		}).get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void testWhenStaleClaimIsReplacedBeforeTheTakeOverThenTheNewClaimStays(@TempDir Path dir) throws Exception {
+
+		KbSharedRegistry registry = new KbSharedRegistry(dir, 1000);
+		Path claim = Files.createDirectories(dir.resolve(KbJournal.KB)).resolve(
+				KbHashes.hex(KbHashes.newDigest().digest("a.html".getBytes(StandardCharsets.UTF_8)))
+						+ KbSharedRegistry.CLAIM);
+
+		// found stale with the token of a dead process, claimed afresh by another waiter since
+		Files.write(claim, "live:1".getBytes(StandardCharsets.UTF_8));
+		registry.takeOver(KbJournal.KB, "a.html", claim, "dead:1");
+
+		assertEquals("live:1", new String(Files.readAllBytes(claim), StandardCharsets.UTF_8));
+		assertEquals(1, Files.list(claim.getParent()).count());
+
+		registry.takeOver(KbJournal.KB, "a.html", claim, "live:1");
+		assertFalse(Files.exists(claim));
+		assertEquals(0, Files.list(claim.getParent()).count());
+	}
+
+	@Test
+	void testWhenShardsImportInSeparateJvmsThenEachRecordIsCreatedOnce(@TempDir Path dir) throws Exception {
+
+		Path corpus = Files.createDirectories(dir.resolve("corpus"));
+		writeCorpus(corpus);
+		Path registry = dir.resolve("registry");
+
+		try (KbServiceNowStub stub = new KbServiceNowStub(16).withLatency(2, 20).start()) {
+
+			String kbSysId = stub.knowledgeBase(KbKnowledgeBase.DEFAULT_KB);
+			stub.userGroup(KbKnowledgeBase.DEFAULT_ASSIGNMENT_GROUP);
+
+			List<Process> shards = new ArrayList<>();
+			for (int i = 0; i < SHARDS; i++) {
+				shards.add(new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+						"-cp", System.getProperty("java.class.path"), Shard.class.getName(), stub.getUrl(),
+						corpus.toString(), registry.toString(), String.valueOf(i), String.valueOf(SHARDS))
+								.redirectErrorStream(true).redirectOutput(dir.resolve("shard" + i + ".log").toFile())
+								.start());
+			}
+			for (int i = 0; i < SHARDS; i++) {
+				assertTrue(shards.get(i).waitFor(120, TimeUnit.SECONDS), "shard " + i);
+				assertEquals(0, shards.get(i).exitValue(), () -> log(dir));
+			}
+
+			assertEquals(PAGES, stub.records(KbServiceNowStub.KB_KNOWLEDGE).size(), () -> log(dir));
+			assertEquals(1, stub.records(KbServiceNowStub.SYS_ATTACHMENT).size());
+
+			List<String> categories = stub.records(KbServiceNowStub.KB_CATEGORY).stream()
+					.map(c -> c.path("full_category").asText()).collect(Collectors.toList());
+			assertEquals(7, categories.size(), categories::toString);
+			assertEquals(categories.size(), categories.stream().distinct().count());
+
+			Set<String> kbSysIds = stub.records(KbServiceNowStub.KB_KNOWLEDGE).stream()
+					.map(r -> r.path("sys_id").asText()).collect(Collectors.toSet());
+			for (JsonNode record : stub.records(KbServiceNowStub.KB_KNOWLEDGE)) {
+				assertEquals(kbSysId, record.path("kb_knowledge_base").asText());
+
+				String text = record.path("text").asText();
+				assertFalse(text.contains(".html\""), text);
+				String linked = text.substring(text.indexOf(KbKnowledgeAPI.KB_SRC_PREFIX)
+						+ KbKnowledgeAPI.KB_SRC_PREFIX.length()).substring(0, 32);
+				assertTrue(kbSysIds.contains(linked), linked);
+			}
+		}
+	}
+
+	/**
+	 * Imports one shard of the corpus, run in a JVM of its own.
+	 */
+	public static class Shard {
+
+		public static void main(String[] args) throws IOException {
+
+			KbKnowledgeAPI api = new KbKnowledgeAPI("user", "pass", args[0], Paths.get(args[1]));
+
+			api.withConnectionPool(4, 30).withDefaultHttpClient().withKbKnowledgeBase().withRetries(5, 1)
+					.withSharedRegistry(Paths.get(args[2]), KbSharedRegistry.DEFAULT_STALE_MILLIS)
+					.withShard(Integer.parseInt(args[3]), Integer.parseInt(args[4])).withPipeline(2, 4, 2)
+					.withProgress(0);
+
+			api.createResourceReferences();
+			System.exit(0);
+		}
+	}
+
+	/**
+	 * Pages linking to the next one, most links crossing shards, sharing one
+	 * image and spread over a tree of 7 categories.
+	 */
+	private void writeCorpus(Path dir) throws IOException {
+
+		Files.write(dir.resolve("logo.png"), new byte[] { 1, 2, 3 });
+		for (int i = 0; i < PAGES; i++) {
+			String html = "<html><head><title>Space : page " + i + "</title></head><body>"
+					+ "<div id=\"breadcrumb-section\"><ol id=\"breadcrumbs\">" + crumb("Dashboard")
+					+ crumb(KbKnowledgeBase.DEFAULT_KB) + crumb("Cat" + i % 2) + crumb("Sub" + i % 4 / 2)
+					+ "</ol></div><p><a href=\"page" + (i + 1) % PAGES + ".html\">next</a>"
+					+ "<img src=\"logo.png\"></p></body></html>";
+			Files.write(dir.resolve("page" + i + ".html"), html.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static String crumb(String label) {
+		return "<li><span><a>" + label + "</a></span></li>";
+	}
+
+	private static String log(Path dir) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < SHARDS; i++) {
+			try {
+				List<String> lines = Files.readAllLines(dir.resolve("shard" + i + ".log"));
+				out.append(String.join("\n", lines.subList(Math.max(0, lines.size() - 40), lines.size())));
+			} catch (IOException e) {
+				out.append(e);
+			}
+		}
+		return out.toString();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}